@@ -0,0 +1,215 @@
+package net.cz88.czdb.benchmark;
+
+import net.cz88.czdb.DbBuilder;
+import net.cz88.czdb.DbType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The BenchmarkDatabase class generates a reproducible database for the benchmarks, and the keys to search in it.
+ *
+ * The address space is cut into as many slots as ranges. Every range fills the start of its slot,
+ * every third range leaves the last quarter of its slot out of the index, which gives the addresses to miss.
+ * An IPv4 range covers 32-bit addresses, an IPv6 range covers whole /64 prefixes, the low 64 bits going from 0 to all ones.
+ * The regions are made of geo columns, packed into the geo map, followed by an ISP, like the cz88 databases.
+ * The file is written by DbBuilder.
+ *
+ * The same arguments always generate the same file, which is cached in the temporary directory.
+ */
+public final class BenchmarkDatabase {
+    /**
+     * The key of the generated databases.
+     */
+    public static final String KEY = "Mef4JXjVsTvGAeFj9Z06FQ==";
+
+    /**
+     * The number of addresses of each array of keys, a power of two.
+     */
+    public static final int KEY_COUNT = 1 << 16;
+
+    /**
+     * The number of distinct regions of the databases.
+     */
+    public static final int REGION_COUNT = 4096;
+
+    /**
+     * The number of region columns packed into the geo map.
+     */
+    public static final int GEO_COLUMN_COUNT = 4;
+
+    /**
+     * The geo columns decoded into the regions: the country, province and city.
+     */
+    public static final long GEO_COLUMN_SELECTION = 0b0111;
+
+    private static final String[][] LOCATIONS = {
+            {"中国", "上海", "上海", "虹口区"}, {"中国", "北京", "北京", "海淀区"}, {"中国", "广东", "深圳", "南山区"},
+            {"中国", "浙江", "杭州", ""}, {"美国", "加利福尼亚", "洛杉矶", ""}, {"日本", "东京", "东京", "新宿区"},
+            {"德国", "", "", ""}, {"中国", "四川", "成都", "武侯区"}};
+    private static final String[] ISPS = {"电信", "联通", "移动", "教育网", "阿里云", "Comcast", "NTT", ""};
+
+    private final Path file;
+    private final DbType dbType;
+
+    // the keys to search, an IPv4 address in hits4 and misses4, the high and low 64 bits of an IPv6 address in hits6 and misses6
+    private final int[] hits4 = new int[KEY_COUNT];
+    private final int[] misses4 = new int[KEY_COUNT];
+    private final long[] hits6 = new long[KEY_COUNT * 2];
+    private final long[] misses6 = new long[KEY_COUNT * 2];
+
+    private BenchmarkDatabase(Path file, DbType dbType) {
+        this.file = file;
+        this.dbType = dbType;
+    }
+
+    /**
+     * Returns the database of the given type and number of ranges, with the default header granularity.
+     *
+     * @param dbType the type of the database
+     * @param ranges the number of ranges of the database
+     * @return the database
+     * @throws IOException if the database cannot be written
+     */
+    public static BenchmarkDatabase of(DbType dbType, int ranges) throws IOException {
+        return of(dbType, ranges, DbBuilder.DEFAULT_HEADER_GRANULARITY);
+    }
+
+    /**
+     * Returns the database of the given type, number of ranges and header granularity, generating it if it is not cached yet.
+     * The ranges and the keys do not depend on the header granularity, so layouts can be compared with each other.
+     *
+     * @param dbType the type of the database
+     * @param ranges the number of ranges of the database
+     * @param headerGranularity the number of index blocks in a header segment
+     * @return the database
+     * @throws IOException if the database cannot be written
+     */
+    public static BenchmarkDatabase of(DbType dbType, int ranges, int headerGranularity) throws IOException {
+        String name = "czdb-benchmark-" + dbType.name().toLowerCase() + "-" + ranges + "-" + headerGranularity + ".czdb";
+        BenchmarkDatabase db = new BenchmarkDatabase(Paths.get(System.getProperty("java.io.tmpdir"), name), dbType);
+        db.generate(ranges, headerGranularity);
+        return db;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public DbType getDbType() {
+        return dbType;
+    }
+
+    /**
+     * Returns IPv4 addresses covered by a range.
+     */
+    public int[] getHits4() {
+        return hits4;
+    }
+
+    /**
+     * Returns IPv4 addresses covered by no range.
+     */
+    public int[] getMisses4() {
+        return misses4;
+    }
+
+    /**
+     * Returns IPv6 addresses covered by a range, each as its high 64 bits followed by its low 64 bits.
+     */
+    public long[] getHits6() {
+        return hits6;
+    }
+
+    /**
+     * Returns IPv6 addresses covered by no range, each as its high 64 bits followed by its low 64 bits.
+     */
+    public long[] getMisses6() {
+        return misses6;
+    }
+
+    /**
+     * Returns the columns of one of the REGION_COUNT distinct regions of the databases:
+     * the country, province, city and district, which are geo columns, then the ISP.
+     *
+     * @param region the number of the region, from 0 to REGION_COUNT - 1
+     * @return the columns of the region
+     */
+    public static String[] regionColumns(int region) {
+        String[] location = LOCATIONS[region % LOCATIONS.length];
+        String[] columns = Arrays.copyOf(location, location.length + 1);
+        columns[location.length] = ISPS[region / LOCATIONS.length % ISPS.length] + "#" + region;
+        return columns;
+    }
+
+    private void generate(int ranges, int headerGranularity) throws IOException {
+        int ipLength = dbType == DbType.IPV4 ? 4 : 16;
+
+        // slots of the address space, an IPv4 address or the high 64 bits of an IPv6 address
+        long space = dbType == DbType.IPV4 ? 1L << 32 : 1L << 62;
+        long slot = space / ranges;
+        if (slot < 4) {
+            throw new IllegalArgumentException("Too many ranges: " + ranges);
+        }
+
+        if (!Files.exists(file)) {
+            // written next to the database file and moved, so concurrent benchmark forks never read a partial file
+            Path tmp = Files.createTempFile(file.getParent(), "czdb-benchmark", ".tmp");
+            Random regions = new Random(ranges);
+            try (DbBuilder builder = new DbBuilder(dbType, KEY)
+                    .setGeoColumnCount(GEO_COLUMN_COUNT)
+                    .setGeoColumnSelection(GEO_COLUMN_SELECTION)
+                    .setHeaderGranularity(headerGranularity)) {
+                for (int i = 0; i < ranges; i++) {
+                    long start = i * slot;
+                    long end = start + (i % 3 == 0 ? slot - slot / 4 : slot) - 1;
+                    builder.add(toIp(start, 0, ipLength), toIp(end, -1, ipLength), regionColumns(regions.nextInt(REGION_COUNT)));
+                }
+                builder.build(tmp.toString());
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // the keys do not depend on whether the file was cached
+        Random random = new Random(-ranges);
+        for (int k = 0; k < KEY_COUNT; k++) {
+            long i = random.nextInt(ranges);
+            long hit = i * slot + (long) (random.nextDouble() * (slot - slot / 4));
+            i = random.nextInt((ranges + 2) / 3) * 3L;
+            long miss = i * slot + slot - 1 - (long) (random.nextDouble() * (slot / 4));
+            if (dbType == DbType.IPV4) {
+                hits4[k] = (int) hit;
+                misses4[k] = (int) miss;
+            } else {
+                hits6[2 * k] = hit;
+                hits6[2 * k + 1] = random.nextLong();
+                misses6[2 * k] = miss;
+                misses6[2 * k + 1] = random.nextLong();
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes of an address of the slot space: an IPv4 address, or the high 64 bits of an IPv6 address
+     * followed by the given low 64 bits.
+     */
+    private static byte[] toIp(long value, long low, int ipLength) {
+        byte[] ip = new byte[ipLength];
+        if (ipLength == 4) {
+            for (int i = 0; i < 4; i++) {
+                ip[i] = (byte) (value >>> (24 - i * 8));
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                ip[i] = (byte) (value >>> (56 - i * 8));
+                ip[i + 8] = (byte) (low >>> (56 - i * 8));
+            }
+        }
+        return ip;
+    }
+}
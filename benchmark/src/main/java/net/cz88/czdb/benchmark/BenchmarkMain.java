@@ -0,0 +1,39 @@
+package net.cz88.czdb.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks. With arguments, it is the JMH command line, so one benchmark or one parameter
+ * can be selected, for example {@code LookupBenchmark -p queryType=MMAP}.
+ * Without arguments, it runs every benchmark, and ThroughputBenchmark once for each thread count
+ * of 1, 2, 4 and so on up to the number of processors.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            new Runner(new CommandLineOptions(args)).run();
+            return;
+        }
+
+        new Runner(new OptionsBuilder()
+                .include(ConstructionBenchmark.class.getSimpleName())
+                .include(LookupBenchmark.class.getSimpleName())
+                .include(RegionDecodeBenchmark.class.getSimpleName())
+                .build()).run();
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, processors)) {
+            Options options = new OptionsBuilder()
+                    .include(ThroughputBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+            if (threads == processors) {
+                break;
+            }
+        }
+    }
+}
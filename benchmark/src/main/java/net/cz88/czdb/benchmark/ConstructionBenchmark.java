@@ -0,0 +1,52 @@
+package net.cz88.czdb.benchmark;
+
+import net.cz88.czdb.DbSearcher;
+import net.cz88.czdb.DbType;
+import net.cz88.czdb.QueryType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to open a database and close it, which is the startup cost of a DbSearcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ConstructionBenchmark {
+    @Param({"IPV4", "IPV6"})
+    public DbType dbType;
+
+    @Param({"MEMORY", "MMAP", "BTREE"})
+    public QueryType queryType;
+
+    @Param({"1000000"})
+    public int ranges;
+
+    private String file;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = BenchmarkDatabase.of(dbType, ranges).getFile().toString();
+    }
+
+    @Benchmark
+    public DbSearcher openAndClose() throws Exception {
+        DbSearcher searcher = new DbSearcher(file, queryType, BenchmarkDatabase.KEY);
+        searcher.close();
+        return searcher;
+    }
+}
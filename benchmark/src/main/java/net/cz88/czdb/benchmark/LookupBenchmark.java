@@ -0,0 +1,106 @@
+package net.cz88.czdb.benchmark;
+
+import net.cz88.czdb.DbSearcher;
+import net.cz88.czdb.DbSearcherConfig;
+import net.cz88.czdb.DbType;
+import net.cz88.czdb.QueryType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of one search, for addresses found and for addresses not found,
+ * in every query type. The addresses are spread over the whole database, so the caches see a realistic load.
+ * Layouts can be compared with each other by setting more than one header granularity, such as -p headerGranularity=16,50,256,
+ * the Eytzinger index of MEMORY mode with -p eytzingerIndex=false,true, and the header trie with -p headerTrie=false,true.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+    @Param({"IPV4", "IPV6"})
+    public DbType dbType;
+
+    @Param({"MEMORY", "MMAP", "BTREE"})
+    public QueryType queryType;
+
+    @Param({"1000000"})
+    public int ranges;
+
+    @Param({"50"})
+    public int headerGranularity;
+
+    @Param({"false"})
+    public boolean eytzingerIndex;
+
+    @Param({"false"})
+    public boolean headerTrie;
+
+    private DbSearcher searcher;
+    private int[] hits4;
+    private int[] misses4;
+    private long[] hits6;
+    private long[] misses6;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkDatabase db = BenchmarkDatabase.of(dbType, ranges, headerGranularity);
+        searcher = new DbSearcher(db.getFile().toString(), queryType, BenchmarkDatabase.KEY,
+                new DbSearcherConfig().setEytzingerIndex(eytzingerIndex).setHeaderTrie(headerTrie));
+        hits4 = db.getHits4();
+        misses4 = db.getMisses4();
+        hits6 = db.getHits6();
+        misses6 = db.getMisses6();
+    }
+
+    @TearDown
+    public void tearDown() {
+        searcher.close();
+    }
+
+    @Benchmark
+    public String hit(Cursor cursor) throws IOException {
+        return search(hits4, hits6, cursor.next());
+    }
+
+    @Benchmark
+    public String miss(Cursor cursor) throws IOException {
+        return search(misses4, misses6, cursor.next());
+    }
+
+    private String search(int[] ipv4, long[] ipv6, int i) throws IOException {
+        if (dbType == DbType.IPV4) {
+            return searcher.search(ipv4[i]);
+        }
+        return searcher.search(ipv6[2 * i], ipv6[2 * i + 1]);
+    }
+
+    /**
+     * The position of a thread in the addresses, so threads do not share a counter.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+
+        int next() {
+            int i = position;
+            position = (i + 1) & (BenchmarkDatabase.KEY_COUNT - 1);
+            return i;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.cz88.czdb.benchmark;
+
+import net.cz88.czdb.entity.DataBlock;
+import net.cz88.czdb.entity.GeoColumnCache;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decoding of a data block into a region, apart from the search of its index block:
+ * with geo columns read from the geo map, with geo columns read from a GeoColumnCache,
+ * and for data blocks which hold the whole region.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegionDecodeBenchmark {
+    private byte[][] dataBlocks;
+    private byte[][] plainDataBlocks;
+    private byte[] geoMapData;
+    private long columnSelection;
+    private GeoColumnCache geoColumnCache;
+    private int position;
+
+    @Setup
+    public void setUp() throws Exception {
+        // the data blocks of the distinct regions of BenchmarkDatabase, packed as DbBuilder packs them
+        ByteArrayOutputStream geoMap = new ByteArrayOutputStream();
+        Map<List<String>, Long> geoEntries = new HashMap<>();
+        dataBlocks = new byte[BenchmarkDatabase.REGION_COUNT][];
+        for (int i = 0; i < dataBlocks.length; i++) {
+            String[] columns = BenchmarkDatabase.regionColumns(i);
+            List<String> geoColumns = Arrays.asList(columns).subList(0, BenchmarkDatabase.GEO_COLUMN_COUNT);
+            Long geoPosMixSize = geoEntries.get(geoColumns);
+            if (geoPosMixSize == null) {
+                MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+                packer.packArrayHeader(geoColumns.size());
+                for (String column : geoColumns) {
+                    packer.packString(column);
+                }
+                byte[] bytes = packer.toByteArray();
+                geoPosMixSize = (long) bytes.length << 24 | geoMap.size();
+                geoMap.write(bytes);
+                geoEntries.put(geoColumns, geoPosMixSize);
+            }
+
+            MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+            packer.packLong(geoPosMixSize);
+            packer.packString(columns[BenchmarkDatabase.GEO_COLUMN_COUNT]);
+            dataBlocks[i] = packer.toByteArray();
+        }
+        geoMapData = geoMap.toByteArray();
+        columnSelection = BenchmarkDatabase.GEO_COLUMN_SELECTION << 1 | 1;
+        geoColumnCache = new GeoColumnCache(1024);
+
+        // the same regions, held by the data blocks rather than pointing into the geo map
+        plainDataBlocks = new byte[dataBlocks.length][];
+        for (int i = 0; i < dataBlocks.length; i++) {
+            String region = DataBlock.getRegion(dataBlocks[i], 0, dataBlocks[i].length, geoMapData, columnSelection);
+            MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+            packer.packLong(0);
+            packer.packString(region);
+            plainDataBlocks[i] = packer.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public String withGeoColumns() {
+        byte[] data = next(dataBlocks);
+        return DataBlock.getRegion(data, 0, data.length, geoMapData, columnSelection);
+    }
+
+    @Benchmark
+    public String withGeoColumnCache() {
+        byte[] data = next(dataBlocks);
+        return DataBlock.getRegion(data, 0, data.length, geoMapData, columnSelection, geoColumnCache);
+    }
+
+    @Benchmark
+    public String withoutGeoColumns() {
+        byte[] data = next(plainDataBlocks);
+        return DataBlock.getRegion(data, 0, data.length, null, 0);
+    }
+
+    private byte[] next(byte[][] blocks) {
+        byte[] data = blocks[position];
+        position = (position + 1) % blocks.length;
+        return data;
+    }
+}
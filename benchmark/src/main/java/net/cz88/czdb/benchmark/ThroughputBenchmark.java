@@ -0,0 +1,67 @@
+package net.cz88.czdb.benchmark;
+
+import net.cz88.czdb.DbSearcher;
+import net.cz88.czdb.DbType;
+import net.cz88.czdb.QueryType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the number of searches per second of one DbSearcher shared by all the threads.
+ * BenchmarkMain runs it once per thread count, so the result shows how each query type scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThroughputBenchmark {
+    @Param({"IPV4", "IPV6"})
+    public DbType dbType;
+
+    @Param({"MEMORY", "MMAP", "BTREE"})
+    public QueryType queryType;
+
+    @Param({"1000000"})
+    public int ranges;
+
+    private DbSearcher searcher;
+    private int[] hits4;
+    private long[] hits6;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkDatabase db = BenchmarkDatabase.of(dbType, ranges);
+        searcher = new DbSearcher(db.getFile().toString(), queryType, BenchmarkDatabase.KEY);
+        hits4 = db.getHits4();
+        hits6 = db.getHits6();
+    }
+
+    @TearDown
+    public void tearDown() {
+        searcher.close();
+    }
+
+    @Benchmark
+    public String search(LookupBenchmark.Cursor cursor) throws IOException {
+        int i = cursor.next();
+        if (dbType == DbType.IPV4) {
+            return searcher.search(hits4[i]);
+        }
+        return searcher.search(hits6[2 * i], hits6[2 * i + 1]);
+    }
+}
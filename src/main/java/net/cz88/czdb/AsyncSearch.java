@@ -0,0 +1,35 @@
+package net.cz88.czdb;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The AsyncSearch class runs the asynchronous searches of a DbSearcher in BTREE mode, see DbSearcher.searchAsync.
+ *
+ * The index segment and the data block are read with an AsynchronousFileChannel, and each step of the search
+ * goes on when the read before it completes, so no thread waits for a read and concurrent searches overlap their reads.
+ * The multi-release JAR replaces this class on Java 21 and later with one which runs the searches on virtual threads.
+ */
+final class AsyncSearch {
+    private final DbSearcher searcher;
+    private final AsynchronousFileChannel channel;
+
+    AsyncSearch(DbSearcher searcher, String dbFile) throws IOException {
+        this.searcher = searcher;
+        this.channel = AsynchronousFileChannel.open(Paths.get(dbFile), StandardOpenOption.READ);
+    }
+
+    CompletableFuture<String> search(long hi, long lo) {
+        return searcher.searchRegion(hi, lo, channel);
+    }
+
+    /**
+     * Closes the channel, the reads still running fail with an AsynchronousCloseException.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+}
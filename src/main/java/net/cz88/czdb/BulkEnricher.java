@@ -0,0 +1,560 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.utils.IpParser;
+import org.apache.commons.cli.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * The BulkEnricher class appends the region of an IP column to every row of a large CSV, TSV or log file.
+ *
+ * The input is read through a channel in chunks of whole lines. Each chunk is enriched by a task of a fork-join pool,
+ * which searches all the IP addresses of the chunk with one searchBatch call on the shared DbSearcher.
+ * The enriched chunks are written in the order they were read, so the output rows are in the order of the input rows.
+ * At most maxInFlight chunks are read ahead of the writer: when the writer falls behind, the reader waits,
+ * which bounds the memory to about maxInFlight times the chunk size.
+ *
+ * A field starting with a double quote runs to the next double quote, so quoted CSV fields and the quoted request
+ * of a combined access log may contain the separator. A row whose IP column is missing or is not an IP literal
+ * of the database type, or whose IP address is not found, gets an empty region.
+ *
+ * It can be run from the command line, see main, or embedded:
+ * <pre>
+ * new BulkEnricher(searcher).setColumn(0).setSeparator(',').enrich(in, out);
+ * </pre>
+ */
+public class BulkEnricher {
+    // queued by the reader after its last chunk
+    private static final Future<Chunk> END_OF_INPUT = CompletableFuture.completedFuture(null);
+
+    private final DbSearcher searcher;
+    private int column = 0;
+    private byte separator = '\t';
+    private int chunkSize = 1 << 20;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxInFlight = 0;
+    private boolean header = false;
+
+    /**
+     * Creates an enricher searching the given searcher, which is shared by all the worker threads.
+     * MEMORY and MMAP searchers scale best, they never touch the file while searching.
+     *
+     * @param searcher the searcher of the IP addresses
+     */
+    public BulkEnricher(DbSearcher searcher) {
+        this.searcher = searcher;
+    }
+
+    /**
+     * Sets the index of the IP column, from 0. The default is 0.
+     *
+     * @param column the index of the IP column
+     * @return this enricher
+     */
+    public BulkEnricher setColumn(int column) {
+        if (column < 0) {
+            throw new IllegalArgumentException("Invalid column index: " + column);
+        }
+        this.column = column;
+        return this;
+    }
+
+    /**
+     * Sets the separator of the columns, which is also written before the region. The default is a tab.
+     *
+     * @param separator an ASCII character
+     * @return this enricher
+     */
+    public BulkEnricher setSeparator(char separator) {
+        if (separator == 0 || separator > 0x7F || separator == '\n' || separator == '\r' || separator == '"') {
+            throw new IllegalArgumentException("Invalid separator: " + (int) separator);
+        }
+        this.separator = (byte) separator;
+        return this;
+    }
+
+    /**
+     * Sets the number of bytes read into a chunk, each chunk being enriched by one task. The default is 1 MiB.
+     * A line longer than the chunk size gets a chunk of its own.
+     *
+     * @param chunkSize the number of bytes of a chunk
+     * @return this enricher
+     */
+    public BulkEnricher setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets the number of worker threads. The default is the number of processors.
+     *
+     * @param parallelism the number of worker threads
+     * @return this enricher
+     */
+    public BulkEnricher setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of chunks read but not written yet. The default, 0, means 4 chunks per worker thread.
+     *
+     * @param maxInFlight the maximum number of chunks in flight, 0 for the default
+     * @return this enricher
+     */
+    public BulkEnricher setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("Invalid max in flight: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Sets whether the first line is a header, which is written with a "region" column instead of being searched.
+     *
+     * @param header true if the first line is a header
+     * @return this enricher
+     */
+    public BulkEnricher setHeader(boolean header) {
+        this.header = header;
+        return this;
+    }
+
+    /**
+     * Enriches every line of the input and writes it to the output. Neither channel is closed.
+     *
+     * @param in the input
+     * @param out the output
+     * @return the number of lines written
+     * @throws IOException if an error occurs during reading, searching or writing
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public long enrich(ReadableByteChannel in, WritableByteChannel out) throws IOException, InterruptedException {
+        int capacity = maxInFlight > 0 ? maxInFlight : parallelism * 4;
+        BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<>(capacity);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        // the reader fills the queue in input order, the queue being bounded blocks it when the writer falls behind
+        ExecutorService readerExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "czdb-enrich-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        Future<?> reader = readerExecutor.submit(() -> {
+            try {
+                read(in, pending, pool);
+            } catch (IOException | RuntimeException | Error e) {
+                // the writer takes the chunks read before the error, then rethrows it at the end of the input
+                pending.put(END_OF_INPUT);
+                throw e;
+            }
+            // an interrupted reader queues no end, the writer has given up already
+            pending.put(END_OF_INPUT);
+            return null;
+        });
+
+        long lines = 0;
+        try {
+            while (true) {
+                Future<Chunk> next = pending.take();
+                if (next == END_OF_INPUT) {
+                    // rethrows the error of the reader, if any
+                    reader.get();
+                    break;
+                }
+
+                Chunk chunk = next.get();
+                write(out, ByteBuffer.wrap(chunk.output));
+                lines += chunk.lines;
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to enrich the input", cause);
+        } finally {
+            readerExecutor.shutdownNow();
+            pool.shutdownNow();
+        }
+        return lines;
+    }
+
+    /**
+     * Reads the input into chunks of whole lines, and submits the enrichment of each chunk to the pool.
+     */
+    private void read(ReadableByteChannel in, BlockingQueue<Future<Chunk>> pending, ForkJoinPool pool)
+            throws IOException, InterruptedException {
+        byte[] buf = new byte[chunkSize];
+        int filled = 0;
+        boolean first = true;
+        boolean eof = false;
+
+        while (!eof) {
+            ByteBuffer target = ByteBuffer.wrap(buf, filled, buf.length - filled);
+            while (target.hasRemaining()) {
+                if (in.read(target) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            filled = target.position();
+
+            // a chunk ends after its last line feed, the rest of the buffer starts the next chunk
+            int end = filled;
+            if (!eof) {
+                end = lastIndexOf(buf, (byte) '\n', filled) + 1;
+                if (end == 0) {
+                    // a single line longer than the chunk size
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    continue;
+                }
+            }
+            if (end == 0) {
+                break;
+            }
+
+            byte[] data = buf;
+            int length = end;
+            boolean skipFirst = first && header;
+            pending.put(pool.submit(() -> enrichChunk(data, length, skipFirst)));
+            first = false;
+
+            buf = new byte[Math.max(chunkSize, filled - end)];
+            System.arraycopy(data, end, buf, 0, filled - end);
+            filled -= end;
+        }
+    }
+
+    /**
+     * Enriches the lines of data before end, the first line being a header if headerLine is true.
+     */
+    private Chunk enrichChunk(byte[] data, int end, boolean headerLine) throws IOException {
+        // find the lines and their IP column
+        int[] lineStarts = new int[64];
+        int[] ipFrom = new int[64];
+        int[] ipTo = new int[64];
+        int lines = 0;
+        for (int p = 0; p < end; lines++) {
+            if (lines == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lines * 2);
+                ipFrom = Arrays.copyOf(ipFrom, lines * 2);
+                ipTo = Arrays.copyOf(ipTo, lines * 2);
+            }
+            lineStarts[lines] = p;
+            int lineEnd = indexOf(data, (byte) '\n', p, end);
+            findColumn(data, p, lineEnd < 0 ? end : lineEnd, lines, ipFrom, ipTo);
+            p = lineEnd < 0 ? end : lineEnd + 1;
+        }
+
+        String[] regions = searchColumn(data, lines, ipFrom, ipTo, headerLine ? 1 : 0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(end + end / 2);
+        for (int i = 0; i < lines; i++) {
+            int from = lineStarts[i];
+            int to = i + 1 < lines ? lineStarts[i + 1] : end;
+            // the region goes before the line break, which is kept as is
+            int contentEnd = to;
+            if (contentEnd > from && data[contentEnd - 1] == '\n') {
+                contentEnd--;
+            }
+            if (contentEnd > from && data[contentEnd - 1] == '\r') {
+                contentEnd--;
+            }
+
+            output.write(data, from, contentEnd - from);
+            output.write(separator);
+            if (i == 0 && headerLine) {
+                output.write("region".getBytes(StandardCharsets.UTF_8));
+            } else if (regions[i] != null) {
+                output.write(regions[i].getBytes(StandardCharsets.UTF_8));
+            }
+            output.write(data, contentEnd, to - contentEnd);
+        }
+
+        return new Chunk(output.toByteArray(), lines);
+    }
+
+    /**
+     * Searches the IP column of the lines from the first one, with one searchBatch call.
+     * The lines whose IP column is not an IP literal are left out of the batch.
+     */
+    private String[] searchColumn(byte[] data, int lines, int[] ipFrom, int[] ipTo, int first) throws IOException {
+        String[] regions = new String[lines];
+        int[] lineOfKey = new int[lines];
+        int keys = 0;
+        Ascii text = new Ascii(data);
+
+        if (searcher.getDbType() == DbType.IPV4) {
+            int[] ips = new int[lines];
+            for (int i = first; i < lines; i++) {
+                long ip = ipFrom[i] < 0 ? IpParser.INVALID : IpParser.parseIpv4(text, ipFrom[i], ipTo[i]);
+                if (ip != IpParser.INVALID) {
+                    ips[keys] = (int) ip;
+                    lineOfKey[keys++] = i;
+                }
+            }
+
+            String[] found = searcher.searchBatch(Arrays.copyOf(ips, keys));
+            for (int k = 0; k < keys; k++) {
+                regions[lineOfKey[k]] = found[k];
+            }
+        } else {
+            long[] ips = new long[lines * 2];
+            long[] key = new long[2];
+            for (int i = first; i < lines; i++) {
+                if (ipFrom[i] >= 0 && IpParser.parseIpv6(text, ipFrom[i], ipTo[i], key)) {
+                    ips[keys * 2] = key[0];
+                    ips[keys * 2 + 1] = key[1];
+                    lineOfKey[keys++] = i;
+                }
+            }
+
+            String[] found = searcher.searchBatch(Arrays.copyOf(ips, keys * 2));
+            for (int k = 0; k < keys; k++) {
+                regions[lineOfKey[k]] = found[k];
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Finds the IP column of the line between from and to, without its quotes.
+     * ipFrom[line] is -1 if the line has too few columns.
+     */
+    private void findColumn(byte[] data, int from, int to, int line, int[] ipFrom, int[] ipTo) {
+        if (to > from && data[to - 1] == '\r') {
+            to--;
+        }
+
+        int p = from;
+        for (int c = 0; ; c++) {
+            int fieldEnd;
+            if (p < to && data[p] == '"') {
+                int quote = indexOf(data, (byte) '"', p + 1, to);
+                fieldEnd = quote < 0 ? to : indexOf(data, separator, quote, to);
+            } else {
+                fieldEnd = indexOf(data, separator, p, to);
+            }
+            if (fieldEnd < 0) {
+                fieldEnd = to;
+            }
+
+            if (c == column) {
+                int start = p, end = fieldEnd;
+                if (end - start >= 2 && data[start] == '"' && data[end - 1] == '"') {
+                    start++;
+                    end--;
+                }
+                ipFrom[line] = start;
+                ipTo[line] = end;
+                return;
+            }
+            if (fieldEnd == to) {
+                ipFrom[line] = -1;
+                return;
+            }
+            p = fieldEnd + 1;
+        }
+    }
+
+    private static int indexOf(byte[] data, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte b, int to) {
+        for (int i = to - 1; i >= 0; i--) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * An enriched chunk, waiting in the queue to be written.
+     */
+    private static final class Chunk {
+        final byte[] output;
+        final int lines;
+
+        Chunk(byte[] output, int lines) {
+            this.output = output;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * A view of bytes as characters for IpParser, so no String is created for the IP columns.
+     * A non-ASCII byte becomes a character which is never part of an IP literal.
+     */
+    private static final class Ascii implements CharSequence {
+        private final byte[] data;
+
+        Ascii(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (data[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * The main method which is the entry point of the command line.
+     * It enriches the input file, or the standard input, and writes to the output file, or the standard output.
+     *
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) {
+        int exitCode = run(args);
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Runs the command line, and returns once the searcher is closed.
+     *
+     * @param args Command line arguments
+     * @return the exit code, 0 if the input was enriched, 1 otherwise
+     */
+    static int run(String[] args) {
+        Options options = new Options();
+        Option dbFilePathOption = new Option("d", "dbFilePath", true, "The path to the database file.");
+        dbFilePathOption.setRequired(true);
+        options.addOption(dbFilePathOption);
+
+        Option queryTypeOption = new Option("t", "queryType", true, "The type of the query. The valid types are MEMORY, MMAP, BTREE. Default MEMORY.");
+        options.addOption(queryTypeOption);
+
+        Option keyOption = new Option("k", "key", true, "The key used for decrypting the header block of the database file.");
+        keyOption.setRequired(true);
+        options.addOption(keyOption);
+
+        options.addOption(new Option("i", "input", true, "The input file. Default the standard input."));
+        options.addOption(new Option("o", "output", true, "The output file. Default the standard output."));
+        options.addOption(new Option("c", "column", true, "The index of the IP column, from 0. Default 0."));
+        options.addOption(new Option("s", "separator", true, "The separator of the columns: tab, comma, space or a single character. Default tab."));
+        options.addOption(new Option("H", "header", false, "The first line is a header."));
+        options.addOption(new Option("n", "threads", true, "The number of worker threads. Default the number of processors."));
+        options.addOption(new Option("z", "chunkSize", true, "The number of bytes enriched by a task. Default 1048576."));
+        options.addOption(new Option("f", "inFlight", true, "The maximum number of chunks read ahead of the output. Default 4 per thread."));
+        options.addOption(new Option("r", "regionDictionary", false, "Decode every region when the database is loaded."));
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            formatter.printHelp("BulkEnricher", options);
+            return 1;
+        }
+
+        int exitCode = 0;
+        DbSearcher searcher = null;
+        try {
+            QueryType queryType = QueryType.valueOf(cmd.getOptionValue("queryType", "MEMORY").toUpperCase());
+            DbSearcherConfig config = new DbSearcherConfig().setRegionDictionary(cmd.hasOption("regionDictionary"));
+            searcher = new DbSearcher(cmd.getOptionValue("dbFilePath"), queryType, cmd.getOptionValue("key"), config);
+
+            BulkEnricher enricher = new BulkEnricher(searcher)
+                    .setColumn(Integer.parseInt(cmd.getOptionValue("column", "0")))
+                    .setSeparator(separatorOf(cmd.getOptionValue("separator", "tab")))
+                    .setHeader(cmd.hasOption("header"))
+                    .setChunkSize(Integer.parseInt(cmd.getOptionValue("chunkSize", String.valueOf(1 << 20))))
+                    .setMaxInFlight(Integer.parseInt(cmd.getOptionValue("inFlight", "0")));
+            if (cmd.hasOption("threads")) {
+                enricher.setParallelism(Integer.parseInt(cmd.getOptionValue("threads")));
+            }
+
+            long start = System.nanoTime();
+            long lines;
+            try (ReadableByteChannel in = cmd.hasOption("input")
+                    ? FileChannel.open(Paths.get(cmd.getOptionValue("input")), StandardOpenOption.READ)
+                    : Channels.newChannel(System.in);
+                 WritableByteChannel out = cmd.hasOption("output")
+                         ? new FileOutputStream(cmd.getOptionValue("output")).getChannel()
+                         : Channels.newChannel(System.out)) {
+                lines = enricher.enrich(in, out);
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.println("Lines: " + lines);
+            System.err.println("Total time: " + seconds + " seconds");
+            System.err.println("Lines per second: " + (long) (lines / seconds));
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            exitCode = 1;
+        } finally {
+            if (searcher != null) {
+                searcher.close();
+            }
+        }
+        return exitCode;
+    }
+
+    static char separatorOf(String name) {
+        switch (name.toLowerCase()) {
+            case "tab":
+                return '\t';
+            case "comma":
+                return ',';
+            case "space":
+                return ' ';
+            default:
+                if (name.length() != 1) {
+                    throw new IllegalArgumentException("Invalid separator: " + name);
+                }
+                return name.charAt(0);
+        }
+    }
+}
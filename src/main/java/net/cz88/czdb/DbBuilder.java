@@ -0,0 +1,582 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.constant.DbConstant;
+import net.cz88.czdb.entity.DecryptedBlock;
+import net.cz88.czdb.entity.HeaderBlock;
+import net.cz88.czdb.entity.HyperHeaderBlock;
+import net.cz88.czdb.entity.IndexBlock;
+import net.cz88.czdb.utils.ByteUtil;
+import net.cz88.czdb.utils.IpParser;
+import org.apache.commons.cli.*;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The DbBuilder class writes an encrypted database file, which DbSearcher can search, from IP ranges and their regions.
+ *
+ * The ranges are added in ascending order, without overlapping, each with the columns of its region.
+ * The first geoColumnCount columns are packed into the geo map, which is shared by all the ranges with the same
+ * geo columns, and the selected ones are decoded into the region, each followed by a tab, an empty one as "null".
+ * The other columns are joined by tabs and follow the geo columns in the region.
+ * Ranges with the same region share one data block.
+ *
+ * The index blocks are spooled to a temporary file while the ranges are added, so the memory holds only
+ * the distinct regions and the header, and databases of tens of millions of ranges can be built.
+ * <pre>
+ * try (DbBuilder builder = new DbBuilder(DbType.IPV4, key).setGeoColumnCount(1)) {
+ *     builder.add("1.0.0.0", "1.0.0.255", "中国–广东–深圳", "电信");
+ *     builder.build("ipv4.czdb");
+ * }
+ * </pre>
+ * It can also be run from the command line, see main.
+ */
+public class DbBuilder implements Closeable {
+    /**
+     * The default number of index blocks in a segment of the header.
+     */
+    public static final int DEFAULT_HEADER_GRANULARITY = 50;
+
+    // the largest geo map offset and the largest length of a data block or of a geo entry, as stored in the file
+    private static final int MAX_GEO_MAP_SIZE = 1 << 24;
+    private static final int MAX_BLOCK_LENGTH = 0xFF;
+
+    private final DbType dbType;
+    private final String key;
+    private final int ipLength;
+    private final int blockLength;
+
+    private int headerGranularity = DEFAULT_HEADER_GRANULARITY;
+    private int geoColumnCount = 0;
+    private long geoColumnSelection = -1L;
+    private int clientId = 0;
+    private int expirationDate = 991231;
+    private int randomSize = 16;
+
+    // the distinct data blocks, and the geo entries of the geo map, by content
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private final Map<String, Long> dataBlocks = new HashMap<>();
+    private final ByteArrayOutputStream geoMap = new ByteArrayOutputStream();
+    private final Map<List<String>, Long> geoEntries = new HashMap<>();
+
+    // the start IP of every header line, and the number of the index block it points to
+    private final ByteArrayOutputStream headerIps = new ByteArrayOutputStream();
+    private int[] headerBlocks = new int[64];
+    private int headerLines = 0;
+
+    // the index blocks, with data pointers relative to the first data block
+    private Path indexFile;
+    private OutputStream index;
+    private int count = 0;
+    private byte[] lastStartIp;
+    private byte[] lastEndIp;
+    private boolean built = false;
+
+    /**
+     * Creates a builder of a database of the given type.
+     *
+     * @param dbType the type of the database
+     * @param key the base64 key which encrypts the header block and the geo map, as given to DbSearcher
+     */
+    public DbBuilder(DbType dbType, String key) {
+        this.dbType = dbType;
+        this.key = key;
+        this.ipLength = dbType == DbType.IPV4 ? 4 : 16;
+        this.blockLength = IndexBlock.getIndexBlockLength(dbType);
+    }
+
+    /**
+     * Sets the number of index blocks between two header lines. The default is DEFAULT_HEADER_GRANULARITY.
+     * A smaller segment makes the header larger, and the binary search in a segment shorter,
+     * which matters most in BTREE mode where a whole segment is read from the file.
+     *
+     * @param headerGranularity the number of index blocks in a segment, at least 1
+     * @return this builder
+     */
+    public DbBuilder setHeaderGranularity(int headerGranularity) {
+        checkNotStarted();
+        if (headerGranularity < 1) {
+            throw new IllegalArgumentException("Invalid header granularity: " + headerGranularity);
+        }
+        this.headerGranularity = headerGranularity;
+        return this;
+    }
+
+    /**
+     * Sets the number of leading region columns packed into the geo map. The default is 0, no geo map.
+     *
+     * @param geoColumnCount the number of geo columns, from 0 to 31
+     * @return this builder
+     */
+    public DbBuilder setGeoColumnCount(int geoColumnCount) {
+        checkNotStarted();
+        if (geoColumnCount < 0 || geoColumnCount > 31) {
+            throw new IllegalArgumentException("Invalid geo column count: " + geoColumnCount);
+        }
+        this.geoColumnCount = geoColumnCount;
+        return this;
+    }
+
+    /**
+     * Sets the geo columns decoded into the region, bit i selecting geo column i. The default selects them all.
+     * The geo columns which are not selected stay in the geo map.
+     *
+     * @param geoColumnSelection the selected geo columns
+     * @return this builder
+     */
+    public DbBuilder setGeoColumnSelection(long geoColumnSelection) {
+        checkNotStarted();
+        this.geoColumnSelection = geoColumnSelection;
+        return this;
+    }
+
+    /**
+     * Sets the client ID written in the header block. The default is 0.
+     *
+     * @param clientId the client ID, from 0 to 4095
+     * @return this builder
+     */
+    public DbBuilder setClientId(int clientId) {
+        checkNotStarted();
+        if (clientId < 0 || clientId > 0xFFF) {
+            throw new IllegalArgumentException("Invalid client ID: " + clientId);
+        }
+        this.clientId = clientId;
+        return this;
+    }
+
+    /**
+     * Sets the expiration date written in the header block, as yyMMdd. The default is 991231.
+     *
+     * @param expirationDate the expiration date
+     * @return this builder
+     */
+    public DbBuilder setExpirationDate(int expirationDate) {
+        checkNotStarted();
+        if (expirationDate < 0 || expirationDate > 991231) {
+            throw new IllegalArgumentException("Invalid expiration date: " + expirationDate);
+        }
+        this.expirationDate = expirationDate;
+        return this;
+    }
+
+    /**
+     * Sets the number of random bytes written after the header block. The default is 16.
+     *
+     * @param randomSize the number of random bytes
+     * @return this builder
+     */
+    public DbBuilder setRandomSize(int randomSize) {
+        checkNotStarted();
+        if (randomSize < 0) {
+            throw new IllegalArgumentException("Invalid random size: " + randomSize);
+        }
+        this.randomSize = randomSize;
+        return this;
+    }
+
+    /**
+     * Adds a range of IP addresses, given as IP literals of the database type.
+     *
+     * @param startIp the first IP address of the range
+     * @param endIp the last IP address of the range
+     * @param columns the columns of the region
+     * @throws IllegalArgumentException if an IP address is invalid, or the range is not after the previous one
+     * @throws IOException if the index cannot be spooled
+     */
+    public void add(String startIp, String endIp, String... columns) throws IOException {
+        add(parse(startIp), parse(endIp), columns);
+    }
+
+    /**
+     * Adds a range of IP addresses, given in network byte order, 4 bytes for IPv4 or 16 bytes for IPv6.
+     *
+     * @param startIp the first IP address of the range
+     * @param endIp the last IP address of the range
+     * @param columns the columns of the region
+     * @throws IllegalArgumentException if an IP address is invalid, or the range is not after the previous one
+     * @throws IOException if the index cannot be spooled
+     */
+    public void add(byte[] startIp, byte[] endIp, String... columns) throws IOException {
+        if (built) {
+            throw new IllegalStateException("The database is already built.");
+        }
+        if (startIp.length != ipLength || endIp.length != ipLength) {
+            throw new IllegalArgumentException("Invalid IP address length.");
+        }
+        if (compare(startIp, endIp) > 0) {
+            throw new IllegalArgumentException("The start IP is after the end IP.");
+        }
+        if (lastEndIp != null && compare(startIp, lastEndIp) <= 0) {
+            throw new IllegalArgumentException("The ranges are not sorted or overlap.");
+        }
+        if (columns.length < geoColumnCount) {
+            throw new IllegalArgumentException("Expected at least " + geoColumnCount + " columns, found " + columns.length);
+        }
+
+        if (index == null) {
+            indexFile = Files.createTempFile("czdb-index", ".tmp");
+            index = new BufferedOutputStream(Files.newOutputStream(indexFile), 1 << 16);
+        }
+
+        long dataBlock = dataBlockOf(columns);
+        IndexBlock block = new IndexBlock(startIp, endIp, (int) (dataBlock >>> 8), (int) dataBlock & 0xFF, dbType);
+        index.write(block.getBytes());
+
+        if (count % headerGranularity == 0) {
+            addHeaderLine(startIp, count);
+        }
+        lastStartIp = startIp.clone();
+        lastEndIp = endIp.clone();
+        count++;
+    }
+
+    /**
+     * Writes the database file.
+     *
+     * @param dbFile the path of the database file
+     * @throws IllegalStateException if no range was added
+     * @throws IOException if the file cannot be written
+     */
+    public void build(String dbFile) throws IOException {
+        checkBuildable();
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dbFile), 1 << 16)) {
+            build(os);
+        }
+    }
+
+    /**
+     * Writes the database to a stream, which is not closed. Nothing can be added afterwards.
+     *
+     * @param os the stream to write to
+     * @throws IllegalStateException if no range was added
+     * @throws IOException if the database cannot be written
+     */
+    public void build(OutputStream os) throws IOException {
+        checkBuildable();
+        built = true;
+        index.close();
+
+        // the last header line points to the last index block
+        if (headerBlocks[headerLines - 1] != count - 1) {
+            addHeaderLine(lastStartIp, count - 1);
+        }
+
+        long columnSelection = geoColumnCount == 0 ? 0 : (geoColumnSelection & ((1L << geoColumnCount) - 1)) << 1 | 1;
+        int headerSize = headerLines * HeaderBlock.HEADER_LINE_SIZE;
+        long dataStart = DbConstant.SUPER_PART_LENGTH + headerSize;
+        long firstIndexPtr = dataStart + data.size();
+        long lastIndexPtr = firstIndexPtr + (long) (count - 1) * blockLength;
+        long fileSize = lastIndexPtr + blockLength + 4 + (columnSelection == 0 ? 0 : 4 + geoMap.size());
+        // the pointers of the file are unsigned 32-bit integers
+        if (fileSize > 0xFFFFFFFFL) {
+            throw new IllegalStateException("The database is larger than 4GB: " + fileSize);
+        }
+
+        writeHyperHeader(os);
+
+        byte[] superPart = new byte[DbConstant.SUPER_PART_LENGTH];
+        superPart[0] = (byte) (dbType == DbType.IPV4 ? 0 : 1);
+        ByteUtil.writeIntLong(superPart, DbConstant.FILE_SIZE_PTR, fileSize);
+        ByteUtil.writeIntLong(superPart, DbConstant.FIRST_INDEX_PTR, firstIndexPtr);
+        ByteUtil.writeIntLong(superPart, DbConstant.HEADER_BLOCK_PTR, headerSize);
+        ByteUtil.writeIntLong(superPart, DbConstant.END_INDEX_PTR, lastIndexPtr);
+        os.write(superPart);
+
+        byte[] ips = headerIps.toByteArray();
+        for (int i = 0; i < headerLines; i++) {
+            byte[] ip = Arrays.copyOfRange(ips, i * ipLength, (i + 1) * ipLength);
+            os.write(new HeaderBlock(ip, (int) (firstIndexPtr + (long) headerBlocks[i] * blockLength)).getBytes());
+        }
+
+        data.writeTo(os);
+
+        // the spooled data pointers are moved past the super part and the header
+        byte[] blocks = new byte[blockLength * 4096];
+        int dataPtrOffset = ipLength * 2;
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16)) {
+            for (int remaining = count; remaining > 0; ) {
+                int n = Math.min(remaining, 4096);
+                ByteUtil.readFully(is, blocks, 0, n * blockLength);
+                for (int i = 0; i < n; i++) {
+                    int p = i * blockLength + dataPtrOffset;
+                    ByteUtil.writeIntLong(blocks, p, ByteUtil.getIntLong(blocks, p) + dataStart);
+                }
+                os.write(blocks, 0, n * blockLength);
+                remaining -= n;
+            }
+        }
+
+        byte[] columns = new byte[4];
+        ByteUtil.writeIntLong(columns, 0, columnSelection);
+        os.write(columns);
+        if (columnSelection != 0) {
+            byte[] size = new byte[4];
+            ByteUtil.writeIntLong(size, 0, geoMap.size());
+            os.write(size);
+            // the geo map is XOR-ed with the key, which the same Decryptor undoes
+            byte[] encrypted = geoMap.toByteArray();
+            new Decryptor(key).decrypt(encrypted, 0, encrypted.length, 0);
+            os.write(encrypted);
+        }
+        os.flush();
+
+        close();
+    }
+
+    /**
+     * Deletes the spooled index. The builder cannot be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        built = true;
+        if (index != null) {
+            index.close();
+        }
+        if (indexFile != null) {
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    /**
+     * Returns the data block of the given columns, as its pointer relative to the first data block and its length
+     * packed like DbSearcher.dataBlockOf, writing it if no range had these columns before.
+     */
+    private long dataBlockOf(String[] columns) throws IOException {
+        long geoPosMixSize = 0;
+        if (geoColumnCount > 0) {
+            geoPosMixSize = geoEntryOf(Arrays.asList(columns).subList(0, geoColumnCount));
+        }
+
+        StringBuilder otherData = new StringBuilder();
+        for (int i = geoColumnCount; i < columns.length; i++) {
+            if (i > geoColumnCount) {
+                otherData.append('\t');
+            }
+            otherData.append(columns[i]);
+        }
+
+        String content = geoPosMixSize + "\t" + otherData;
+        Long dataBlock = dataBlocks.get(content);
+        if (dataBlock != null) {
+            return dataBlock;
+        }
+
+        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+        packer.packLong(geoPosMixSize);
+        packer.packString(otherData.toString());
+        byte[] bytes = packer.toByteArray();
+        if (bytes.length > MAX_BLOCK_LENGTH) {
+            throw new IllegalArgumentException("The region is longer than " + MAX_BLOCK_LENGTH + " bytes: " + otherData);
+        }
+
+        dataBlock = (long) data.size() << 8 | bytes.length;
+        data.write(bytes);
+        dataBlocks.put(content, dataBlock);
+        return dataBlock;
+    }
+
+    /**
+     * Returns the length and the offset of the geo entry of the given geo columns, packed as the data blocks store them,
+     * adding it to the geo map if no range had these geo columns before.
+     */
+    private long geoEntryOf(List<String> geoColumns) throws IOException {
+        Long entry = geoEntries.get(geoColumns);
+        if (entry != null) {
+            return entry;
+        }
+
+        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+        packer.packArrayHeader(geoColumns.size());
+        for (String column : geoColumns) {
+            packer.packString(column);
+        }
+        byte[] bytes = packer.toByteArray();
+        if (bytes.length > MAX_BLOCK_LENGTH) {
+            throw new IllegalArgumentException("The geo columns are longer than " + MAX_BLOCK_LENGTH + " bytes: " + geoColumns);
+        }
+        if (geoMap.size() >= MAX_GEO_MAP_SIZE) {
+            throw new IllegalStateException("The geo map is larger than " + MAX_GEO_MAP_SIZE + " bytes.");
+        }
+
+        entry = (long) bytes.length << 24 | geoMap.size();
+        geoMap.write(bytes);
+        geoEntries.put(geoColumns, entry);
+        return entry;
+    }
+
+    private void addHeaderLine(byte[] startIp, int block) {
+        if (headerLines == headerBlocks.length) {
+            headerBlocks = Arrays.copyOf(headerBlocks, headerLines * 2);
+        }
+        headerIps.write(startIp, 0, ipLength);
+        headerBlocks[headerLines++] = block;
+    }
+
+    private void writeHyperHeader(OutputStream os) throws IOException {
+        DecryptedBlock decryptedBlock = new DecryptedBlock();
+        decryptedBlock.setClientId(clientId);
+        decryptedBlock.setExpirationDate(expirationDate);
+        decryptedBlock.setRandomSize(randomSize);
+
+        byte[] encrypted;
+        try {
+            encrypted = decryptedBlock.toEncryptedBytes(key);
+        } catch (Exception e) {
+            throw new IOException("Cannot encrypt the header block.", e);
+        }
+
+        HyperHeaderBlock hyperHeaderBlock = new HyperHeaderBlock();
+        hyperHeaderBlock.setVersion(1);
+        hyperHeaderBlock.setClientId(clientId);
+        hyperHeaderBlock.setEncryptedBlockSize(encrypted.length);
+        os.write(hyperHeaderBlock.toBytes());
+        os.write(encrypted);
+
+        byte[] random = new byte[randomSize];
+        new SecureRandom().nextBytes(random);
+        os.write(random);
+    }
+
+    private byte[] parse(String ip) {
+        if (dbType == DbType.IPV4) {
+            long ipv4 = IpParser.parseIpv4(ip);
+            if (ipv4 == IpParser.INVALID) {
+                throw new IllegalArgumentException("Invalid IP address: " + ip);
+            }
+            return toBytes(ipv4, 4);
+        }
+
+        long[] key = new long[2];
+        if (!IpParser.parseIpv6(ip, key)) {
+            throw new IllegalArgumentException("Invalid IP address: " + ip);
+        }
+        byte[] bytes = new byte[16];
+        System.arraycopy(toBytes(key[0], 8), 0, bytes, 0, 8);
+        System.arraycopy(toBytes(key[1], 8), 0, bytes, 8, 8);
+        return bytes;
+    }
+
+    /**
+     * Returns the low length bytes of a value in network byte order.
+     */
+    private static byte[] toBytes(long value, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (value >>> ((length - 1 - i) * 8));
+        }
+        return bytes;
+    }
+
+    private void checkBuildable() {
+        if (built) {
+            throw new IllegalStateException("The database is already built.");
+        }
+        if (count == 0) {
+            throw new IllegalStateException("No range was added.");
+        }
+    }
+
+    private void checkNotStarted() {
+        if (count > 0 || built) {
+            throw new IllegalStateException("The settings cannot change once a range is added.");
+        }
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Builds a database file from a text file of ranges, one per line: the start IP, the end IP, then the region columns,
+     * separated by the separator. Empty lines and lines starting with # are skipped.
+     *
+     * @param args the command line arguments, see the printed help
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+        Option inputOption = new Option("i", "input", true, "The file of sorted ranges: start IP, end IP, region columns.");
+        inputOption.setRequired(true);
+        options.addOption(inputOption);
+
+        Option outputOption = new Option("o", "output", true, "The database file to write.");
+        outputOption.setRequired(true);
+        options.addOption(outputOption);
+
+        Option dbTypeOption = new Option("t", "dbType", true, "The type of the database: IPV4 or IPV6.");
+        dbTypeOption.setRequired(true);
+        options.addOption(dbTypeOption);
+
+        Option keyOption = new Option("k", "key", true, "The base64 key which encrypts the database.");
+        keyOption.setRequired(true);
+        options.addOption(keyOption);
+
+        options.addOption(new Option("s", "separator", true, "The separator of the columns: tab, comma, space or a single character. Default comma."));
+        options.addOption(new Option("g", "geoColumns", true, "The number of leading region columns packed into the geo map. Default 0."));
+        options.addOption(new Option("n", "headerGranularity", true, "The number of index blocks in a header segment. Default " + DEFAULT_HEADER_GRANULARITY + "."));
+        options.addOption(new Option("c", "clientId", true, "The client ID. Default 0."));
+        options.addOption(new Option("e", "expirationDate", true, "The expiration date as yyMMdd. Default 991231."));
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            formatter.printHelp("DbBuilder", options);
+
+            System.exit(1);
+            return;
+        }
+
+        long start = System.nanoTime();
+        String line = null;
+        int lineNumber = 0;
+        try (DbBuilder builder = new DbBuilder(DbType.valueOf(cmd.getOptionValue("dbType").toUpperCase()), cmd.getOptionValue("key"));
+             BufferedReader reader = Files.newBufferedReader(Paths.get(cmd.getOptionValue("input")), StandardCharsets.UTF_8)) {
+            builder.setGeoColumnCount(Integer.parseInt(cmd.getOptionValue("geoColumns", "0")))
+                    .setHeaderGranularity(Integer.parseInt(cmd.getOptionValue("headerGranularity", String.valueOf(DEFAULT_HEADER_GRANULARITY))))
+                    .setClientId(Integer.parseInt(cmd.getOptionValue("clientId", "0")))
+                    .setExpirationDate(Integer.parseInt(cmd.getOptionValue("expirationDate", "991231")));
+            String separator = String.valueOf(BulkEnricher.separatorOf(cmd.getOptionValue("separator", "comma")));
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(Pattern.quote(separator), -1);
+                if (fields.length < 2) {
+                    throw new IllegalArgumentException("Expected a start IP and an end IP");
+                }
+                builder.add(fields[0].trim(), fields[1].trim(), Arrays.copyOfRange(fields, 2, fields.length));
+            }
+            line = null;
+
+            builder.build(cmd.getOptionValue("output"));
+            System.err.println("Ranges: " + builder.count);
+            System.err.println("Total time: " + (System.nanoTime() - start) / 1e9 + " seconds");
+        } catch (Exception e) {
+            System.err.println(line == null ? e.getMessage() : "Line " + lineNumber + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
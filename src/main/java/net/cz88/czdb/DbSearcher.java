@@ -2,30 +2,46 @@ package net.cz88.czdb;
 
 import net.cz88.czdb.constant.DbConstant;
 import net.cz88.czdb.entity.DataBlock;
+import net.cz88.czdb.entity.GeoColumnCache;
 import net.cz88.czdb.entity.HyperHeaderBlock;
 import net.cz88.czdb.entity.IndexBlock;
+import net.cz88.czdb.entity.RegionCache;
 import net.cz88.czdb.exception.IpFormatException;
 import net.cz88.czdb.utils.ByteUtil;
 import net.cz88.czdb.utils.HyperHeaderDecoder;
+import net.cz88.czdb.utils.IpParser;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
-import java.util.regex.Pattern;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 /**
  * The DbSearcher class provides methods to search for data in a database.
- * It supports three types of search algorithms: memory, binary, and B-tree.
- * The type of the database (IPv4 or IPv6) and the type of the query (MEMORY, BINARY, BTREE) are determined at runtime.
+ * It supports three types of search algorithms: memory, mmap, and B-tree.
+ * The type of the database (IPv4 or IPv6) and the type of the query (MEMORY, MMAP, BTREE) are determined at runtime.
  * The class also provides methods to initialize the search parameters based on the query type, and to get the region through the IP address.
- * The DbSearcher class uses a RandomAccessFile to read from and write to the database file.
- * For B-tree search, it uses a 2D byte array and an integer array to represent the start IP and the data pointer of each index block.
- * For memory and binary search, it uses a byte array to represent the original binary string of the database.
+ * The database is addressed by long offsets, its pointers being unsigned 32-bit integers, and the header is decoded
+ * into primitive arrays of the start IP and the pointer of each index segment, which all the modes search first.
+ * For memory search, the database is loaded into a byte array, or into an off-heap DbStorage when it does not fit,
+ * and its index blocks are decoded into a MemoryIndex.
+ * For mmap search, the database file is mapped into a read-only DbStorage.
+ * For B-tree search, the index segment and the data block are read with positional reads on a FileChannel.
  * The class also provides a method to close the database.
  */
 public class DbSearcher {
@@ -35,27 +51,42 @@ public class DbSearcher {
     // Length of the IP bytes
     private int ipBytesLength;
 
-    // Enum representing the type of the query (MEMORY, BINARY, BTREE)
+    // Enum representing the type of the query (MEMORY, MMAP, BTREE)
     private final QueryType queryType;
 
     // Total size of the header block in the database
     private long totalHeaderBlockSize;
 
     /**
-     * Handler for accessing the database file.
-     * It is used to read from and write to the file.
+     * The channel of the database file, kept open in BTREE mode only.
+     * It is shared by all threads, and only positional reads are performed on it while searching.
+     * A handle of SearcherPool opens its own channel on its first read.
      */
-    private RandomAccessFile raf = null;
+    private volatile FileChannel channel = null;
+
+    // Path of the database file, used to reopen the file handler, and the size of the hyper header in front of the database
+    private String dbFile;
+    private int fileOffset;
+
+    // Whether close() has been called
+    private volatile boolean closed = false;
 
     /**
-     * These are used only for B-tree search.
-     * HeaderSip is a 2D byte array representing the start IP of each index block.
-     * HeaderPtr is an integer array representing the data pointer of each index block.
-     * headerLength is the number of index blocks in the header.
+     * These are used to find the index segment of an IP address.
+     * HeaderSipHigh and HeaderSipLow are the high and low 64 bits of the start IP of each index segment,
+     * an IPv4 start IP is kept in the top 32 bits of HeaderSipHigh.
+     * HeaderPtr is a long array representing the pointer to the first index block of each segment.
+     * headerLength is the number of index segments in the header.
+     * maxSegmentLength is the size in bytes of the largest index segment, right border block included.
      */
-    private byte[][] HeaderSip = null;
-    private int[] HeaderPtr = null;
+    private long[] HeaderSipHigh = null;
+    private long[] HeaderSipLow = null;
+    private long[] HeaderPtr = null;
     private int headerLength;
+    private int maxSegmentLength;
+
+    // The trie finding the header line from the leading bits of a key, null unless enabled by DbSearcherConfig.setHeaderTrie
+    private HeaderTrie headerTrie = null;
 
     /**
      * These are used for memory and binary search.
@@ -64,183 +95,551 @@ public class DbSearcher {
      * totalIndexBlocks is the total number of index blocks.
      */
     private long firstIndexPtr = 0;
+    private long lastIndexPtr = 0;
     private int totalIndexBlocks = 0;
 
     /**
      * This is used only for memory search.
-     * It is the original binary string of the database.
+     * It is the original binary string of the database, unless the database does not fit in a byte array,
+     * in which case it is copied into dbStorage.
      */
     private byte[] dbBinStr = null;
 
+    /**
+     * This is used only for memory search.
+     * It is the index blocks of the database decoded into primitive arrays.
+     */
+    private MemoryIndex memoryIndex = null;
+
+    /**
+     * The decoded region of every distinct data block, null unless enabled by DbSearcherConfig.setRegionDictionary.
+     */
+    private RegionDictionary regionDictionary = null;
+
+    /**
+     * The decoded geo columns by their offset in geoMapData, null unless enabled by DbSearcherConfig.setGeoColumnCacheSize.
+     */
+    private GeoColumnCache geoColumnCache = null;
+
+    /**
+     * The regions of the searched IP addresses by their key, null unless enabled by DbSearcherConfig.setRegionCacheSize.
+     * An address found in no index block is cached as NOT_FOUND.
+     */
+    private RegionCache regionCache = null;
+
+    /**
+     * The time taken by each phase of the loading of the database.
+     */
+    private LoadTimings loadTimings = null;
+
+    /**
+     * The metrics of the searches, null unless enabled by DbSearcherConfig.setMetrics.
+     * Every search checks it once, so the searches cost nothing more when it is disabled.
+     */
+    private DbSearcherMetrics metrics = null;
+
+    /**
+     * This is used for mmap search, and for memory search of a database larger than a byte array.
+     * It is a read-only mapping, or an off-heap copy, of the database file, starting right after the hyper header,
+     * addressed by long offsets. Only absolute reads are performed on it, so it can be shared by all threads.
+     */
+    private DbStorage dbStorage = null;
+
+    // The number of bytes read at once from the start of the database in BTREE mode, which usually covers the header
+    private static final int HEADER_READ_SIZE = 64 << 10;
+
+    // The largest database loaded into a byte array in memory mode, a larger one is copied outside of the Java heap
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    // The region cached for an IP address found in no index block, told apart from a region by its identity
+    private static final String NOT_FOUND = new String("");
+
+    // Scratch array of the current thread receiving a parsed IPv6 address
+    private static final ThreadLocal<long[]> ipv6Keys = ThreadLocal.withInitial(() -> new long[2]);
+
+    // Buffers of the current thread for the data blocks, and for the index segments in btree search
+    private final ThreadLocal<SearchBuffers> searchBuffers = ThreadLocal.withInitial(this::newSearchBuffers);
+
+    // The searcher whose database a handle of SearcherPool shares, and the buffers of the handle, null otherwise
+    private final DbSearcher shared;
+    private final SearchBuffers handleBuffers;
+
+    // The last ranges found by the current thread, null unless enabled by DbSearcherConfig.setRecentRangeCount
+    private ThreadLocal<RecentRanges> recentRanges = null;
+
     private long columnSelection = 0;
     private byte[] geoMapData = null;
 
+    // The asynchronous searches in BTREE mode, created by the first call to searchAsync
+    private volatile AsyncSearch asyncSearch = null;
+
     /**
      * Constructor for DbSearcher class.
      * Initializes the DbSearcher instance based on the provided database file, query type, and key.
      * Depending on the query type, it calls the appropriate initialization method.
      *
      * @param dbFile The path to the database file.
-     * @param queryType The type of the query (MEMORY, BINARY, BTREE).
+     * @param queryType The type of the query (MEMORY, MMAP, BTREE).
      * @param key The key used for decrypting the header block of the database file.
-     * @throws Exception If an error occurs during the decryption of the header block or the initialization of the RandomAccessFile.
+     * @throws Exception If an error occurs during the decryption of the header block or the reading of the database file.
      */
     public DbSearcher(String dbFile, QueryType queryType, String key) throws Exception {
-        this.queryType = queryType;
+        this(dbFile, queryType, key, new DbSearcherConfig());
+    }
 
-        HyperHeaderBlock headerBlock;
+    /**
+     * Constructor for DbSearcher class with optional settings.
+     * Initializes the DbSearcher instance like DbSearcher(String, QueryType, String),
+     * then applies the settings of the config.
+     *
+     * @param dbFile The path to the database file.
+     * @param queryType The type of the query (MEMORY, MMAP, BTREE).
+     * @param key The key used for decrypting the header block of the database file.
+     * @param config The optional settings.
+     * @throws Exception If an error occurs during the decryption of the header block or the reading of the database file.
+     */
+    public DbSearcher(String dbFile, QueryType queryType, String key, DbSearcherConfig config) throws Exception {
+        LoadTimings timings = new LoadTimings(System.nanoTime());
+        this.queryType = queryType;
+        this.dbFile = dbFile;
+        this.shared = null;
+        this.handleBuffers = null;
 
-        try (InputStream is = Files.newInputStream(Paths.get(dbFile))) {
-            headerBlock = HyperHeaderDecoder.decrypt(is, key);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        // the file is opened once, and read from start to end: the hyper header, then the database or its header
+        FileChannel fc = FileChannel.open(Paths.get(dbFile), StandardOpenOption.READ);
+        boolean keepOpen = false;
+        try {
+            HyperHeaderBlock headerBlock;
+            try {
+                headerBlock = HyperHeaderDecoder.decrypt(Channels.newInputStream(fc), key);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            this.fileOffset = headerBlock.getHeaderSize();
+            long size = fc.size() - fileOffset;
+            timings.record(LoadTimings.HYPER_HEADER);
+
+            if (queryType == QueryType.MEMORY) {
+                fc.position(fileOffset);
+                initializeForMemorySearch(Channels.newInputStream(fc), size, key, config.isOffHeap(), timings);
+            } else if (queryType == QueryType.MMAP) {
+                initializeForMmapSearch(fc, size, key, timings);
+            } else if (queryType == QueryType.BTREE) {
+                initializeForBtreeSearch(fc, size, key, timings);
+                channel = fc;
+                keepOpen = true;
+            }
+        } finally {
+            if (!keepOpen) {
+                fc.close();
+            }
         }
 
-        raf = new Cz88RandomAccessFile(dbFile, "r", headerBlock.getHeaderSize());
-
-        // set db type
-        raf.seek(0);
-        byte[] superBytes = new byte[DbConstant.SUPER_PART_LENGTH];
-        raf.readFully(superBytes, 0, superBytes.length);
-        dbType = (superBytes[0] & 1) == 0 ? DbType.IPV4 : DbType.IPV6;
-        ipBytesLength = dbType == DbType.IPV4 ? 4 : 16;
-
-        // load geo setting
-        loadGeoSetting(raf, key);
-
-        if (queryType == QueryType.MEMORY) {
-            initializeForMemorySearch();
-        } else if (queryType == QueryType.BTREE) {
-            initBtreeModeParam(raf);
-        }
+        applyConfig(config, dbFile, timings);
     }
 
+    /**
+     * Constructor for DbSearcher class from a stream, such as a classpath resource, in MEMORY mode only.
+     * See DbSearcher(InputStream, QueryType, String, DbSearcherConfig).
+     *
+     * @param is The stream of the database file, which is closed once it is read.
+     * @param queryType The type of the query, which must be MEMORY.
+     * @param key The key used for decrypting the header block of the database file.
+     * @throws Exception If an error occurs during the decryption of the header block or the reading of the stream.
+     */
     public DbSearcher(InputStream is, QueryType queryType, String key) throws Exception {
+        this(is, queryType, key, new DbSearcherConfig());
+    }
+
+    /**
+     * Constructor for DbSearcher class from a stream with optional settings, in MEMORY mode only.
+     * The stream may be the database file as it is, or compressed with gzip or zlib, which is detected from its first bytes.
+     * The size of the database is read from its super part first, so the database is read straight into a buffer
+     * of that size, without a second copy, see DbSearcherConfig.setOffHeap.
+     *
+     * @param is The stream of the database file, which is closed once it is read.
+     * @param queryType The type of the query, which must be MEMORY.
+     * @param key The key used for decrypting the header block of the database file.
+     * @param config The optional settings.
+     * @throws Exception If an error occurs during the decryption of the header block or the reading of the stream.
+     */
+    public DbSearcher(InputStream is, QueryType queryType, String key, DbSearcherConfig config) throws Exception {
+        LoadTimings timings = new LoadTimings(System.nanoTime());
         if (queryType != QueryType.MEMORY) {
             throw new UnsupportedOperationException("input stream initialize only support memory mode");
         }
 
         this.queryType = queryType;
-        HyperHeaderBlock headerBlock = HyperHeaderDecoder.decrypt(is, key);
-        int rdSize = headerBlock.getDecryptedBlock().getRandomSize();
+        this.shared = null;
+        this.handleBuffers = null;
+        try (InputStream in = decompress(is)) {
+            HyperHeaderBlock headerBlock = HyperHeaderDecoder.decrypt(in, key);
+            ByteUtil.skipFully(in, headerBlock.getDecryptedBlock().getRandomSize());
+            timings.record(LoadTimings.HYPER_HEADER);
+            initializeForMemorySearch(in, -1, key, config.isOffHeap(), timings);
+        }
 
-        // skip rdSize bytes
-        is.skip(rdSize);
+        applyConfig(config, "stream", timings);
+    }
 
-        try {
-            // load all bytes from is to a byte[] buffer
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            byte[] b = new byte[1024];
-            int n;
-            while ((n = is.read(b)) != -1) {
-                buffer.write(b, 0, n);
-            }
+    /**
+     * Creates a handle of SearcherPool on the database of a searcher, which is used by one thread at a time.
+     * The handle shares the immutable parts of the searcher: the header, the geo map, the column selection,
+     * the memory index or the mapping, the caches and the metrics. It holds only its own search buffers and,
+     * in BTREE mode, its own file channel, opened on its first read and closed by close().
+     *
+     * @param shared The searcher whose database is shared, which must stay open while the handle is used.
+     * @throws IllegalStateException If the searcher is closed.
+     */
+    DbSearcher(DbSearcher shared) {
+        if (shared.closed) {
+            throw new IllegalStateException("The searcher is closed.");
+        }
+        this.shared = shared;
+        this.queryType = shared.queryType;
+        this.handleBuffers = shared.newSearchBuffers();
+        this.dbType = shared.dbType;
+        this.ipBytesLength = shared.ipBytesLength;
+        this.totalHeaderBlockSize = shared.totalHeaderBlockSize;
+        this.dbFile = shared.dbFile;
+        this.fileOffset = shared.fileOffset;
+        this.HeaderSipHigh = shared.HeaderSipHigh;
+        this.HeaderSipLow = shared.HeaderSipLow;
+        this.HeaderPtr = shared.HeaderPtr;
+        this.headerLength = shared.headerLength;
+        this.maxSegmentLength = shared.maxSegmentLength;
+        this.headerTrie = shared.headerTrie;
+        this.firstIndexPtr = shared.firstIndexPtr;
+        this.lastIndexPtr = shared.lastIndexPtr;
+        this.totalIndexBlocks = shared.totalIndexBlocks;
+        this.dbBinStr = shared.dbBinStr;
+        this.memoryIndex = shared.memoryIndex;
+        this.regionDictionary = shared.regionDictionary;
+        this.geoColumnCache = shared.geoColumnCache;
+        this.regionCache = shared.regionCache;
+        this.recentRanges = shared.recentRanges;
+        this.loadTimings = shared.loadTimings;
+        this.metrics = shared.metrics;
+        this.dbStorage = shared.dbStorage;
+        this.columnSelection = shared.columnSelection;
+        this.geoMapData = shared.geoMapData;
+    }
 
-            dbBinStr = buffer.toByteArray();
-            loadGeoSetting(dbBinStr, key);
-            initMemoryOrBinaryModeParam(dbBinStr, dbBinStr.length);
-        } finally {
-            is.close();
+    /**
+     * Wraps a stream compressed with gzip or zlib into the stream which decompresses it, from its first two bytes.
+     * A database file starts with its version, a small little-endian int whose first byte matches neither magic number.
+     *
+     * @param is The stream of the database file, compressed or not.
+     * @return The stream of the database file.
+     * @throws IOException If an error occurs during reading the stream.
+     */
+    private static InputStream decompress(InputStream is) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(is, 2);
+        int b0 = in.read();
+        int b1 = b0 < 0 ? -1 : in.read();
+        if (b1 >= 0) {
+            in.unread(b1);
+        }
+        if (b0 >= 0) {
+            in.unread(b0);
+        }
+
+        if (b0 == 0x1F && b1 == 0x8B) {
+            return new GZIPInputStream(in, 1 << 16);
+        }
+        // a zlib header: deflate with a 32 KB window at most, and a check which makes it a multiple of 31
+        if ((b0 & 0x8F) == 0x08 && b1 >= 0 && ((b0 << 8) | b1) % 31 == 0) {
+            return new InflaterInputStream(in, new Inflater(), 1 << 16);
         }
+        return in;
     }
 
-    private void loadGeoSetting(RandomAccessFile raf, String key) {
-        // set position to end index ptr + ip byte length * 2 + 4
-        try {
-            raf.seek(DbConstant.END_INDEX_PTR);
-            byte[] data = new byte[4];
-            raf.readFully(data);
+    /**
+     * Initializes the DbSearcher instance for memory search.
+     * The super part is read first, then the rest of the database straight into a byte array of the size it records,
+     * or into direct memory if the database does not fit in a byte array or offHeap is set, see DbStorage.
+     * The parameters for memory search are then decoded from memory, and the index blocks into primitive arrays.
+     *
+     * @param is The database file or stream, positioned right after the hyper header.
+     * @param available The number of bytes left in the file, -1 for a stream, which must then end with the database.
+     * @param key The key used for decrypting the geo map.
+     * @param offHeap Whether the database is copied outside of the Java heap even if it fits in a byte array.
+     * @param timings The timings of the loading.
+     * @throws IOException If an error occurs during reading the database.
+     */
+    private void initializeForMemorySearch(InputStream is, long available, String key, boolean offHeap,
+                                           LoadTimings timings) throws IOException {
+        byte[] superBytes = new byte[DbConstant.SUPER_PART_LENGTH];
+        ByteUtil.readFully(is, superBytes, 0, superBytes.length);
+        long size = ByteUtil.getIntLong(superBytes, DbConstant.FILE_SIZE_PTR);
+        if (available >= 0 ? size != available : size < superBytes.length) {
+            throw new RuntimeException(String.format("db file size error, excepted [%s], real [%s]", size, available));
+        }
 
-            long endIndexPtr = ByteUtil.getIntLong(data, 0);
+        DbStorage storage;
+        if (size <= MAX_ARRAY_SIZE && !offHeap) {
+            dbBinStr = new byte[(int) size];
+            System.arraycopy(superBytes, 0, dbBinStr, 0, superBytes.length);
+            ByteUtil.readFully(is, dbBinStr, superBytes.length, dbBinStr.length - superBytes.length);
+            storage = DbStorage.wrap(dbBinStr);
+        } else {
+            InputStream db = new SequenceInputStream(new ByteArrayInputStream(superBytes), is);
+            dbStorage = DbStorage.load(Channels.newChannel(db), size);
+            storage = dbStorage;
+        }
+        if (available < 0 && is.read() >= 0) {
+            throw new RuntimeException(String.format("db file size error, excepted [%s], real larger", size));
+        }
+        timings.record(LoadTimings.DATA);
+
+        initStorageParam(storage, size);
+        timings.record(LoadTimings.HEADER);
+        loadGeoSetting(storage, key);
+        timings.record(LoadTimings.GEO_MAP);
+        memoryIndex = new MemoryIndex(storage, dbType, firstIndexPtr, lastIndexPtr);
+        timings.record(LoadTimings.INDEX);
+    }
 
-            long columnSelectionPtr = endIndexPtr + IndexBlock.getIndexBlockLength(dbType);
-            raf.seek(columnSelectionPtr);
-            raf.readFully(data);
+    /**
+     * Initializes the DbSearcher instance for mmap search.
+     * Maps the database file, skipping the hyper header, into read-only chunks and then initializes the parameters
+     * from the super part, the header block and the geo map of the mapping.
+     * The file is closed afterwards, the mapping stays valid until the searcher is closed.
+     *
+     * @param fc The channel of the database file.
+     * @param size The size of the database, the hyper header excluded.
+     * @param key The key used for decrypting the geo map.
+     * @param timings The timings of the loading.
+     * @throws IOException If an error occurs during mapping the database file.
+     */
+    private void initializeForMmapSearch(FileChannel fc, long size, String key, LoadTimings timings) throws IOException {
+        dbStorage = DbStorage.map(fc, fileOffset, size);
+        timings.record(LoadTimings.DATA);
+
+        initStorageParam(dbStorage, size);
+        // an index segment is searched in place in the chunk of its first block
+        if (maxSegmentLength > DbStorage.MAX_READ) {
+            throw new IOException(String.format("index segment too large for mmap mode, size [%s]", maxSegmentLength));
+        }
+        timings.record(LoadTimings.HEADER);
 
-            this.columnSelection = ByteUtil.getIntLong(data, 0);
+        loadGeoSetting(dbStorage, key);
+        timings.record(LoadTimings.GEO_MAP);
+    }
 
-            // not geo mapping
-            if (columnSelection == 0) {
-                return;
+    /**
+     * Initializes the DbSearcher instance for B-tree search.
+     * The super part and the header block are read from the start of the database, usually with a single read,
+     * then the column selection and the geo map from the end of the file.
+     *
+     * @param fc The channel of the database file, which is kept for the searches.
+     * @param size The size of the database, the hyper header excluded.
+     * @param key The key used for decrypting the geo map.
+     * @param timings The timings of the loading.
+     * @throws IOException If an error occurs during reading the database file.
+     */
+    private void initializeForBtreeSearch(FileChannel fc, long size, String key, LoadTimings timings) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(size, HEADER_READ_SIZE)];
+        readAt(fc, fileOffset, ByteBuffer.wrap(bytes));
+        if (bytes.length < DbConstant.SUPER_PART_LENGTH) {
+            throw new RuntimeException(String.format("db file size error, real [%s]", size));
+        }
+        int headerLength = DbConstant.SUPER_PART_LENGTH + (int) ByteUtil.getIntLong(bytes, DbConstant.HEADER_BLOCK_PTR);
+        if (headerLength > bytes.length) {
+            // the header block is larger than the first read
+            int read = bytes.length;
+            bytes = Arrays.copyOf(bytes, headerLength);
+            readAt(fc, fileOffset + read, ByteBuffer.wrap(bytes, read, headerLength - read));
+        }
+        initMemoryOrBinaryModeParam(bytes, size);
+        timings.record(LoadTimings.HEADER);
+
+        long tailPtr = lastIndexPtr + IndexBlock.getIndexBlockLength(dbType);
+        byte[] tail = new byte[8];
+        readAt(fc, fileOffset + tailPtr, ByteBuffer.wrap(tail, 0, (int) Math.min(8, size - tailPtr)));
+        columnSelection = ByteUtil.getIntLong(tail, 0);
+        if (columnSelection != 0) {
+            // each piece of the geo map is decrypted right after it is read, while it is still in the CPU caches
+            geoMapData = new byte[(int) ByteUtil.getIntLong(tail, 4)];
+            Decryptor decryptor = new Decryptor(key);
+            for (int p = 0; p < geoMapData.length; p += Decryptor.PARALLEL_PIECE) {
+                int n = Math.min(Decryptor.PARALLEL_PIECE, geoMapData.length - p);
+                readAt(fc, fileOffset + tailPtr + 8 + p, ByteBuffer.wrap(geoMapData, p, n));
+                decryptor.decrypt(geoMapData, p, n, p);
             }
+        }
+        timings.record(LoadTimings.GEO_MAP);
+    }
+
+    /**
+     * Applies the optional settings once the database is loaded.
+     * The metrics are created last, so they count neither the reads nor the decoding done while loading.
+     *
+     * @param config The optional settings.
+     * @param database The path to the database file, or "stream".
+     * @param timings The timings of the loading, which are completed by the options.
+     * @throws IOException If an error occurs during reading the database.
+     */
+    private void applyConfig(DbSearcherConfig config, String database, LoadTimings timings) throws IOException {
+        if (config.getGeoColumnCacheSize() > 0 && geoMapData != null) {
+            geoColumnCache = new GeoColumnCache(config.getGeoColumnCacheSize(), config.isMetrics());
+        }
 
-            long geoMapPtr = columnSelectionPtr + 4;
-            raf.seek(geoMapPtr);
-            raf.readFully(data);
-            int geoMapSize = (int)ByteUtil.getIntLong(data, 0);
+        if (config.isHeaderTrie()) {
+            headerTrie = HeaderTrie.build(HeaderSipHigh, HeaderSipLow, headerLength);
+        }
 
-            raf.seek(geoMapPtr + 4);
-            geoMapData = new byte[geoMapSize];
-            raf.readFully(geoMapData);
+        if (config.isEytzingerIndex() && memoryIndex != null) {
+            memoryIndex.buildEytzinger();
+        }
 
-            Decryptor decryptor = new Decryptor(key);
-            geoMapData = decryptor.decrypt(geoMapData);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (config.isRegionDictionary()) {
+            initRegionDictionary();
+        }
+
+        if (config.getRegionCacheSize() > 0) {
+            regionCache = new RegionCache(config.getRegionCacheSize(), config.isMetrics());
+        }
+
+        int recentRangeCount = config.getRecentRangeCount();
+        if (recentRangeCount > 0) {
+            recentRanges = ThreadLocal.withInitial(() -> new RecentRanges(recentRangeCount));
+        }
+
+        timings.record(LoadTimings.OPTIONS);
+        loadTimings = timings;
+
+        if (config.isMetrics()) {
+            DbSearcherMetrics searcherMetrics = new DbSearcherMetrics(database, queryType, geoColumnCache, regionCache);
+            searcherMetrics.setLoadTimings(timings);
+            searcherMetrics.register();
+            metrics = searcherMetrics;
         }
     }
 
-    private void loadGeoSetting(byte[] dbBytes, String key) {
-        ByteBuffer buffer = ByteBuffer.wrap(dbBytes);
+    /**
+     * Decodes the region of every distinct data block into the region dictionary.
+     * The data pointers are collected from all the index blocks, sorted and deduplicated,
+     * then each data block is decoded once. Equal regions of different data blocks share one String.
+     * In memory mode, the dictionary id of each index block is also stored in the memory index.
+     *
+     * @throws IOException If an error occurs during reading the database.
+     */
+    private void initRegionDictionary() throws IOException {
+        int blockLen = IndexBlock.getIndexBlockLength(dbType);
+        int total = (int) ((lastIndexPtr - firstIndexPtr) / blockLen) + 1;
+
+        // read the index blocks chunk by chunk, keep the data pointer and length packed by dataBlockOf
+        long[] dataBlocks = new long[total];
+        int chunkBlocks = 4096;
+        byte[] chunk = new byte[chunkBlocks * blockLen];
+        for (int i = 0; i < total; i += chunkBlocks) {
+            int n = Math.min(chunkBlocks, total - i);
+            readDb(firstIndexPtr + (long) i * blockLen, chunk, n * blockLen);
+            for (int j = 0; j < n; j++) {
+                int p = j * blockLen + ipBytesLength * 2;
+                dataBlocks[i + j] = dataBlockOf(ByteUtil.getIntLong(chunk, p), chunk[p + 4]);
+            }
+        }
 
-        // Set ipBytesLength
-        byte[] superBytes = new byte[DbConstant.SUPER_PART_LENGTH];
-        buffer.get(superBytes);
-        dbType = (superBytes[0] & 1) == 0 ? DbType.IPV4 : DbType.IPV6;
-        ipBytesLength = dbType == DbType.IPV4 ? 4 : 16;
+        Arrays.sort(dataBlocks);
+        int distinct = 0;
+        for (int i = 0; i < total; i++) {
+            if (dataBlocks[i] != 0 && (distinct == 0 || dataBlocks[i] != dataBlocks[distinct - 1])) {
+                dataBlocks[distinct++] = dataBlocks[i];
+            }
+        }
 
-        ((Buffer)buffer).position(DbConstant.END_INDEX_PTR);
-        byte[] data = new byte[4];
-        buffer.get(data);
+        long[] dataPtrs = new long[distinct];
+        String[] regions = new String[distinct];
+        Map<String, String> interned = new HashMap<>();
+        byte[] data = new byte[256];
+        for (int i = 0; i < distinct; i++) {
+            long dataPtr = dataBlocks[i] >>> 8;
+            int dataLen = (int) (dataBlocks[i] & 0xFF);
+            readDb(dataPtr, data, dataLen);
+
+            String region = DataBlock.getRegion(data, 0, dataLen, geoMapData, columnSelection, geoColumnCache);
+            String existing = interned.putIfAbsent(region, region);
+            dataPtrs[i] = dataPtr;
+            regions[i] = existing == null ? region : existing;
+        }
 
-        long endIndexPtr = ByteUtil.getIntLong(data, 0);
+        regionDictionary = new RegionDictionary(dataPtrs, regions);
+        if (memoryIndex != null) {
+            memoryIndex.setRegionIds(regionDictionary);
+        }
+    }
 
-        long columnSelectionPtr = endIndexPtr + IndexBlock.getIndexBlockLength(dbType);
-        ((Buffer)buffer).position((int) columnSelectionPtr);
-        buffer.get(data);
+    /**
+     * Reads bytes of the database at the given position, wherever the query type keeps it.
+     * It is only used at load time.
+     *
+     * @param pos The position in the database, the hyper header excluded.
+     * @param dst The array to fill.
+     * @param length The number of bytes to read.
+     * @throws IOException If an error occurs during reading the database file.
+     */
+    private void readDb(long pos, byte[] dst, int length) throws IOException {
+        if (dbBinStr != null) {
+            System.arraycopy(dbBinStr, (int) pos, dst, 0, length);
+        } else if (dbStorage != null) {
+            dbStorage.get(pos, dst, 0, length);
+        } else {
+            readFully(pos, ByteBuffer.wrap(dst, 0, length));
+        }
+    }
 
-        this.columnSelection = ByteUtil.getIntLong(data, 0);
+    /**
+     * Reads the column selection and decrypts the geo map, which follow the last index block and end the database.
+     *
+     * @param db The database, the hyper header excluded.
+     * @param key The key used for decrypting the geo map.
+     */
+    private void loadGeoSetting(DbStorage db, String key) {
+        long columnSelectionPtr = lastIndexPtr + IndexBlock.getIndexBlockLength(dbType);
+        this.columnSelection = db.getIntLong(columnSelectionPtr);
 
         // not geo mapping
         if (columnSelection == 0) {
             return;
         }
 
-        long geoMapPtr = columnSelectionPtr + 4;
-        ((Buffer)buffer).position((int) geoMapPtr);
-        buffer.get(data);
-        int geoMapSize = (int)ByteUtil.getIntLong(data, 0);
-
-        ((Buffer)buffer).position((int) geoMapPtr + 4);
-        geoMapData = new byte[geoMapSize];
-        buffer.get(geoMapData);
-
-        Decryptor decryptor = new Decryptor(key);
-        geoMapData = decryptor.decrypt(geoMapData);
+        geoMapData = new byte[(int) db.getIntLong(columnSelectionPtr + 4)];
+        db.get(columnSelectionPtr + 8, geoMapData, 0, geoMapData.length);
+        new Decryptor(key).decrypt(geoMapData, 0, geoMapData.length, 0);
     }
 
     /**
-     * Initializes the DbSearcher instance for memory search.
-     * Reads the entire database file into memory and then initializes the parameters for memory or binary search.
+     * Initializes the parameters for memory or binary search from the super part and the header block of the database.
      *
-     * @throws IOException If an error occurs during reading from the database file.
+     * @param db The database, the hyper header excluded.
+     * @param size The size of the database.
      */
-    private void initializeForMemorySearch() throws IOException {
-        dbBinStr = new byte[(int) raf.length()];
-        raf.seek(0L);
-        raf.readFully(dbBinStr, 0, dbBinStr.length);
-        raf.close();
-        initMemoryOrBinaryModeParam(dbBinStr, dbBinStr.length);
+    private void initStorageParam(DbStorage db, long size) {
+        // copy the super part and the header block out of the storage
+        int headerBlockSize = (int) db.getIntLong(DbConstant.HEADER_BLOCK_PTR);
+        byte[] bytes = new byte[DbConstant.SUPER_PART_LENGTH + headerBlockSize];
+        db.get(0, bytes, 0, bytes.length);
+        initMemoryOrBinaryModeParam(bytes, size);
     }
 
+    /**
+     * Initializes the parameters for search from the super part and the header block.
+     *
+     * @param bytes The super part followed by the header block.
+     * @param fileSize The size of the database, the hyper header excluded.
+     */
     private void initMemoryOrBinaryModeParam(byte[] bytes, long fileSize) {
+        dbType = (bytes[0] & 1) == 0 ? DbType.IPV4 : DbType.IPV6;
+        ipBytesLength = dbType == DbType.IPV4 ? 4 : 16;
         totalHeaderBlockSize = ByteUtil.getIntLong(bytes, DbConstant.HEADER_BLOCK_PTR);
         long fileSizeInFile = ByteUtil.getIntLong(bytes, DbConstant.FILE_SIZE_PTR);
         if (fileSizeInFile != fileSize) {
             throw new RuntimeException(String.format("db file size error, excepted [%s], real [%s]", fileSizeInFile, fileSize));
         }
         firstIndexPtr = ByteUtil.getIntLong(bytes, DbConstant.FIRST_INDEX_PTR);
-        long lastIndexPtr = ByteUtil.getIntLong(bytes, DbConstant.END_INDEX_PTR);
+        lastIndexPtr = ByteUtil.getIntLong(bytes, DbConstant.END_INDEX_PTR);
         totalIndexBlocks = (int) ((lastIndexPtr - firstIndexPtr) / IndexBlock.getIndexBlockLength(dbType)) + 1;
 
         byte[] b = new byte[(int) totalHeaderBlockSize];
@@ -248,50 +647,42 @@ public class DbSearcher {
         initHeaderBlock(b);
     }
 
-    private void initBtreeModeParam(RandomAccessFile raf) throws IOException {
-        // set db type
-        raf.seek(0);
-        byte[] superBytes = new byte[DbConstant.SUPER_PART_LENGTH];
-        raf.readFully(superBytes, 0, superBytes.length);
-        totalHeaderBlockSize = ByteUtil.getIntLong(superBytes, DbConstant.HEADER_BLOCK_PTR);
-
-        long fileSizeInFile = ByteUtil.getIntLong(superBytes, DbConstant.FILE_SIZE_PTR);
-        long realFileSize = raf.length();
-
-        if (fileSizeInFile != realFileSize) {
-            throw new RuntimeException(String.format("db file size error, excepted [%s], real [%s]", fileSizeInFile, realFileSize));
-        }
-
-        byte[] b = new byte[(int) totalHeaderBlockSize];
-        raf.readFully(b, 0, b.length);
-
-        initHeaderBlock(b);
-    }
-
     private void initHeaderBlock(byte[] headerBytes) {
         int indexLength = 20;
 
         int len = headerBytes.length / indexLength, idx = 0;
-        HeaderSip = new byte[len][16];
-        HeaderPtr = new int[len];
+        HeaderSipHigh = new long[len];
+        HeaderSipLow = new long[len];
+        HeaderPtr = new long[len];
         long dataPtr;
         for (int i = 0; i < headerBytes.length; i += indexLength) {
             dataPtr = ByteUtil.getIntLong(headerBytes, i + 16);
             if (dataPtr == 0) {
                 break;
             }
-            System.arraycopy(headerBytes, i, HeaderSip[idx], 0, 16);
-            HeaderPtr[idx] = (int) dataPtr;
+            if (dbType == DbType.IPV4) {
+                HeaderSipHigh[idx] = ipv4Key(ByteUtil.getIntBE(headerBytes, i));
+            } else {
+                HeaderSipHigh[idx] = ByteUtil.getLongBE(headerBytes, i);
+                HeaderSipLow[idx] = ByteUtil.getLongBE(headerBytes, i + 8);
+            }
+            HeaderPtr[idx] = dataPtr;
             idx++;
         }
         headerLength = idx;
+
+        int blockLen = IndexBlock.getIndexBlockLength(dbType);
+        for (int seg = 0; seg < headerLength; seg++) {
+            maxSegmentLength = Math.max(maxSegmentLength, (int) (segmentEnd(seg) - HeaderPtr[seg]) + blockLen);
+        }
     }
 
     /**
      * This method is used to search for a region in the database based on the provided IP address.
-     * It supports three types of search algorithms: memory, binary, and B-tree.
+     * It supports three types of search algorithms: memory, mmap, and B-tree.
      * The type of the search algorithm is determined by the queryType attribute of the DbSearcher instance.
-     * The method first converts the IP address to a byte array, then performs the search based on the query type.
+     * The method first parses the IP address into a primitive key, then performs the search based on the query type.
+     * Only IP literals are accepted, a host name is rejected rather than resolved.
      * If the search is successful, it returns the region of the found data block.
      * If the search is unsuccessful, it returns null.
      *
@@ -301,247 +692,1039 @@ public class DbSearcher {
      * @throws IOException If an I/O error occurs during the search.
      */
     public String search(String ip) throws IpFormatException, IOException {
-        // Validate the IP address based on dbType
-        validateIp(ip);
-
-        // Convert the IP address to a byte array
-        byte[] ipBytes = getIpBytes(ip);
-
-        // The data block to be found
-        DataBlock dataBlock = null;
-
-        // Perform the search based on the query type
-        switch (queryType) {
-            case MEMORY:
-                // Perform a memory search
-                dataBlock = memorySearch(ipBytes);
-                break;
-            case BTREE:
-                // Perform a B-tree search
-                dataBlock = bTreeSearch(ipBytes);
-                break;
-            default:
-                break;
+        // Parse the IP address based on dbType
+        if (dbType == DbType.IPV4) {
+            long ipv4 = IpParser.parseIpv4(ip);
+            if (ipv4 == IpParser.INVALID) {
+                throw invalidIp();
+            }
+            return searchRegion(ipv4Key((int) ipv4), 0);
         }
 
-        // Return the region of the found data block if the search is successful, null otherwise
-        if (dataBlock == null) {
-            return null;
-        } else {
-            return dataBlock.getRegion(geoMapData, columnSelection);
+        long[] key = ipv6Keys.get();
+        if (!IpParser.parseIpv6(ip, key)) {
+            throw invalidIp();
         }
+        return searchRegion(key[0], key[1]);
     }
 
     /**
-     * This method performs a memory search to find a data block in the database based on the provided IP address.
-     * It uses a binary search algorithm to search the index blocks and find the data.
-     * If the search is successful, it returns the data block containing the region and the data pointer.
-     * If the search is unsuccessful, it returns null.
+     * Searches for the region of an IP address given in network byte order,
+     * 4 bytes for an IPv4 database or 16 bytes for an IPv6 database, as returned by InetAddress.getAddress().
      *
-     * @param ip The IP address to search for. It is a byte array representing the IP address.
-     * @return The data block containing the region and the data pointer if the search is successful, null otherwise.
+     * @param ip The IP address to search for.
+     * @return The region of the found data block if the search is successful, null otherwise.
+     * @throws IllegalArgumentException If the length of the address does not match the database type.
+     * @throws IOException If an I/O error occurs during the search.
      */
-    private DataBlock memorySearch(byte[] ip) {
-        // The length of an index block
-        int blockLen = IndexBlock.getIndexBlockLength(this.dbType);
-
-        // Use searchInHeader to get the search range
-        int[] sptrNeptr = searchInHeader(ip);
-        int sptr = sptrNeptr[0], eptr = sptrNeptr[1];
-
-        if (sptr == 0) {
-            return null;
+    public String search(byte[] ip) throws IOException {
+        if (ip == null || ip.length != ipBytesLength) {
+            throw invalidIp();
         }
 
-        // Calculate the number of index blocks in the search range
-        // Initialize the search range
-        int l = 0, h = (eptr - sptr) / blockLen;
-
-        // The start IP and end IP of the current index block
-        byte[] sip = new byte[ipBytesLength], eip = new byte[ipBytesLength];
-
-        // The data pointer of the found data block
-        int dataPtr = 0;
-        int dataLen = 0;
-
-        // Perform a binary search on the index blocks
-        while (l <= h) {
-            int m = (l + h) >> 1;
-            int p = (int) (sptr + m * blockLen);
-
-            // eip 的指针已经超过 eptr 了，说明已经搜索到最后一页并且没找到，直接退出
-            if (p + ipBytesLength > eptr && m == 1) {
-                break;
-            }
+        if (dbType == DbType.IPV4) {
+            return searchRegion(ipv4Key(ByteUtil.getIntBE(ip, 0)), 0);
+        }
+        return searchRegion(ByteUtil.getLongBE(ip, 0), ByteUtil.getLongBE(ip, 8));
+    }
 
-            System.arraycopy(dbBinStr, p, sip, 0, ipBytesLength);
-            System.arraycopy(dbBinStr, p + ipBytesLength, eip, 0, ipBytesLength);
+    /**
+     * Searches for the region of an IPv4 address in an IPv4 database.
+     * The address is an int in network byte order, so 1.2.3.4 is 0x01020304.
+     * The index walk runs on primitives and allocates nothing.
+     *
+     * @param ip The IPv4 address to search for.
+     * @return The region of the found data block if the search is successful, null otherwise.
+     * @throws IllegalArgumentException If the database is not an IPv4 database.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String search(int ip) throws IOException {
+        if (dbType != DbType.IPV4) {
+            throw new IllegalArgumentException("Invalid IP address for the specified database type.");
+        }
+        return searchRegion(ipv4Key(ip), 0);
+    }
 
-            int cmpStart = compareBytes(ip, sip, ipBytesLength);
-            int cmpEnd = compareBytes(ip, eip, ipBytesLength);
+    /**
+     * Searches for the region of an IPv6 address in an IPv6 database.
+     * The address is split into its high and low 64 bits, so 2001:db8::1 is (0x20010db800000000L, 1L).
+     * The index walk runs on primitives and allocates nothing.
+     *
+     * @param hi The high 64 bits of the IPv6 address.
+     * @param lo The low 64 bits of the IPv6 address.
+     * @return The region of the found data block if the search is successful, null otherwise.
+     * @throws IllegalArgumentException If the database is not an IPv6 database.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String search(long hi, long lo) throws IOException {
+        if (dbType != DbType.IPV6) {
+            throw new IllegalArgumentException("Invalid IP address for the specified database type.");
+        }
+        return searchRegion(hi, lo);
+    }
 
-            // If the IP is less than the start IP, search the left half
-            if (cmpStart >= 0 && cmpEnd <= 0) {
-                // IP is in this block
-                dataPtr = (int)ByteUtil.getIntLong(dbBinStr, p + ipBytesLength * 2);
-                dataLen = ByteUtil.getInt1(dbBinStr, p + ipBytesLength * 2 + 4);
-                break;
-            } else if (cmpStart < 0) {
-                // IP is less than this block, search in the left half
-                h = m - 1;
-            } else {
-                // IP is greater than this block, search in the right half
-                l = m + 1;
+    /**
+     * Searches for the region of an IP address without blocking the calling thread, such as the event loop of a server.
+     * In MEMORY and MMAP modes the search reads no file, so it runs at once and the returned future is already complete.
+     * In BTREE mode the reads of the index segment and of the data block do not block the caller:
+     * on Java 21 and later the search runs on a virtual thread, on earlier Java the reads go through
+     * an AsynchronousFileChannel and the search goes on when they complete. Either way concurrent searches overlap
+     * their reads, and no platform thread waits for each of them. The recent ranges are not used.
+     *
+     * @param ip The IP address to search for. It is a string in the standard IP address format.
+     * @return The future region of the found data block, null if not found. It fails with an IllegalArgumentException
+     * if the IP address is not in the correct format, or with an IOException if an I/O error occurs.
+     */
+    public CompletableFuture<String> searchAsync(String ip) {
+        if (dbType == DbType.IPV4) {
+            long ipv4 = IpParser.parseIpv4(ip);
+            if (ipv4 == IpParser.INVALID) {
+                return failed(invalidIp());
             }
+            return searchRegionAsync(ipv4Key((int) ipv4), 0);
         }
 
-        //not matched
-        if (dataPtr == 0) {
-            return null;
+        long[] key = ipv6Keys.get();
+        if (!IpParser.parseIpv6(ip, key)) {
+            return failed(invalidIp());
         }
-
-        // Get the region from the database binary string
-        byte[] region = new byte[dataLen];
-        System.arraycopy(dbBinStr, dataPtr, region, 0, dataLen);
-
-        // Return the data block containing the region and the data pointer
-        return new DataBlock(region, dataPtr);
+        return searchRegionAsync(key[0], key[1]);
     }
 
-    int[] searchInHeader(byte[] ip) {
-        int l = 0, h = headerLength - 1, sptr = 0, eptr = 0;
-
-        while (l <= h) {
-            int m = (l + h) >> 1;
-            int cmp = compareBytes(ip, HeaderSip[m], ipBytesLength);
-
-            if (cmp < 0) {
-                h = m - 1;
-            } else if (cmp > 0) {
-                l = m + 1;
+    /**
+     * Searches for the regions of many IP addresses at once.
+     * The addresses are grouped by the index segment of the header which may contain them,
+     * so the header is searched once per address but every segment is read once per batch:
+     * in BTREE mode that is one file read per distinct segment instead of one per address.
+     *
+     * @param ips The IP addresses to search for, in the standard IP address format.
+     * @return The region of each IP address, in the order of the addresses, null for the addresses not found.
+     * @throws IllegalArgumentException If one of the IP addresses is not in the correct format.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String[] searchBatch(String[] ips) throws IOException {
+        long[] his = new long[ips.length];
+        long[] los = new long[ips.length];
+
+        long[] key = ipv6Keys.get();
+        for (int i = 0; i < ips.length; i++) {
+            if (dbType == DbType.IPV4) {
+                long ipv4 = IpParser.parseIpv4(ips[i]);
+                if (ipv4 == IpParser.INVALID) {
+                    throw invalidIp();
+                }
+                his[i] = ipv4Key((int) ipv4);
             } else {
-                sptr = HeaderPtr[m > 0 ? m - 1 : m];
-                eptr = HeaderPtr[m];
-                break;
+                if (!IpParser.parseIpv6(ips[i], key)) {
+                    throw invalidIp();
+                }
+                his[i] = key[0];
+                los[i] = key[1];
             }
         }
+        return searchBatch(his, los);
+    }
 
-        // less than header range
-        if (l == 0 && h <= 0) {
-            return new int[]{0, 0};
+    /**
+     * Searches for the regions of many IPv4 addresses at once in an IPv4 database, see searchBatch(String[]).
+     *
+     * @param ips The IPv4 addresses in network byte order, so 1.2.3.4 is 0x01020304.
+     * @return The region of each IP address, in the order of the addresses, null for the addresses not found.
+     * @throws IllegalArgumentException If the database is not an IPv4 database.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String[] searchBatch(int[] ips) throws IOException {
+        if (dbType != DbType.IPV4) {
+            throw new IllegalArgumentException("Invalid IP address for the specified database type.");
         }
 
-        if (l > h) {
-            if (l < headerLength) {
-                sptr = HeaderPtr[l - 1];
-                eptr = HeaderPtr[l];
-            } else if (h >= 0 && h + 1 < headerLength) {
-                sptr = HeaderPtr[h];
-                eptr = HeaderPtr[h + 1];
-            } else { // search to last header line, possible in last index block
-                sptr = HeaderPtr[headerLength - 1];
-                int blockLen = IndexBlock.getIndexBlockLength(this.dbType);
-
-                eptr = sptr + blockLen;
-            }
+        long[] his = new long[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            his[i] = ipv4Key(ips[i]);
         }
-
-        return new int[]{sptr, eptr};
+        return searchBatch(his, new long[ips.length]);
     }
 
     /**
-     * get the region with a int ip address with b-tree algorithm
+     * Searches for the regions of many IPv6 addresses at once in an IPv6 database, see searchBatch(String[]).
+     * Each address takes two consecutive longs, its high 64 bits followed by its low 64 bits,
+     * like the arguments of search(long, long).
      *
-     * @param ip
-     * @throws IOException
+     * @param ips The high and low 64 bits of each IPv6 address, so the length is twice the number of addresses.
+     * @return The region of each IP address, in the order of the addresses, null for the addresses not found.
+     * @throws IllegalArgumentException If the database is not an IPv6 database, or the length of ips is odd.
+     * @throws IOException If an I/O error occurs during the search.
      */
-    private DataBlock bTreeSearch(byte[] ip) throws IOException {
-        int[] sptrNeptr = searchInHeader(ip);
-        int sptr = sptrNeptr[0], eptr = sptrNeptr[1];
+    public String[] searchBatch(long[] ips) throws IOException {
+        if (dbType != DbType.IPV6 || ips.length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid IP address for the specified database type.");
+        }
 
-        if (sptr == 0) {
-            return null;
+        int n = ips.length / 2;
+        long[] his = new long[n];
+        long[] los = new long[n];
+        for (int i = 0; i < n; i++) {
+            his[i] = ips[2 * i];
+            los[i] = ips[2 * i + 1];
         }
+        return searchBatch(his, los);
+    }
 
-        //2. search the index blocks to define the data
-        int blockLen = eptr - sptr, blen = IndexBlock.getIndexBlockLength(this.dbType);
+    /**
+     * Searches for the regions of the keys, see ipv4Key for IPv4 addresses.
+     * Each key is tagged with its header segment in the high 32 bits and its position in the low 32 bits,
+     * sorting the tags groups the keys by segment, and the position restores the order of the results.
+     */
+    private String[] searchBatch(long[] his, long[] los) throws IOException {
+        int n = his.length;
+        String[] regions = new String[n];
+        if (queryType == QueryType.MEMORY) {
+            // the memory index does not go through the segments, it is searched in place
+            for (int i = 0; i < n; i++) {
+                regions[i] = cachedRegion(his[i], los[i], true);
+            }
+            recordBatch(regions);
+            return regions;
+        }
 
-        //include the right border block
-        byte[] iBuffer = new byte[blockLen + blen];
-        raf.seek(sptr);
-        raf.readFully(iBuffer, 0, iBuffer.length);
+        RegionCache cache = regionCache;
+        long[] tags = new long[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (cache != null) {
+                String region = cache.get(his[i], los[i]);
+                if (region != null) {
+                    regions[i] = region == NOT_FOUND ? null : region;
+                    continue;
+                }
+            }
+            int seg = searchInHeader(his[i], los[i]);
+            if (seg >= 0) {
+                tags[count++] = (long) seg << 32 | i;
+            }
+        }
+        Arrays.sort(tags, 0, count);
+
+        long lastDataBlock = 0;
+        String lastRegion = null;
+        for (int start = 0; start < count; ) {
+            int seg = (int) (tags[start] >>> 32);
+            int end = start + 1;
+            while (end < count && (int) (tags[end] >>> 32) == seg) {
+                end++;
+            }
 
-        int l = 0;
-        int h = blockLen / blen;
-        byte[] sip = new byte[ipBytesLength], eip = new byte[ipBytesLength];
+            // read the index blocks of the segment once for all its keys
+            ByteBuffer buffer;
+            long ptr = HeaderPtr[seg];
+            int windowLength = (int) (segmentEnd(seg) - ptr);
+            int sptr;
+            if (queryType == QueryType.MMAP) {
+                buffer = dbStorage.chunk(ptr);
+                sptr = DbStorage.offsetOf(ptr);
+            } else {
+                buffer = buffers().index;
+                ((Buffer) buffer).clear();
+                ((Buffer) buffer).limit(windowLength + IndexBlock.getIndexBlockLength(this.dbType));
+                readFully(ptr, buffer);
+                sptr = 0;
+            }
 
-        int dataPtr = 0;
-        int dataLen = 0;
+            for (int t = start; t < end; t++) {
+                int i = (int) tags[t];
+                long dataBlock = searchIndex(buffer, sptr, windowLength, his[i], los[i], null);
+                if (dataBlock != lastDataBlock || lastRegion == null) {
+                    lastRegion = getRegion(dataBlock);
+                    lastDataBlock = dataBlock;
+                }
+                regions[i] = lastRegion;
+                if (cache != null) {
+                    cache.put(his[i], los[i], lastRegion == null ? NOT_FOUND : lastRegion);
+                }
+            }
+            start = end;
+        }
+        recordBatch(regions);
+        return regions;
+    }
 
-        while (l <= h) {
-            int m = (l + h) >> 1;
-            int p = m * blen;
+    private void recordBatch(String[] regions) {
+        DbSearcherMetrics searcherMetrics = metrics;
+        if (searcherMetrics != null) {
+            int found = 0;
+            for (String region : regions) {
+                if (region != null) {
+                    found++;
+                }
+            }
+            searcherMetrics.recordBatch(found, regions.length - found);
+        }
+    }
 
-            // 如果 p 的指针已经超过 blockLen 了，说明已经搜索到最后一页并且没找到，直接退出
-            // m == 1说明是在header中搜索时没有直接找到，返回了最后一个段的情况，这个段是不满的，所以要这样处理下
-            // TODO: 也可能有更好的办法
-            if (p >= blockLen && m == 1) {
-                break;
+    /**
+     * Looks up an IP address and returns its region as a LookupResult, with typed column accessors
+     * and the range of the index block which contains it.
+     *
+     * @param ip The IP address to look up. It is a string in the standard IP address format.
+     * @return The result of the lookup if the IP address is found, null otherwise.
+     * @throws IllegalArgumentException If the provided IP address is not in the correct format.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public LookupResult lookup(String ip) throws IOException {
+        LookupResult result = new LookupResult();
+        return lookup(ip, result) ? result : null;
+    }
+
+    /**
+     * Looks up an IP address into the given result, which can be reused to save its allocation.
+     * The data block is copied into the result, the region is only decoded by the accessors which need it.
+     *
+     * @param ip The IP address to look up. It is a string in the standard IP address format.
+     * @param result The result to overwrite.
+     * @return true if the IP address is found, false otherwise.
+     * @throws IllegalArgumentException If the provided IP address is not in the correct format.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public boolean lookup(String ip, LookupResult result) throws IOException {
+        if (dbType == DbType.IPV4) {
+            long ipv4 = IpParser.parseIpv4(ip);
+            if (ipv4 == IpParser.INVALID) {
+                throw invalidIp();
+            }
+            return lookupKey(ipv4Key((int) ipv4), 0, result);
+        }
+
+        long[] key = ipv6Keys.get();
+        if (!IpParser.parseIpv6(ip, key)) {
+            throw invalidIp();
+        }
+        return lookupKey(key[0], key[1], result);
+    }
+
+    /**
+     * Looks up an IPv4 address in an IPv4 database into the given result, see lookup(String, LookupResult).
+     *
+     * @param ip The IPv4 address in network byte order, so 1.2.3.4 is 0x01020304.
+     * @param result The result to overwrite.
+     * @return true if the IP address is found, false otherwise.
+     * @throws IllegalArgumentException If the database is not an IPv4 database.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public boolean lookup(int ip, LookupResult result) throws IOException {
+        if (dbType != DbType.IPV4) {
+            throw new IllegalArgumentException("Invalid IP address for the specified database type.");
+        }
+        return lookupKey(ipv4Key(ip), 0, result);
+    }
+
+    /**
+     * Looks up an IPv6 address in an IPv6 database into the given result, see lookup(String, LookupResult).
+     *
+     * @param hi The high 64 bits of the IPv6 address.
+     * @param lo The low 64 bits of the IPv6 address.
+     * @param result The result to overwrite.
+     * @return true if the IP address is found, false otherwise.
+     * @throws IllegalArgumentException If the database is not an IPv6 database.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public boolean lookup(long hi, long lo, LookupResult result) throws IOException {
+        if (dbType != DbType.IPV6) {
+            throw new IllegalArgumentException("Invalid IP address for the specified database type.");
+        }
+        return lookupKey(hi, lo, result);
+    }
+
+    /**
+     * Looks up the IP address, given as an unsigned 128-bit key, see ipv4Key for IPv4 addresses,
+     * and records it in the metrics if they are enabled.
+     */
+    private boolean lookupKey(long hi, long lo, LookupResult result) throws IOException {
+        DbSearcherMetrics searcherMetrics = metrics;
+        if (searcherMetrics == null) {
+            return findKey(hi, lo, result);
+        }
+
+        long start = System.nanoTime();
+        boolean found = findKey(hi, lo, result);
+        searcherMetrics.recordSearch(System.nanoTime() - start, found);
+        return found;
+    }
+
+    private boolean findKey(long hi, long lo, LookupResult result) throws IOException {
+        result.reset(this, dbType);
+        long dataBlock = locate(hi, lo, result);
+        if (dataBlock == 0) {
+            return false;
+        }
+
+        long dataPtr = dataBlock >>> 8;
+        int dataLen = (int) (dataBlock & 0xFF);
+
+        if (regionDictionary != null) {
+            int id = regionDictionary.idOf(dataPtr);
+            if (id >= 0) {
+                result.setRegion(regionDictionary.getRegion(id));
+                return true;
             }
+        }
+
+        if (dbBinStr != null) {
+            System.arraycopy(dbBinStr, (int) dataPtr, result.data, 0, dataLen);
+        } else if (dbStorage != null) {
+            dbStorage.get(dataPtr, result.data, 0, dataLen);
+        } else {
+            readFully(dataPtr, ByteBuffer.wrap(result.data, 0, dataLen));
+        }
+        result.setDataLength(dataLen);
+        return true;
+    }
 
-            System.arraycopy(iBuffer, p, sip, 0, ipBytesLength);
-            System.arraycopy(iBuffer, p + ipBytesLength, eip, 0, ipBytesLength);
+    /**
+     * Decodes the region of a data block copied into a LookupResult.
+     */
+    String decodeRegion(byte[] data, int dataLen) {
+        return DataBlock.getRegion(data, 0, dataLen, geoMapData, columnSelection, geoColumnCache);
+    }
 
-            int cmpStart = compareBytes(ip, sip, ipBytesLength);
-            int cmpEnd = compareBytes(ip, eip, ipBytesLength);
+    /**
+     * Searches the start IP of every header segment, so every segment of the index and some data blocks
+     * have been read once, and the search code has run, before the searcher serves requests.
+     * In MMAP mode this faults the index pages into memory, in BTREE mode it warms the page cache of the file.
+     *
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    void warmUp() throws IOException {
+        for (int seg = 0; seg < headerLength; seg++) {
+            findRegion(HeaderSipHigh[seg], HeaderSipLow[seg]);
+        }
+    }
 
-            if (cmpStart >= 0 && cmpEnd <= 0) {
-                // IP is in this block
-                dataPtr = (int)ByteUtil.getIntLong(iBuffer, p + ipBytesLength * 2);
-                dataLen = ByteUtil.getInt1(iBuffer, p + ipBytesLength * 2 + 4);
+    /**
+     * Converts an IPv4 address to the high half of a search key.
+     * All searches work on unsigned 128-bit keys, an IPv4 address takes the top 32 bits,
+     * which is also how it is stored in the 16 bytes start IP of the header block.
+     */
+    private static long ipv4Key(int ip) {
+        return (ip & 0xFFFFFFFFL) << 32;
+    }
 
-                break;
-            } else if (cmpStart < 0) {
+    /**
+     * Returns the exception thrown for an IP address which is not an IP literal of the database type,
+     * counted as a parse error by the metrics.
+     */
+    private IllegalArgumentException invalidIp() {
+        DbSearcherMetrics searcherMetrics = metrics;
+        if (searcherMetrics != null) {
+            searcherMetrics.recordParseError();
+        }
+        return new IllegalArgumentException("Invalid IP address for the specified database type.");
+    }
+
+    /**
+     * Searches for the region of the IP address, given as an unsigned 128-bit key, see ipv4Key for IPv4 addresses,
+     * and records the search in the metrics if they are enabled.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @return The region of the found data block if the search is successful, null otherwise.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    private String searchRegion(long hi, long lo) throws IOException {
+        return searchRegion(hi, lo, true);
+    }
+
+    /**
+     * Searches for the region of the IP address like searchRegion(long, long), with or without the recent ranges
+     * of the current thread, which are not worth keeping on a thread which runs a single search, such as a virtual thread.
+     */
+    String searchRegion(long hi, long lo, boolean threadRanges) throws IOException {
+        DbSearcherMetrics searcherMetrics = metrics;
+        if (searcherMetrics == null) {
+            return cachedRegion(hi, lo, threadRanges);
+        }
+
+        long start = System.nanoTime();
+        String region = cachedRegion(hi, lo, threadRanges);
+        searcherMetrics.recordSearch(System.nanoTime() - start, region != null);
+        return region;
+    }
+
+    /**
+     * Searches for the region of the IP address without blocking, see searchAsync(String).
+     * A handle of SearcherPool searches through the searcher it shares.
+     */
+    private CompletableFuture<String> searchRegionAsync(long hi, long lo) {
+        if (shared != null) {
+            return shared.searchRegionAsync(hi, lo);
+        }
+
+        try {
+            if (queryType != QueryType.BTREE) {
+                return CompletableFuture.completedFuture(searchRegion(hi, lo, false));
+            }
+            return asyncSearch().search(hi, lo);
+        } catch (IOException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    private AsyncSearch asyncSearch() throws IOException {
+        AsyncSearch async = asyncSearch;
+        if (async == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                async = asyncSearch;
+                if (async == null) {
+                    async = new AsyncSearch(this, dbFile);
+                    asyncSearch = async;
+                }
+            }
+        }
+        return async;
+    }
+
+    /**
+     * Searches for the region of the IP address like searchRegion(long, long, boolean) in BTREE mode, reading
+     * the index segment and the data block with the asynchronous channel, so no thread waits for the reads.
+     * The search goes on in the threads of the channel, so the recent ranges of a thread are not used.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @param fc The asynchronous channel of the database file.
+     * @return The future region of the found data block, null if not found.
+     */
+    CompletableFuture<String> searchRegion(long hi, long lo, AsynchronousFileChannel fc) {
+        DbSearcherMetrics searcherMetrics = metrics;
+        long start = searcherMetrics == null ? 0 : System.nanoTime();
+
+        CompletableFuture<String> future;
+        RegionCache cache = regionCache;
+        String cached = cache == null ? null : cache.get(hi, lo);
+        if (cached != null) {
+            future = CompletableFuture.completedFuture(cached == NOT_FOUND ? null : cached);
+        } else if (cache != null) {
+            future = findRegion(hi, lo, fc).thenApply(region -> {
+                cache.put(hi, lo, region == null ? NOT_FOUND : region);
+                return region;
+            });
+        } else {
+            future = findRegion(hi, lo, fc);
+        }
+
+        if (searcherMetrics != null) {
+            future = future.whenComplete((region, e) -> {
+                if (e == null) {
+                    searcherMetrics.recordSearch(System.nanoTime() - start, region != null);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Searches for the region of the IP address in the index with the asynchronous channel, see bTreeSearch and getRegion.
+     * The buffers are allocated for the search, as it may complete in any thread.
+     */
+    private CompletableFuture<String> findRegion(long hi, long lo, AsynchronousFileChannel fc) {
+        int seg = searchInHeader(hi, lo);
+        if (seg < 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        long sptr = HeaderPtr[seg];
+        int windowLength = (int) (segmentEnd(seg) - sptr);
+        ByteBuffer index = ByteBuffer.allocate(windowLength + IndexBlock.getIndexBlockLength(this.dbType));
+        return readAsync(fc, sptr, index).thenCompose(read -> {
+            long dataBlock = searchIndex(index, 0, windowLength, hi, lo, null);
+            if (dataBlock == 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            long dataPtr = dataBlock >>> 8;
+            int dataLen = (int) (dataBlock & 0xFF);
+            if (regionDictionary != null) {
+                int id = regionDictionary.idOf(dataPtr);
+                if (id >= 0) {
+                    return CompletableFuture.completedFuture(regionDictionary.getRegion(id));
+                }
+            }
+
+            byte[] data = new byte[dataLen];
+            return readAsync(fc, dataPtr, ByteBuffer.wrap(data)).thenApply(done -> decodeRegion(data, dataLen));
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Searches for the region of the IP address in the recent ranges of the current thread, then in the region cache,
+     * then in the index if it is not cached. The range found in the index is added to the recent ranges.
+     */
+    private String cachedRegion(long hi, long lo, boolean useRecentRanges) throws IOException {
+        ThreadLocal<RecentRanges> threadRanges = useRecentRanges ? recentRanges : null;
+        RecentRanges recent = null;
+        if (threadRanges != null) {
+            recent = threadRanges.get();
+            String region = recent.get(hi, lo);
+            if (region != null) {
+                return region;
+            }
+        }
+
+        RegionCache cache = regionCache;
+        if (cache == null) {
+            return recent == null ? findRegion(hi, lo) : findRange(hi, lo, recent);
+        }
+
+        String region = cache.get(hi, lo);
+        if (region == null) {
+            region = recent == null ? findRegion(hi, lo) : findRange(hi, lo, recent);
+            cache.put(hi, lo, region == null ? NOT_FOUND : region);
+        }
+        return region == NOT_FOUND ? null : region;
+    }
+
+    /**
+     * Searches for the region of the IP address in the index, and adds the range of its index block to the recent ranges.
+     */
+    private String findRange(long hi, long lo, RecentRanges recent) throws IOException {
+        String region = getRegion(locate(hi, lo, recent.range));
+        if (region != null) {
+            recent.add(region);
+        }
+        return region;
+    }
+
+    /**
+     * Searches for the region of the IP address, given as an unsigned 128-bit key, see searchRegion.
+     */
+    private String findRegion(long hi, long lo) throws IOException {
+        if (queryType == QueryType.MEMORY && regionDictionary != null) {
+            // the memory index maps straight to the dictionary id
+            MemoryIndex index = memoryIndex;
+            int i = index.find(hi, lo);
+            return i < 0 ? null : regionDictionary.getRegion(index.getRegionId(i));
+        }
+        return getRegion(locate(hi, lo, null));
+    }
+
+    /**
+     * Finds the index block which contains the IP address, with the search algorithm of the query type.
+     * The IP address is an unsigned 128-bit key, see ipv4Key for IPv4 addresses.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @param result The result receiving the range of the found index block, null if it is not needed.
+     * @return The data pointer and the data length of the found index block packed by dataBlockOf, 0 if not found.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    private long locate(long hi, long lo, LookupResult result) throws IOException {
+        switch (queryType) {
+            case MEMORY:
+                // Perform a memory search
+                return memorySearch(hi, lo, result);
+            case MMAP:
+                // Perform a search on the mapped file
+                return mmapSearch(hi, lo, result);
+            case BTREE:
+                // Perform a B-tree search
+                return bTreeSearch(hi, lo, result);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * This method performs a memory search to find the index block of the provided IP address.
+     * It runs a binary search over the start IPs of all the index blocks, decoded into primitive arrays at load time.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @param result The result receiving the range of the found index block, null if it is not needed.
+     * @return The data pointer and the data length of the found index block packed by dataBlockOf, 0 if not found.
+     */
+    private long memorySearch(long hi, long lo, LookupResult result) {
+        MemoryIndex index = memoryIndex;
+        int i = index.find(hi, lo);
+        if (i < 0) {
+            return 0;
+        }
+
+        if (result != null) {
+            result.setRange(index.getStartHigh(i), index.getStartLow(i), index.getEndHigh(i), index.getEndLow(i));
+        }
+        return dataBlockOf(index.getDataPtr(i), (byte) index.getDataLen(i));
+    }
+
+    /**
+     * This method performs a search on the mapped database file to find the index block of the provided IP address.
+     * It first finds the index segment of the IP in the header, then runs a binary search on the index blocks
+     * of that segment, directly in the mapped chunk of its first index block.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @param result The result receiving the range of the found index block, null if it is not needed.
+     * @return The data pointer and the data length of the found index block packed by dataBlockOf, 0 if not found.
+     */
+    private long mmapSearch(long hi, long lo, LookupResult result) {
+        int seg = searchInHeader(hi, lo);
+        if (seg < 0) {
+            return 0;
+        }
+
+        long sptr = HeaderPtr[seg];
+        return searchIndex(dbStorage.chunk(sptr), DbStorage.offsetOf(sptr), (int) (segmentEnd(seg) - sptr), hi, lo, result);
+    }
+
+    /**
+     * This method performs a B-tree search to find the index block of the provided IP address.
+     * It reads the index blocks of the segment found in the header into the buffer of the current thread
+     * with one positional read, then runs a binary search on them.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @param result The result receiving the range of the found index block, null if it is not needed.
+     * @return The data pointer and the data length of the found index block packed by dataBlockOf, 0 if not found.
+     * @throws IOException If an I/O error occurs during reading the index blocks.
+     */
+    private long bTreeSearch(long hi, long lo, LookupResult result) throws IOException {
+        int seg = searchInHeader(hi, lo);
+        if (seg < 0) {
+            return 0;
+        }
+
+        long sptr = HeaderPtr[seg];
+        int windowLength = (int) (segmentEnd(seg) - sptr);
+
+        //include the right border block
+        ByteBuffer iBuffer = buffers().index;
+        ((Buffer) iBuffer).clear();
+        ((Buffer) iBuffer).limit(windowLength + IndexBlock.getIndexBlockLength(this.dbType));
+        readFully(sptr, iBuffer);
+
+        return searchIndex(iBuffer, 0, windowLength, hi, lo, result);
+    }
+
+    /**
+     * Runs a binary search on the index blocks stored in the buffer from sptr to eptr, both included.
+     * The index blocks are compared to the key with absolute reads, so nothing is copied or allocated.
+     *
+     * @param buffer The buffer which contains the index blocks.
+     * @param sptr The position of the first index block in the buffer.
+     * @param length The distance between the first and the last index block.
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @param result The result receiving the range of the found index block, null if it is not needed.
+     * @return The data pointer and the data length of the found index block packed by dataBlockOf, 0 if not found.
+     */
+    private long searchIndex(ByteBuffer buffer, int sptr, int length, long hi, long lo, LookupResult result) {
+        int blockLen = IndexBlock.getIndexBlockLength(this.dbType);
+        int l = 0, h = length / blockLen;
+
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            int p = sptr + m * blockLen;
+
+            if (compareIp(hi, lo, buffer, p) < 0) {
                 // IP is less than this block, search in the left half
                 h = m - 1;
-            } else {
+            } else if (compareIp(hi, lo, buffer, p + ipBytesLength) > 0) {
                 // IP is greater than this block, search in the right half
                 l = m + 1;
+            } else {
+                // IP is in this block
+                if (result != null) {
+                    setRange(result, buffer, p);
+                }
+                p += ipBytesLength * 2;
+                // the data pointer is an unsigned 32-bit integer
+                return dataBlockOf(Integer.reverseBytes(buffer.getInt(p)) & 0xFFFFFFFFL, buffer.get(p + 4));
             }
         }
 
         //not matched
+        return 0;
+    }
+
+    /**
+     * Sets the range of the result to the start and end IPs of the index block at the given position of the buffer.
+     */
+    private void setRange(LookupResult result, ByteBuffer buffer, int p) {
+        if (ipBytesLength == 4) {
+            result.setRange(ipv4Key(buffer.getInt(p)), 0, ipv4Key(buffer.getInt(p + 4)), 0);
+        } else {
+            result.setRange(buffer.getLong(p), buffer.getLong(p + 8), buffer.getLong(p + 16), buffer.getLong(p + 24));
+        }
+    }
+
+    /**
+     * Compares the key with the IP address stored in big-endian order at the given position of the buffer.
+     * Both are compared as unsigned numbers.
+     */
+    private int compareIp(long hi, long lo, ByteBuffer buffer, int p) {
+        if (ipBytesLength == 4) {
+            return Long.compare(hi >>> 32, buffer.getInt(p) & 0xFFFFFFFFL);
+        }
+        return compareIp(hi, lo, buffer.getLong(p), buffer.getLong(p + 8));
+    }
+
+    /**
+     * Compares two unsigned 128-bit keys, each given as its high and low 64 bits.
+     */
+    private static int compareIp(long hi1, long lo1, long hi2, long lo2) {
+        if (hi1 != hi2) {
+            return Long.compareUnsigned(hi1, hi2);
+        }
+        return Long.compareUnsigned(lo1, lo2);
+    }
+
+    /**
+     * Packs the data pointer and the data length of an index block into a long, 0 meaning not matched.
+     */
+    private static long dataBlockOf(long dataPtr, byte dataLen) {
         if (dataPtr == 0) {
+            return 0;
+        }
+        return dataPtr << 8 | (dataLen & 0xFF);
+    }
+
+    /**
+     * Finds the index segment which may contain the IP address, with a binary search on the header block,
+     * or with the header trie if it is enabled.
+     * Segment seg covers the index blocks from HeaderPtr[seg] to segmentEnd(seg).
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @return The last header line whose start IP is not greater than the key, -1 if the key is before the first line.
+     */
+    int searchInHeader(long hi, long lo) {
+        HeaderTrie trie = headerTrie;
+        if (trie != null) {
+            return trie.find(hi, lo);
+        }
+
+        int l = 0, h = headerLength - 1;
+
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            int cmp = compareIp(hi, lo, HeaderSipHigh[m], HeaderSipLow[m]);
+
+            if (cmp < 0) {
+                h = m - 1;
+            } else if (cmp > 0) {
+                l = m + 1;
+            } else {
+                return m;
+            }
+        }
+
+        // less than header range when h is -1
+        return h;
+    }
+
+    /**
+     * Returns the pointer to the last index block to search in the segment, which is the first block of the next segment,
+     * or the last index block of the database for the last segment.
+     */
+    private long segmentEnd(int seg) {
+        return seg + 1 < headerLength ? HeaderPtr[seg + 1] : lastIndexPtr;
+    }
+
+    /**
+     * Reads and decodes the region of the data block found by the search.
+     *
+     * @param dataBlock The data pointer and the data length packed by dataBlockOf, 0 if not found.
+     * @return The region of the data block, null if not found.
+     * @throws IOException If an I/O error occurs during reading the data block.
+     */
+    private String getRegion(long dataBlock) throws IOException {
+        if (dataBlock == 0) {
             return null;
         }
 
-        //3. get the data
-        raf.seek(dataPtr);
-        byte[] region = new byte[dataLen];
-        raf.readFully(region, 0, region.length);
-        return new DataBlock(region, dataPtr);
+        long dataPtr = dataBlock >>> 8;
+        int dataLen = (int) (dataBlock & 0xFF);
+
+        if (regionDictionary != null) {
+            int id = regionDictionary.idOf(dataPtr);
+            if (id >= 0) {
+                return regionDictionary.getRegion(id);
+            }
+        }
+
+        if (dbBinStr != null) {
+            return DataBlock.getRegion(dbBinStr, (int) dataPtr, dataLen, geoMapData, columnSelection, geoColumnCache);
+        }
+
+        SearchBuffers buffers = buffers();
+        if (dbStorage != null) {
+            dbStorage.get(dataPtr, buffers.data, 0, dataLen);
+        } else {
+            ByteBuffer dataBuffer = buffers.dataBuffer;
+            ((Buffer) dataBuffer).clear();
+            ((Buffer) dataBuffer).limit(dataLen);
+            readFully(dataPtr, dataBuffer);
+        }
+        return DataBlock.getRegion(buffers.data, 0, dataLen, geoMapData, columnSelection, geoColumnCache);
+    }
+
+    private SearchBuffers buffers() {
+        return handleBuffers != null ? handleBuffers : searchBuffers.get();
+    }
+
+    // the index segments are read into a buffer in btree search only, the other modes search them in place
+    private SearchBuffers newSearchBuffers() {
+        return new SearchBuffers(queryType == QueryType.BTREE ? ByteBuffer.allocateDirect(maxSegmentLength) : null);
+    }
+
+    /**
+     * Buffers reused by all the searches of a thread, so the index walk and the data read allocate nothing.
+     * index holds the index blocks of a segment in btree search, null in the other modes,
+     * data holds a data block, which is at most 255 bytes.
+     */
+    private static final class SearchBuffers {
+        final ByteBuffer index;
+        final byte[] data = new byte[256];
+        final ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+
+        SearchBuffers(ByteBuffer index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Reads bytes at the given position of the database until the buffer is full, with positional reads,
+     * so it can be called from any thread. A thread interrupted while reading closes the file channel for everyone,
+     * in that case the file is reopened once and the read is retried.
+     *
+     * @param pos The position in the database, the hyper header excluded.
+     * @param dst The buffer to fill, from its position to its limit.
+     * @throws IOException If an I/O error occurs, or the reading thread has been interrupted.
+     */
+    private void readFully(long pos, ByteBuffer dst) throws IOException {
+        FileChannel file = channel;
+        if (file == null) {
+            // a handle of SearcherPool opens its channel on its first read
+            file = reopen(null, new ClosedChannelException());
+        }
+        int start = dst.position();
+        try {
+            readAt(file, fileOffset + pos, dst);
+        } catch (ClosedByInterruptException e) {
+            // the current thread is interrupted, the next reader will reopen the file
+            throw e;
+        } catch (ClosedChannelException e) {
+            ((Buffer) dst).position(start);
+            readAt(reopen(file, e), fileOffset + pos, dst);
+        }
+
+        DbSearcherMetrics searcherMetrics = metrics;
+        if (searcherMetrics != null) {
+            searcherMetrics.recordIo(dst.position() - start);
+        }
+    }
+
+    private synchronized FileChannel reopen(FileChannel broken, IOException cause) throws IOException {
+        if (closed || dbFile == null || shared != null && shared.closed) {
+            throw cause;
+        }
+
+        // another thread may have reopened it already
+        if (channel == broken) {
+            channel = FileChannel.open(Paths.get(dbFile), StandardOpenOption.READ);
+        }
+        return channel;
     }
 
     /**
-     * get by index ptr
+     * Reads bytes at the given position of the database with the asynchronous channel until the buffer is full.
      *
-     * @param ptr
-     * @throws IOException
+     * @param fc The asynchronous channel of the database file.
+     * @param pos The position in the database, the hyper header excluded.
+     * @param dst The buffer to fill, from its position to its limit.
+     * @return The future completed once the buffer is full, which fails with an EOFException
+     * if the end of the file is reached before, or with the IOException of a read.
      */
-    private DataBlock getByIndexPtr(long ptr) throws IOException {
-        raf.seek(ptr);
-        byte[] buffer = new byte[36];
-        raf.readFully(buffer, 0, buffer.length);
-        long extra = ByteUtil.getIntLong(buffer, 32);
+    private CompletableFuture<Void> readAsync(AsynchronousFileChannel fc, long pos, ByteBuffer dst) {
+        AsyncRead read = new AsyncRead(fc, fileOffset + pos, dst, metrics);
+        read.next();
+        return read.done;
+    }
+
+    /**
+     * Reads into a buffer with the asynchronous channel until it is full, one read after the completion of the other.
+     */
+    private static final class AsyncRead implements CompletionHandler<Integer, Void> {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final AsynchronousFileChannel fc;
+        private final ByteBuffer dst;
+        private final int start;
+        private final DbSearcherMetrics metrics;
+        private long position;
+
+        AsyncRead(AsynchronousFileChannel fc, long position, ByteBuffer dst, DbSearcherMetrics metrics) {
+            this.fc = fc;
+            this.dst = dst;
+            this.start = dst.position();
+            this.metrics = metrics;
+            this.position = position;
+        }
 
-        int dataLen = (int) ((extra >> 24) & 0xFF);
-        int dataPtr = (int) ((extra & 0x00FFFFFF));
+        void next() {
+            try {
+                fc.read(dst, position, null, this);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        }
 
-        raf.seek(dataPtr);
-        byte[] region = new byte[dataLen];
-        raf.readFully(region, 0, region.length);
+        @Override
+        public void completed(Integer n, Void attachment) {
+            if (n < 0) {
+                done.completeExceptionally(new EOFException());
+                return;
+            }
 
-        return new DataBlock(region, dataPtr);
+            position += n;
+            if (dst.hasRemaining()) {
+                next();
+                return;
+            }
+            if (metrics != null) {
+                metrics.recordIo(dst.position() - start);
+            }
+            done.complete(null);
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Reads bytes at the given position of the file until the buffer is full, with positional reads.
+     *
+     * @param fc The channel of the file.
+     * @param position The position in the file, the hyper header included.
+     * @param dst The buffer to fill, from its position to its limit.
+     * @throws EOFException If the end of the file is reached before the buffer is full.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void readAt(FileChannel fc, long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = fc.read(dst, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
     }
 
     /**
@@ -563,120 +1746,82 @@ public class DbSearcher {
     }
 
     /**
-     * close the db
+     * Returns the metrics of the searches, which are also registered as an MBean.
+     * They stay readable after the searcher is closed, but are no longer registered.
      *
-     * @throws IOException
+     * @return the metrics, null unless enabled by DbSearcherConfig.setMetrics
      */
-    public void close() {
-        try {
-            //let gc do its work
-            HeaderSip = null;
-            HeaderPtr = null;
-            dbBinStr = null;
-
-            if (raf != null) {
-                raf.close();
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    public DbSearcherMetrics getMetrics() {
+        return metrics;
     }
 
-    private byte[] getIpBytes(String ip) throws IpFormatException, RuntimeException {
-        byte[] ipBytes;
-        try {
-            InetAddress inetAddress = InetAddress.getByName(ip);
-            ipBytes = inetAddress.getAddress();
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
-        }
-        if (ipBytes == null) {
-            throw new IpFormatException(String.format("ip [%s] format error for %s", ip, dbType));
-        }
-        return ipBytes;
+    /**
+     * Returns the time taken by each phase of the loading of the database, whether metrics are enabled or not.
+     *
+     * @return the timings of the loading
+     */
+    public LoadTimings getLoadTimings() {
+        return loadTimings;
     }
 
     /**
-     * This method compares two byte arrays up to a specified length.
-     * It is used to compare IP addresses in byte array format.
-     * The comparison is done byte by byte, and the method returns as soon as a difference is found.
-     * If the bytes at the current position in both arrays are positive or negative, the method compares their values.
-     * If the bytes at the current position in both arrays have different signs, the method considers the negative byte as larger.
-     * If one of the bytes at the current position is zero and the other is not, the method considers the zero byte as smaller.
-     * If the method has compared all bytes up to the specified length and found no differences, it compares the lengths of the byte arrays.
-     * If the lengths are equal, the byte arrays are considered equal.
-     * If one byte array is longer than the other, it is considered larger.
+     * close the db
+     * A handle of SearcherPool only closes its own channel, which is opened again on its next read.
      *
-     * @param bytes1 The first byte array to compare. It represents an IP address.
-     * @param bytes2 The second byte array to compare. It represents an IP address.
-     * @param length The number of bytes to compare in each byte array.
-     * @return A negative integer if the first byte array is less than the second, zero if they are equal, or a positive integer if the first byte array is greater than the second.
+     * @throws IOException
      */
-    private static int compareBytes(byte[] bytes1, byte[] bytes2, int length) {
-        for (int i = 0; i < bytes1.length && i < bytes2.length && i < length; i++) {
-            if (bytes1[i] * bytes2[i] > 0) {
-                if (bytes1[i] < bytes2[i]) {
-                    return -1;
-                } else if (bytes1[i] > bytes2[i]) {
-                    return 1;
-                }
-            } else if (bytes1[i] * bytes2[i] < 0) {
-                // When the signs are different, the negative byte is considered larger
-                if (bytes1[i] > 0) {
-                    return -1;
-                } else {
-                    return 1;
-                }
-            } else if (bytes1[i] * bytes2[i] == 0 && bytes1[i] + bytes2[i] != 0) {
-                // When one byte is zero and the other is not, the zero byte is considered smaller
-                if (bytes1[i] == 0) {
-                    return -1;
-                } else {
-                    return 1;
+    public synchronized void close() {
+        if (shared != null) {
+            FileChannel fc = channel;
+            channel = null;
+            try {
+                if (fc != null) {
+                    fc.close();
                 }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
+            return;
         }
-        if (bytes1.length >= length && bytes2.length >= length) {
-            return 0;
-        } else {
-            return Integer.compare(bytes1.length, bytes2.length);
-        }
-    }
 
-    private String byte2IpString(byte[] bytes) {
         try {
-            InetAddress address = InetAddress.getByAddress(bytes);
-            return address.getHostAddress();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+            // the asynchronous searches still running end before the database is released
+            AsyncSearch async = asyncSearch;
+            asyncSearch = null;
+            if (async != null) {
+                async.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-    }
-
-    private static final String IPV6_PATTERN =
-            "([0-9a-fA-F]{1,4}:){7,7}[0-9a-fA-F]{1,4}|" +      // 1:2:3:4:5:6:7:8
-                    "([0-9a-fA-F]{1,4}:){1,7}:|" +                     // 1::                              1:2:3:4:5:6:7::
-                    "([0-9a-fA-F]{1,4}:){1,6}:[0-9a-fA-F]{1,4}|" +     // 1::8             1:2:3:4:5:6::8
-                    "([0-9a-fA-F]{1,4}:){1,5}(:[0-9a-fA-F]{1,4}){1,2}|" + // 1::7:8         1:2:3:4:5::7:8
-                    "([0-9a-fA-F]{1,4}:){1,4}(:[0-9a-fA-F]{1,4}){1,3}|" + // 1::6:7:8       1:2:3:4::6:7:8
-                    "([0-9a-fA-F]{1,4}:){1,3}(:[0-9a-fA-F]{1,4}){1,4}|" + // 1::5:6:7:8     1:2:3::5:6:7:8
-                    "([0-9a-fA-F]{1,4}:){1,2}(:[0-9a-fA-F]{1,4}){1,5}|" + // 1::4:5:6:7:8   1:2::4:5:6:7:8
-                    "[0-9a-fA-F]{1,4}:((:[0-9a-fA-F]{1,4}){1,6})|" +   // 1::3:4:5:6:7:8  1::3:4:5:6:7:8
-                    ":((:[0-9a-fA-F]{1,4}){1,7}|:)|" +                 // ::2:3:4:5:6:7:8 ::8
-                    "fe80:(:[0-9a-fA-F]{0,4}){0,4}%[0-9a-zA-Z]{1,}|" + // fe80::7:8%eth0   fe80::7:8%1
-                    "::(ffff(:0{1,4}){0,1}:){0,1}" +                   // ::255.255.255.255, ::ffff:0:255.255.255.255
-                    "([0-9]{1,3}\\.){3,3}[0-9]{1,3}|" +                // IPv4 mapped IPv6 addresses
-                    "([0-9a-fA-F]{1,4}:){1,4}:" +                      // 1:2:3:4:5:6:1.2.3.4
-                    "([0-9]{1,3}\\.){3,3}[0-9]{1,3}";
-
-    private static final Pattern V6_PATTERN = Pattern.compile("^(" + IPV6_PATTERN + ")$");
 
-    private void validateIp(String ip) throws IllegalArgumentException {
-        String ipv4Pattern = "^(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$";
+        closed = true;
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        try {
+            //let gc do its work
+            memoryIndex = null;
+            regionDictionary = null;
+            geoColumnCache = null;
+            regionCache = null;
+            recentRanges = null;
+            headerTrie = null;
+            HeaderSipHigh = null;
+            HeaderSipLow = null;
+            HeaderPtr = null;
+            dbBinStr = null;
+            // the mapping is released now on Java 22 and later, when the chunks are garbage collected otherwise
+            if (dbStorage != null) {
+                dbStorage.close();
+                dbStorage = null;
+            }
 
-        if ((dbType == DbType.IPV4 && !ip.matches(ipv4Pattern)) || (dbType == DbType.IPV6 && !V6_PATTERN.matcher(ip).matches())) {
-            throw new IllegalArgumentException("Invalid IP address for the specified database type.");
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
     }
 }
-
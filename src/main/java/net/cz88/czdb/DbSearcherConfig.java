@@ -0,0 +1,254 @@
+package net.cz88.czdb;
+
+/**
+ * The DbSearcherConfig class holds the optional settings of a DbSearcher.
+ * Every setting is off by default, so a DbSearcher built with a default config behaves like one built without.
+ * The setters return this config, so settings can be chained:
+ * <pre>
+ * DbSearcher searcher = new DbSearcher(dbFile, QueryType.MEMORY, key, new DbSearcherConfig().setRegionDictionary(true));
+ * </pre>
+ */
+public class DbSearcherConfig {
+    /**
+     * Whether the region of every distinct data block is decoded once at load time.
+     */
+    private boolean regionDictionary = false;
+
+    /**
+     * Whether the header lines are found by a trie on the leading bits of the IP address.
+     */
+    private boolean headerTrie = false;
+
+    /**
+     * Whether the start IPs of the memory index are copied in Eytzinger order at load time.
+     */
+    private boolean eytzingerIndex = false;
+
+    /**
+     * Whether MEMORY mode copies the database outside of the Java heap.
+     */
+    private boolean offHeap = false;
+
+    /**
+     * The number of slots of the geo column cache, 0 for no cache.
+     */
+    private int geoColumnCacheSize = 0;
+
+    /**
+     * The number of regions of the region cache, 0 for no cache.
+     */
+    private int regionCacheSize = 0;
+
+    /**
+     * The number of ranges each thread keeps, 0 for none.
+     */
+    private int recentRangeCount = 0;
+
+    /**
+     * Whether the searches are counted and timed.
+     */
+    private boolean metrics = false;
+
+    /**
+     * Returns whether the region dictionary is enabled.
+     *
+     * @return true if the region dictionary is enabled
+     */
+    public boolean isRegionDictionary() {
+        return regionDictionary;
+    }
+
+    /**
+     * Enables or disables the region dictionary.
+     * When enabled, the region of every distinct data block is decoded once when the database is loaded,
+     * and a search returns the decoded region without any msgpack decoding or new String.
+     * It costs a longer startup and the memory of the distinct regions, a few MB for a typical database.
+     *
+     * @param regionDictionary true to enable the region dictionary
+     * @return this config
+     */
+    public DbSearcherConfig setRegionDictionary(boolean regionDictionary) {
+        this.regionDictionary = regionDictionary;
+        return this;
+    }
+
+    /**
+     * Returns whether the header trie is enabled.
+     *
+     * @return true if the header trie is enabled
+     */
+    public boolean isHeaderTrie() {
+        return headerTrie;
+    }
+
+    /**
+     * Enables or disables the header trie of MMAP and BTREE modes.
+     * When enabled, a trie is built from the header when the database is loaded, indexed by up to 20 bits
+     * following the prefix shared by all the start IPs, such as 2000::/3 in an IPv6 database.
+     * A search then finds its index segment with a table lookup and a comparison or two,
+     * instead of a binary search over the whole header comparing 16-byte addresses.
+     * It takes 4 bytes per header line and at most 200 KB, and MEMORY mode, which does not use the header, ignores it.
+     *
+     * @param headerTrie true to enable the header trie
+     * @return this config
+     */
+    public DbSearcherConfig setHeaderTrie(boolean headerTrie) {
+        this.headerTrie = headerTrie;
+        return this;
+    }
+
+    /**
+     * Returns whether the Eytzinger index is enabled.
+     *
+     * @return true if the Eytzinger index is enabled
+     */
+    public boolean isEytzingerIndex() {
+        return eytzingerIndex;
+    }
+
+    /**
+     * Enables or disables the Eytzinger index of MEMORY mode.
+     * When enabled, the start IPs of the index blocks are copied in the breadth-first order of the binary search tree
+     * when the database is loaded. The first levels of the search then stay in a few hot cache lines and the search
+     * loop has no unpredictable branch, which pays off on large databases, whose sorted index is much larger than
+     * the CPU caches. It costs another copy of the start IPs and an int per index block.
+     * It has no effect in MMAP and BTREE modes, which search the file format as it is.
+     *
+     * @param eytzingerIndex true to enable the Eytzinger index
+     * @return this config
+     */
+    public DbSearcherConfig setEytzingerIndex(boolean eytzingerIndex) {
+        this.eytzingerIndex = eytzingerIndex;
+        return this;
+    }
+
+    /**
+     * Returns whether MEMORY mode copies the database outside of the Java heap.
+     *
+     * @return true if the database is copied outside of the Java heap
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Enables or disables the copy of the database outside of the Java heap in MEMORY mode.
+     * When enabled, the database is copied into direct memory, which counts against -XX:MaxDirectMemorySize
+     * instead of the heap, and is not moved by the garbage collector. A database larger than a byte array
+     * is always copied outside of the Java heap. Searches read the copy in place, a little slower than a byte array.
+     * It has no effect in MMAP and BTREE modes, which do not copy the database.
+     *
+     * @param offHeap true to copy the database outside of the Java heap
+     * @return this config
+     */
+    public DbSearcherConfig setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    /**
+     * Returns the number of slots of the geo column cache.
+     *
+     * @return the number of slots, 0 if the cache is disabled
+     */
+    public int getGeoColumnCacheSize() {
+        return geoColumnCacheSize;
+    }
+
+    /**
+     * Sets the number of slots of the geo column cache, rounded up to a power of two, 0 to disable it.
+     * The cache keeps the decoded geo columns of the data blocks by their offset in the geo map,
+     * so a search only decodes the data block itself. Unlike the region dictionary, it costs nothing at startup
+     * and its memory is bounded, which suits BTREE mode. It has no effect on a database without geo mapping.
+     *
+     * @param geoColumnCacheSize the number of slots, 0 to disable the cache
+     * @return this config
+     * @throws IllegalArgumentException if the size is negative or greater than 2^30
+     */
+    public DbSearcherConfig setGeoColumnCacheSize(int geoColumnCacheSize) {
+        if (geoColumnCacheSize < 0 || geoColumnCacheSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid geo column cache size: " + geoColumnCacheSize);
+        }
+        this.geoColumnCacheSize = geoColumnCacheSize;
+        return this;
+    }
+
+    /**
+     * Returns the number of regions of the region cache.
+     *
+     * @return the number of regions, 0 if the cache is disabled
+     */
+    public int getRegionCacheSize() {
+        return regionCacheSize;
+    }
+
+    /**
+     * Sets the number of regions of the region cache, 0 to disable it.
+     * The cache keeps the regions of the searched IP addresses by their numeric value, so a hit skips the header,
+     * the index and the msgpack decoding. It admits an address only if it is searched more often than the one it evicts,
+     * which suits a skewed traffic, and BTREE mode above all, where a miss of the cache reads the file.
+     * The lookups through LookupResult do not use it.
+     *
+     * @param regionCacheSize the number of regions, 0 to disable the cache
+     * @return this config
+     * @throws IllegalArgumentException if the size is negative or greater than 2^30
+     */
+    public DbSearcherConfig setRegionCacheSize(int regionCacheSize) {
+        if (regionCacheSize < 0 || regionCacheSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid region cache size: " + regionCacheSize);
+        }
+        this.regionCacheSize = regionCacheSize;
+        return this;
+    }
+
+    /**
+     * Returns the number of recent ranges each thread keeps.
+     *
+     * @return the number of ranges, 0 if disabled
+     */
+    public int getRecentRangeCount() {
+        return recentRangeCount;
+    }
+
+    /**
+     * Sets the number of recent ranges each thread keeps, 0 to disable them.
+     * Every search thread keeps the ranges of the last index blocks it found, with their regions,
+     * and a search which falls into one of them skips the header and the index altogether.
+     * Consecutive addresses of a log often share a range, so a few ranges catch many searches
+     * for a few hundred bytes per thread. It is checked before the region cache.
+     *
+     * @param recentRangeCount the number of ranges, 0 to disable them
+     * @return this config
+     * @throws IllegalArgumentException if the count is negative or greater than 256
+     */
+    public DbSearcherConfig setRecentRangeCount(int recentRangeCount) {
+        if (recentRangeCount < 0 || recentRangeCount > 256) {
+            throw new IllegalArgumentException("Invalid recent range count: " + recentRangeCount);
+        }
+        this.recentRangeCount = recentRangeCount;
+        return this;
+    }
+
+    /**
+     * Returns whether the metrics are enabled.
+     *
+     * @return true if the metrics are enabled
+     */
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables or disables the metrics.
+     * When enabled, the DbSearcher counts its hits, misses, parse errors and bytes read from the file,
+     * times every single search, and registers all of them as an MBean, see DbSearcherMetrics.
+     * Each search then costs two System.nanoTime() calls and a few uncontended counter increments.
+     *
+     * @param metrics true to enable the metrics
+     * @return this config
+     */
+    public DbSearcherConfig setMetrics(boolean metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+}
@@ -0,0 +1,283 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.entity.GeoColumnCache;
+import net.cz88.czdb.entity.RegionCache;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The DbSearcherMetrics class counts the searches of one DbSearcher, enabled by DbSearcherConfig.setMetrics.
+ *
+ * The counters are LongAdders, which spread the increments of concurrent threads over striped cells,
+ * so counting does not make the searching threads contend. The latency of each single search or lookup
+ * is recorded in a lock-free log-linear histogram. A batch counts each of its addresses as a search,
+ * but its addresses have no latency of their own, so it is not recorded in the histogram.
+ *
+ * The metrics are registered in the platform MBean server as
+ * net.cz88.czdb:type=DbSearcher,name=&lt;file name&gt;,id=&lt;n&gt; when the DbSearcher is loaded,
+ * and unregistered when it is closed.
+ */
+public final class DbSearcherMetrics implements DbSearcherMetricsMBean {
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final String database;
+    private final QueryType queryType;
+    private final GeoColumnCache geoColumnCache;
+    private final RegionCache regionCache;
+    private volatile LoadTimings loadTimings;
+    private ObjectName objectName;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder ioBytes = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    // the cache counters when the metrics were created or reset
+    private volatile long geoColumnCacheHitsReset;
+    private volatile long geoColumnCacheMissesReset;
+    private volatile long regionCacheHitsReset;
+    private volatile long regionCacheMissesReset;
+
+    DbSearcherMetrics(String database, QueryType queryType, GeoColumnCache geoColumnCache, RegionCache regionCache) {
+        this.database = database;
+        this.queryType = queryType;
+        this.geoColumnCache = geoColumnCache;
+        this.regionCache = regionCache;
+        resetCaches();
+    }
+
+    void setLoadTimings(LoadTimings loadTimings) {
+        this.loadTimings = loadTimings;
+    }
+
+    /**
+     * Records a single search or lookup.
+     *
+     * @param nanos the latency of the search
+     * @param found whether the IP address was found
+     */
+    void recordSearch(long nanos, boolean found) {
+        (found ? hits : misses).increment();
+        latencies.record(nanos);
+    }
+
+    /**
+     * Records the addresses of a batch.
+     *
+     * @param found the number of IP addresses found
+     * @param notFound the number of IP addresses not found
+     */
+    void recordBatch(int found, int notFound) {
+        hits.add(found);
+        misses.add(notFound);
+    }
+
+    void recordParseError() {
+        parseErrors.increment();
+    }
+
+    void recordIo(int bytes) {
+        ioBytes.add(bytes);
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server. A failure is ignored, the metrics are still counted.
+     */
+    void register() {
+        String name = new File(database).getName();
+        try {
+            ObjectName objectName = new ObjectName("net.cz88.czdb:type=DbSearcher,name=" + ObjectName.quote(name)
+                    + ",id=" + ids.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException | SecurityException e) {
+            // no JMX, or not allowed to register
+        }
+    }
+
+    /**
+     * Unregisters these metrics from the platform MBean server.
+     */
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(objectName);
+        } catch (JMException | SecurityException e) {
+            // already unregistered
+        }
+        objectName = null;
+    }
+
+    /**
+     * Returns the name of these metrics in the platform MBean server.
+     *
+     * @return the object name, null if the metrics are not registered
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public String getDatabase() {
+        return database;
+    }
+
+    @Override
+    public String getQueryType() {
+        return queryType.name();
+    }
+
+    @Override
+    public double getLoadTimeMillis() {
+        return loadTimings.getTotalNanos() / 1e6;
+    }
+
+    @Override
+    public String getLoadPhases() {
+        return loadTimings.toString();
+    }
+
+    @Override
+    public long getSearches() {
+        return hits.sum() + misses.sum();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        return ratio(hits.sum(), misses.sum());
+    }
+
+    @Override
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    @Override
+    public long getIoBytes() {
+        return ioBytes.sum();
+    }
+
+    @Override
+    public double getIoBytesPerSearch() {
+        long searches = getSearches();
+        return searches == 0 ? 0 : (double) ioBytes.sum() / searches;
+    }
+
+    @Override
+    public long getGeoColumnCacheHits() {
+        return geoColumnCache == null ? 0 : geoColumnCache.getHitCount() - geoColumnCacheHitsReset;
+    }
+
+    @Override
+    public long getGeoColumnCacheMisses() {
+        return geoColumnCache == null ? 0 : geoColumnCache.getMissCount() - geoColumnCacheMissesReset;
+    }
+
+    @Override
+    public double getGeoColumnCacheHitRatio() {
+        return ratio(getGeoColumnCacheHits(), getGeoColumnCacheMisses());
+    }
+
+    @Override
+    public long getRegionCacheHits() {
+        return regionCache == null ? 0 : regionCache.getHitCount() - regionCacheHitsReset;
+    }
+
+    @Override
+    public long getRegionCacheMisses() {
+        return regionCache == null ? 0 : regionCache.getMissCount() - regionCacheMissesReset;
+    }
+
+    @Override
+    public double getRegionCacheHitRatio() {
+        return ratio(getRegionCacheHits(), getRegionCacheMisses());
+    }
+
+    @Override
+    public double getMeanLatencyNanos() {
+        return latencies.getMean();
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return latencies.getPercentile(0.5);
+    }
+
+    @Override
+    public long getLatencyP90Nanos() {
+        return latencies.getPercentile(0.9);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return latencies.getPercentile(0.99);
+    }
+
+    @Override
+    public long getLatencyP999Nanos() {
+        return latencies.getPercentile(0.999);
+    }
+
+    @Override
+    public long getMaxLatencyNanos() {
+        return latencies.getMax();
+    }
+
+    @Override
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        parseErrors.reset();
+        ioBytes.reset();
+        latencies.reset();
+        resetCaches();
+    }
+
+    private void resetCaches() {
+        if (geoColumnCache != null) {
+            geoColumnCacheHitsReset = geoColumnCache.getHitCount();
+            geoColumnCacheMissesReset = geoColumnCache.getMissCount();
+        }
+        if (regionCache != null) {
+            regionCacheHitsReset = regionCache.getHitCount();
+            regionCacheMissesReset = regionCache.getMissCount();
+        }
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "DbSearcherMetrics{database=" + database
+                + ", queryType=" + queryType
+                + ", searches=" + getSearches()
+                + ", hitRatio=" + getHitRatio()
+                + ", parseErrors=" + getParseErrors()
+                + ", ioBytes=" + getIoBytes()
+                + ", p50=" + getLatencyP50Nanos()
+                + "ns, p99=" + getLatencyP99Nanos() + "ns}";
+    }
+}
@@ -0,0 +1,126 @@
+package net.cz88.czdb;
+
+/**
+ * The JMX view of DbSearcherMetrics, registered for every DbSearcher built with DbSearcherConfig.setMetrics(true).
+ */
+public interface DbSearcherMetricsMBean {
+    /**
+     * Returns the path of the database file, or "stream" for a database loaded from an InputStream.
+     */
+    String getDatabase();
+
+    /**
+     * Returns the query type of the searcher.
+     */
+    String getQueryType();
+
+    /**
+     * Returns the time taken to load the database, in milliseconds.
+     */
+    double getLoadTimeMillis();
+
+    /**
+     * Returns the time taken by each phase of the loading, see LoadTimings.
+     */
+    String getLoadPhases();
+
+    /**
+     * Returns the number of IP addresses searched, by single searches, lookups and batches.
+     */
+    long getSearches();
+
+    /**
+     * Returns the number of IP addresses found.
+     */
+    long getHits();
+
+    /**
+     * Returns the number of IP addresses not found.
+     */
+    long getMisses();
+
+    /**
+     * Returns the fraction of the IP addresses searched which were found, 0 if none was searched.
+     */
+    double getHitRatio();
+
+    /**
+     * Returns the number of IP addresses rejected because they were not IP literals of the database type.
+     */
+    long getParseErrors();
+
+    /**
+     * Returns the number of bytes read from the file by the searches, which is 0 unless the query type is BTREE.
+     */
+    long getIoBytes();
+
+    /**
+     * Returns the mean number of bytes read from the file by a search.
+     */
+    double getIoBytesPerSearch();
+
+    /**
+     * Returns the number of geo columns found in the geo column cache.
+     */
+    long getGeoColumnCacheHits();
+
+    /**
+     * Returns the number of geo columns decoded because they were not in the geo column cache.
+     */
+    long getGeoColumnCacheMisses();
+
+    /**
+     * Returns the fraction of the geo columns found in the geo column cache, 0 if it is disabled or unused.
+     */
+    double getGeoColumnCacheHitRatio();
+
+    /**
+     * Returns the number of regions found in the region cache.
+     */
+    long getRegionCacheHits();
+
+    /**
+     * Returns the number of regions searched in the index because they were not in the region cache.
+     */
+    long getRegionCacheMisses();
+
+    /**
+     * Returns the fraction of the regions found in the region cache, 0 if it is disabled or unused.
+     */
+    double getRegionCacheHitRatio();
+
+    /**
+     * Returns the mean latency of a single search or lookup, in nanoseconds.
+     */
+    double getMeanLatencyNanos();
+
+    /**
+     * Returns the median latency of a single search or lookup, in nanoseconds.
+     */
+    long getLatencyP50Nanos();
+
+    /**
+     * Returns the 90th percentile of the latency of a single search or lookup, in nanoseconds.
+     */
+    long getLatencyP90Nanos();
+
+    /**
+     * Returns the 99th percentile of the latency of a single search or lookup, in nanoseconds.
+     */
+    long getLatencyP99Nanos();
+
+    /**
+     * Returns the 99.9th percentile of the latency of a single search or lookup, in nanoseconds.
+     */
+    long getLatencyP999Nanos();
+
+    /**
+     * Returns the highest latency of a single search or lookup, in nanoseconds.
+     */
+    long getMaxLatencyNanos();
+
+    /**
+     * Resets the counters and the latencies, but not the load time.
+     */
+    void reset();
+}
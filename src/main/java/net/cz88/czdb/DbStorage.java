@@ -0,0 +1,218 @@
+package net.cz88.czdb;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The DbStorage class holds a database, mapped or copied outside of the Java heap, addressed by long offsets,
+ * so a database is not limited to the 2 GB of a byte array or of a single ByteBuffer.
+ *
+ * The bytes are split into chunks of CHUNK_SIZE bytes, each a ByteBuffer. Every chunk but the last one
+ * also covers the first MAX_READ bytes of the next chunk, so any read of at most MAX_READ bytes,
+ * such as an index segment or a data block, lies within the single chunk of its first byte
+ * and is served by absolute reads on that ByteBuffer, without copying.
+ *
+ * The chunks are created by StorageMapper, which maps or allocates them with MappedByteBuffers and direct buffers,
+ * and with a MemorySegment in the multi-release version for Java 22 and later, which unmaps the file on close.
+ * Only absolute reads are performed on the chunks, so a storage can be shared by all threads.
+ */
+final class DbStorage implements Closeable {
+    /**
+     * The number of bits of the offset within a chunk.
+     */
+    static final int CHUNK_BITS = 30;
+
+    /**
+     * The size of a chunk, 1 GB.
+     */
+    static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    /**
+     * The maximum length of a read within a chunk, 16 MB.
+     */
+    static final int MAX_READ = 16 << 20;
+
+    private final ByteBuffer[] chunks;
+    private final long size;
+    private final Closeable release;
+
+    /**
+     * Creates a storage from its chunks, see chunkCount and chunkLength.
+     *
+     * @param chunks The chunks, each starting at a multiple of CHUNK_SIZE.
+     * @param size The size of the storage.
+     * @param release Releases the memory of the chunks, null if the garbage collector releases it.
+     */
+    DbStorage(ByteBuffer[] chunks, long size, Closeable release) {
+        this.chunks = chunks;
+        this.size = size;
+        this.release = release;
+    }
+
+    /**
+     * Maps a part of a file, read only.
+     *
+     * @param channel The channel of the file.
+     * @param offset The position of the first byte to map.
+     * @param size The number of bytes to map.
+     * @return The storage of the mapping.
+     * @throws IOException If the file cannot be mapped.
+     */
+    static DbStorage map(FileChannel channel, long offset, long size) throws IOException {
+        return StorageMapper.map(channel, offset, size);
+    }
+
+    /**
+     * Copies the bytes of a channel into memory outside of the Java heap, allocated once for the given size.
+     * The channel is read from its current position, such as a file channel, or a stream through Channels.newChannel.
+     *
+     * @param channel The channel to read.
+     * @param size The number of bytes to copy.
+     * @return The storage of the copy.
+     * @throws EOFException If the channel ends before size bytes.
+     * @throws IOException If the channel cannot be read.
+     */
+    static DbStorage load(ReadableByteChannel channel, long size) throws IOException {
+        DbStorage storage = StorageMapper.allocate(size);
+        try {
+            storage.readFrom(channel);
+        } catch (IOException | RuntimeException e) {
+            storage.close();
+            throw e;
+        }
+        return storage;
+    }
+
+    /**
+     * Wraps a byte array, such as a database loaded in memory.
+     */
+    static DbStorage wrap(byte[] bytes) {
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount(bytes.length)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.wrap(bytes, (int) ((long) i << CHUNK_BITS), chunkLength(bytes.length, i)).slice();
+        }
+        return new DbStorage(chunks, bytes.length, null);
+    }
+
+    /**
+     * Returns the number of chunks of a storage of the given size.
+     */
+    static int chunkCount(long size) {
+        return (int) Math.max(1, (size + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+    }
+
+    /**
+     * Returns the length of a chunk of a storage of the given size, which overlaps the next chunk by MAX_READ bytes.
+     */
+    static int chunkLength(long size, int chunk) {
+        return (int) Math.min(CHUNK_SIZE + MAX_READ, size - ((long) chunk << CHUNK_BITS));
+    }
+
+    /**
+     * Returns the size of the storage.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns the chunk which holds the byte at the given position, and the MAX_READ bytes which follow it.
+     */
+    ByteBuffer chunk(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)];
+    }
+
+    /**
+     * Returns the position in its chunk of the byte at the given position.
+     */
+    static int offsetOf(long pos) {
+        return (int) pos & (int) (CHUNK_SIZE - 1);
+    }
+
+    byte get(long pos) {
+        return chunk(pos).get(offsetOf(pos));
+    }
+
+    /**
+     * Returns the big-endian int at the given position.
+     */
+    int getInt(long pos) {
+        return chunk(pos).getInt(offsetOf(pos));
+    }
+
+    /**
+     * Returns the big-endian long at the given position.
+     */
+    long getLong(long pos) {
+        return chunk(pos).getLong(offsetOf(pos));
+    }
+
+    /**
+     * Returns the unsigned little-endian int at the given position, such as a pointer of the database.
+     */
+    long getIntLong(long pos) {
+        return Integer.reverseBytes(getInt(pos)) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Copies bytes into the given array in bulk, through a duplicate of each chunk, so the positions of the chunks
+     * are never touched.
+     *
+     * @param pos The position of the first byte.
+     * @param dst The array to fill.
+     * @param off The position in the array.
+     * @param length The number of bytes to copy, which may span several chunks.
+     */
+    void get(long pos, byte[] dst, int off, int length) {
+        while (length > 0) {
+            int p = offsetOf(pos);
+            int n = (int) Math.min(length, CHUNK_SIZE - p);
+            ByteBuffer chunk = chunk(pos).duplicate();
+            ((Buffer) chunk).position(p);
+            chunk.get(dst, off, n);
+            pos += n;
+            off += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Fills the chunks with the bytes of the channel, in order.
+     * The bytes a chunk shares with the next chunk are copied from the next chunk once it is read.
+     */
+    private void readFrom(ReadableByteChannel channel) throws IOException {
+        for (int i = 0; i < chunks.length; i++) {
+            ByteBuffer dst = chunks[i].duplicate();
+            ((Buffer) dst).limit((int) Math.min(CHUNK_SIZE, size - ((long) i << CHUNK_BITS)));
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) {
+                    throw new EOFException();
+                }
+            }
+
+            if (i > 0) {
+                ByteBuffer shared = chunks[i - 1].duplicate();
+                ((Buffer) shared).position((int) CHUNK_SIZE);
+                ByteBuffer src = chunks[i].duplicate();
+                ((Buffer) src).limit(shared.remaining());
+                shared.put(src);
+            }
+        }
+    }
+
+    /**
+     * Releases the memory of the chunks if it is not left to the garbage collector.
+     * No read may be running, or be started, on a closed storage.
+     */
+    @Override
+    public void close() throws IOException {
+        if (release != null) {
+            release.close();
+        }
+    }
+}
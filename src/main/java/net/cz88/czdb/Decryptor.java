@@ -1,19 +1,202 @@
 package net.cz88.czdb;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Base64;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * The Decryptor class undoes the XOR of the geo map with the key, and applies it, since XOR is its own inverse.
+ * Byte i of the data is XOR-ed with byte i % length of the key, where i is the position of the byte in the whole data,
+ * so the data can also be decrypted piece by piece as it is read, given the position of each piece.
+ *
+ * The key is expanded into one long per key offset, holding the 8 key bytes which start there,
+ * so the data is XOR-ed 8 bytes at a time through a little-endian ByteBuffer view, which the JIT compiles
+ * to plain 8-byte loads and stores. Any ByteBuffer can be decrypted in place, heap, direct,
+ * or the view of a MemorySegment returned by asByteBuffer. Data of at least two PARALLEL_PIECE is split
+ * into pieces decrypted in parallel by the common fork-join pool.
+ */
 public class Decryptor {
+    /**
+     * The smallest piece of data decrypted by a single fork-join task, 1 MB.
+     */
+    static final int PARALLEL_PIECE = 1 << 20;
+
     private final byte[] keyBytes;
 
+    // the 8 key bytes from each offset of the key, wrapping around, as a little-endian long
+    private final long[] keyWords;
+
     public Decryptor(String key) {
         this.keyBytes = Base64.getDecoder().decode(key);
+        if (keyBytes.length == 0) {
+            throw new IllegalArgumentException("The key is empty.");
+        }
+
+        keyWords = new long[keyBytes.length];
+        for (int k = 0; k < keyBytes.length; k++) {
+            long word = 0;
+            for (int j = 0; j < Long.BYTES; j++) {
+                word |= (keyBytes[(k + j) % keyBytes.length] & 0xFFL) << (8 * j);
+            }
+            keyWords[k] = word;
+        }
     }
 
+    /**
+     * Decrypts the data into a new array.
+     *
+     * @param data The data, from its first byte.
+     * @return The decrypted data.
+     */
     public byte[] decrypt(byte[] data) {
-        byte[] result = new byte[data.length];
-        for (int i = 0; i < data.length; i++) {
-            result[i] = (byte) (data[i] ^ keyBytes[i % keyBytes.length]);
-        }
+        byte[] result = data.clone();
+        decrypt(result, 0, result.length, 0);
         return result;
     }
+
+    /**
+     * Decrypts a part of the data in place.
+     *
+     * @param data The array holding the part.
+     * @param offset The position of the part in the array.
+     * @param length The length of the part.
+     * @param position The position of the first byte of the part in the whole data.
+     */
+    public void decrypt(byte[] data, int offset, int length, long position) {
+        decrypt(ByteBuffer.wrap(data, offset, length), position);
+    }
+
+    /**
+     * Decrypts the bytes of the buffer from its position to its limit in place. The position of the buffer is unchanged.
+     *
+     * @param buffer The buffer, which must not be read-only.
+     * @param position The position of the byte at the position of the buffer in the whole data.
+     */
+    public void decrypt(ByteBuffer buffer, long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int from = buffer.position();
+        int to = buffer.limit();
+        if (to - from >= 2 * PARALLEL_PIECE) {
+            ForkJoinPool.commonPool().invoke(new DecryptTask(keyBytes, keyWords, view, from, to, position));
+        } else {
+            xor(keyBytes, keyWords, view, from, to, position);
+        }
+    }
+
+    /**
+     * Returns a stream which decrypts the bytes of the given stream as they are read.
+     *
+     * @param in The stream of the data.
+     * @param position The position in the whole data of the next byte of the stream.
+     * @return The decrypting stream, which closes the given stream when it is closed.
+     */
+    public InputStream decrypt(InputStream in, long position) {
+        return new DecryptingInputStream(in, position);
+    }
+
+    private static void xor(byte[] keyBytes, long[] words, ByteBuffer view, int from, int to, long position) {
+        int n = keyBytes.length;
+        int step = Long.BYTES % n;
+        int k = (int) (position % n);
+
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            view.putLong(i, view.getLong(i) ^ words[k]);
+            k += step;
+            if (k >= n) {
+                k -= n;
+            }
+        }
+        for (; i < to; i++) {
+            view.put(i, (byte) (view.get(i) ^ keyBytes[k]));
+            if (++k == n) {
+                k = 0;
+            }
+        }
+    }
+
+    /**
+     * Decrypts the bytes from index from to index to of a buffer, halving the range until it is at most two pieces.
+     */
+    private static final class DecryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] keyBytes;
+        private final long[] keyWords;
+        private final ByteBuffer view;
+        private final int from;
+        private final int to;
+        private final long position;
+
+        DecryptTask(byte[] keyBytes, long[] keyWords, ByteBuffer view, int from, int to, long position) {
+            this.keyBytes = keyBytes;
+            this.keyWords = keyWords;
+            this.view = view;
+            this.from = from;
+            this.to = to;
+            this.position = position;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < 2 * PARALLEL_PIECE) {
+                xor(keyBytes, keyWords, view, from, to, position);
+                return;
+            }
+
+            // only absolute reads and writes are made on the view, so the halves can share it
+            int half = (to - from) >>> 1 & -Long.BYTES;
+            invokeAll(new DecryptTask(keyBytes, keyWords, view, from, from + half, position),
+                    new DecryptTask(keyBytes, keyWords, view, from + half, to, position + half));
+        }
+    }
+
+    private final class DecryptingInputStream extends FilterInputStream {
+        private long position;
+
+        DecryptingInputStream(InputStream in, long position) {
+            super(in);
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                return b;
+            }
+            return (b ^ keyBytes[(int) (position++ % keyBytes.length)]) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                decrypt(b, off, n, position);
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
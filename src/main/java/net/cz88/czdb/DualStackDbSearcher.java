@@ -0,0 +1,298 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.utils.ByteUtil;
+import net.cz88.czdb.utils.IpParser;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The DualStackDbSearcher class searches IPv4 and IPv6 addresses with an IPv4 database and an IPv6 database.
+ *
+ * The family of an address is taken from its literal: an IPv4 literal goes to the IPv4 database,
+ * an IPv6 literal goes to the IPv6 database, unless it embeds an IPv4 address, such as ::ffff:1.2.3.4,
+ * which then goes to the IPv4 database like the address it embeds, see IpParser.embeddedIpv4.
+ * The batch methods split a batch of mixed families into one batch per database.
+ *
+ * It is thread-safe as long as both searchers are, which every DbSearcher is.
+ * <pre>
+ * DualStackDbSearcher searcher = new DualStackDbSearcher(
+ *         new DbSearcher(ipv4DbFile, QueryType.MEMORY, key),
+ *         new DbSearcher(ipv6DbFile, QueryType.MEMORY, key));
+ * String region = searcher.search("::ffff:1.2.3.4");
+ * </pre>
+ */
+public class DualStackDbSearcher {
+    /**
+     * The IPv6 address parsed by the current thread, so parsing a string allocates nothing.
+     */
+    private static final ThreadLocal<long[]> ipv6Keys = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final DbSearcher ipv4;
+    private final DbSearcher ipv6;
+
+    /**
+     * Creates a facade over an IPv4 searcher and an IPv6 searcher, which are closed by close.
+     *
+     * @param ipv4 the searcher of an IPv4 database
+     * @param ipv6 the searcher of an IPv6 database
+     * @throws IllegalArgumentException if a searcher is null or is not of the expected type
+     */
+    public DualStackDbSearcher(DbSearcher ipv4, DbSearcher ipv6) {
+        if (ipv4 == null || ipv4.getDbType() != DbType.IPV4) {
+            throw new IllegalArgumentException("The first searcher must search an IPv4 database.");
+        }
+        if (ipv6 == null || ipv6.getDbType() != DbType.IPV6) {
+            throw new IllegalArgumentException("The second searcher must search an IPv6 database.");
+        }
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+    }
+
+    /**
+     * Searches for the region of an IPv4 or IPv6 address.
+     *
+     * @param ip The IP address to search for. It is a string in the standard IP address format.
+     * @return The region of the IP address if it is found, null otherwise.
+     * @throws IllegalArgumentException If the provided IP address is not an IP literal.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String search(String ip) throws IOException {
+        long ipv4Address = IpParser.parseIpv4(ip);
+        if (ipv4Address != IpParser.INVALID) {
+            return ipv4.search((int) ipv4Address);
+        }
+
+        long[] key = ipv6Keys.get();
+        if (!IpParser.parseIpv6(ip, key)) {
+            throw new IllegalArgumentException("Invalid IP address: " + ip);
+        }
+        return search(key[0], key[1]);
+    }
+
+    /**
+     * Searches for the region of an IP address in network byte order, 4 bytes for IPv4 or 16 bytes for IPv6,
+     * as returned by InetAddress.getAddress().
+     *
+     * @param ip The IP address to search for.
+     * @return The region of the IP address if it is found, null otherwise.
+     * @throws IllegalArgumentException If the length of the address is neither 4 nor 16.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String search(byte[] ip) throws IOException {
+        if (ip != null && ip.length == 4) {
+            return ipv4.search(ByteUtil.getIntBE(ip, 0));
+        }
+        if (ip == null || ip.length != 16) {
+            throw new IllegalArgumentException("Invalid IP address length.");
+        }
+        return search(ByteUtil.getLongBE(ip, 0), ByteUtil.getLongBE(ip, 8));
+    }
+
+    /**
+     * Searches for the region of an IPv4 address.
+     *
+     * @param ip The IPv4 address in network byte order, so 1.2.3.4 is 0x01020304.
+     * @return The region of the IP address if it is found, null otherwise.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String search(int ip) throws IOException {
+        return ipv4.search(ip);
+    }
+
+    /**
+     * Searches for the region of an IPv6 address, in the IPv4 database if it embeds an IPv4 address.
+     *
+     * @param hi The high 64 bits of the IPv6 address.
+     * @param lo The low 64 bits of the IPv6 address.
+     * @return The region of the IP address if it is found, null otherwise.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String search(long hi, long lo) throws IOException {
+        long embedded = IpParser.embeddedIpv4(hi, lo);
+        if (embedded != IpParser.INVALID) {
+            return ipv4.search((int) embedded);
+        }
+        return ipv6.search(hi, lo);
+    }
+
+    /**
+     * Searches for the regions of many IPv4 and IPv6 addresses at once.
+     * The addresses are split by family, and each family is searched with one DbSearcher.searchBatch call.
+     *
+     * @param ips The IP addresses to search for, in the standard IP address format.
+     * @return The region of each IP address, in the order of the addresses, null for the addresses not found.
+     * @throws IllegalArgumentException If one of the IP addresses is not an IP literal.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String[] searchBatch(String[] ips) throws IOException {
+        Split split = new Split(ips.length);
+        long[] key = ipv6Keys.get();
+        for (int i = 0; i < ips.length; i++) {
+            long ipv4Address = IpParser.parseIpv4(ips[i]);
+            if (ipv4Address != IpParser.INVALID) {
+                split.addIpv4(i, (int) ipv4Address);
+            } else if (IpParser.parseIpv6(ips[i], key)) {
+                split.add(i, key[0], key[1]);
+            } else {
+                throw new IllegalArgumentException("Invalid IP address: " + ips[i]);
+            }
+        }
+        return split.search(ipv4, ipv6);
+    }
+
+    /**
+     * Searches for the regions of many IPv6 addresses at once, the ones embedding an IPv4 address
+     * being searched in the IPv4 database, see DbSearcher.searchBatch(long[]).
+     *
+     * @param ips The high and low 64 bits of each IPv6 address, so the length is twice the number of addresses.
+     * @return The region of each IP address, in the order of the addresses, null for the addresses not found.
+     * @throws IllegalArgumentException If the length of ips is odd.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String[] searchBatch(long[] ips) throws IOException {
+        if (ips.length % 2 != 0) {
+            throw new IllegalArgumentException("Invalid IP address length.");
+        }
+
+        Split split = new Split(ips.length / 2);
+        for (int i = 0; i < ips.length / 2; i++) {
+            split.add(i, ips[2 * i], ips[2 * i + 1]);
+        }
+        return split.search(ipv4, ipv6);
+    }
+
+    /**
+     * Searches for the regions of many IPv4 addresses at once, see DbSearcher.searchBatch(int[]).
+     *
+     * @param ips The IPv4 addresses in network byte order.
+     * @return The region of each IP address, in the order of the addresses, null for the addresses not found.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public String[] searchBatch(int[] ips) throws IOException {
+        return ipv4.searchBatch(ips);
+    }
+
+    /**
+     * Looks up an IPv4 or IPv6 address, see DbSearcher.lookup(String).
+     * The range of an address embedding an IPv4 address is the IPv4 range.
+     *
+     * @param ip The IP address to look up. It is a string in the standard IP address format.
+     * @return The result of the lookup if the IP address is found, null otherwise.
+     * @throws IllegalArgumentException If the provided IP address is not an IP literal.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public LookupResult lookup(String ip) throws IOException {
+        LookupResult result = new LookupResult();
+        return lookup(ip, result) ? result : null;
+    }
+
+    /**
+     * Looks up an IPv4 or IPv6 address into the given result, see DbSearcher.lookup(String, LookupResult).
+     *
+     * @param ip The IP address to look up. It is a string in the standard IP address format.
+     * @param result The result to overwrite.
+     * @return true if the IP address is found, false otherwise.
+     * @throws IllegalArgumentException If the provided IP address is not an IP literal.
+     * @throws IOException If an I/O error occurs during the search.
+     */
+    public boolean lookup(String ip, LookupResult result) throws IOException {
+        long ipv4Address = IpParser.parseIpv4(ip);
+        if (ipv4Address != IpParser.INVALID) {
+            return ipv4.lookup((int) ipv4Address, result);
+        }
+
+        long[] key = ipv6Keys.get();
+        if (!IpParser.parseIpv6(ip, key)) {
+            throw new IllegalArgumentException("Invalid IP address: " + ip);
+        }
+
+        long embedded = IpParser.embeddedIpv4(key[0], key[1]);
+        if (embedded != IpParser.INVALID) {
+            return ipv4.lookup((int) embedded, result);
+        }
+        return ipv6.lookup(key[0], key[1], result);
+    }
+
+    /**
+     * Returns the searcher of the IPv4 database.
+     *
+     * @return the IPv4 searcher
+     */
+    public DbSearcher getIpv4Searcher() {
+        return ipv4;
+    }
+
+    /**
+     * Returns the searcher of the IPv6 database.
+     *
+     * @return the IPv6 searcher
+     */
+    public DbSearcher getIpv6Searcher() {
+        return ipv6;
+    }
+
+    /**
+     * Closes both searchers.
+     */
+    public void close() {
+        try {
+            ipv4.close();
+        } finally {
+            ipv6.close();
+        }
+    }
+
+    /**
+     * A batch split by family, each address remembering its position in the batch.
+     */
+    private static final class Split {
+        final String[] regions;
+        final int[] ipv4Keys;
+        final int[] ipv4Positions;
+        int ipv4Count;
+        final long[] ipv6Keys;
+        final int[] ipv6Positions;
+        int ipv6Count;
+
+        Split(int n) {
+            regions = new String[n];
+            ipv4Keys = new int[n];
+            ipv4Positions = new int[n];
+            ipv6Keys = new long[n * 2];
+            ipv6Positions = new int[n];
+        }
+
+        void addIpv4(int position, int ip) {
+            ipv4Keys[ipv4Count] = ip;
+            ipv4Positions[ipv4Count++] = position;
+        }
+
+        void add(int position, long hi, long lo) {
+            long embedded = IpParser.embeddedIpv4(hi, lo);
+            if (embedded != IpParser.INVALID) {
+                addIpv4(position, (int) embedded);
+                return;
+            }
+            ipv6Keys[ipv6Count * 2] = hi;
+            ipv6Keys[ipv6Count * 2 + 1] = lo;
+            ipv6Positions[ipv6Count++] = position;
+        }
+
+        String[] search(DbSearcher ipv4, DbSearcher ipv6) throws IOException {
+            if (ipv4Count > 0) {
+                String[] found = ipv4.searchBatch(Arrays.copyOf(ipv4Keys, ipv4Count));
+                for (int i = 0; i < ipv4Count; i++) {
+                    regions[ipv4Positions[i]] = found[i];
+                }
+            }
+            if (ipv6Count > 0) {
+                String[] found = ipv6.searchBatch(Arrays.copyOf(ipv6Keys, ipv6Count * 2));
+                for (int i = 0; i < ipv6Count; i++) {
+                    regions[ipv6Positions[i]] = found[i];
+                }
+            }
+            return regions;
+        }
+    }
+}
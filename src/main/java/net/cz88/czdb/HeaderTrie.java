@@ -0,0 +1,150 @@
+package net.cz88.czdb;
+
+import java.util.Arrays;
+
+/**
+ * The HeaderTrie class finds the header line of a key from its leading bits, instead of a binary search
+ * over the whole header comparing 16-byte start IPs.
+ *
+ * All the start IPs of a header usually share a prefix, such as the 2000::/3 of the global IPv6 unicast addresses.
+ * The bits which follow that prefix cut the address space into 2^bits buckets, and the trie stores,
+ * for every bucket, the last header line whose start IP is not greater than the start of the bucket.
+ * The answer for a key lies between the line of its bucket and the line of the next bucket,
+ * which are the same line or a few lines apart, so a search is a lookup and a binary search over those few lines.
+ *
+ * The line of each bucket is stored like the leaves of a poptrie: the buckets are grouped by 64,
+ * each group has a bitmap of the buckets whose line differs from the previous bucket's, and only those lines are stored.
+ * The line of a bucket is then found by counting the bits of the bitmap up to the bucket,
+ * so the trie takes 12 bytes per group and 4 bytes per header line, however many buckets there are.
+ */
+final class HeaderTrie {
+    /**
+     * The maximum number of bits of the buckets, 2^20 buckets take 16384 groups.
+     */
+    static final int MAX_BITS = 20;
+
+    private final long[] sipHigh;
+    private final long[] sipLow;
+    private final int length;
+
+    // the common prefix of the high 64 bits of the start IPs, left aligned, and its number of bits
+    private final long prefix;
+    private final int prefixBits;
+    private final int bits;
+
+    private final long[] bitmaps;
+    private final int[] offsets;
+    private final int[] lines;
+
+    /**
+     * Builds the trie of a header.
+     *
+     * @param sipHigh The high 64 bits of the start IP of each header line, see DbSearcher.HeaderSipHigh.
+     * @param sipLow The low 64 bits of the start IP of each header line.
+     * @param length The number of header lines, at least 1.
+     * @param prefixBits The number of leading bits shared by the high 64 bits of all the start IPs, at most 63.
+     */
+    private HeaderTrie(long[] sipHigh, long[] sipLow, int length, int prefixBits) {
+        this.sipHigh = sipHigh;
+        this.sipLow = sipLow;
+        this.length = length;
+        this.prefixBits = prefixBits;
+        this.prefix = prefixBits == 0 ? 0 : sipHigh[0] & -1L << (64 - prefixBits);
+
+        // about 4 buckets per header line, so most buckets hold no more than one line start
+        int wanted = 34 - Integer.numberOfLeadingZeros(length);
+        this.bits = Math.max(1, Math.min(Math.min(MAX_BITS, wanted), 64 - prefixBits));
+
+        int buckets = 1 << bits;
+        int groups = (buckets + 63) >>> 6;
+        bitmaps = new long[groups];
+        offsets = new int[groups];
+        int[] values = new int[length + groups];
+        int count = 0;
+
+        int line = -1;
+        int previous = Integer.MIN_VALUE;
+        for (int b = 0; b < buckets; b++) {
+            long start = bucketStart(b);
+            while (line + 1 < length && Long.compareUnsigned(sipHigh[line + 1], start) <= 0
+                    && (sipHigh[line + 1] != start || sipLow[line + 1] == 0)) {
+                line++;
+            }
+            if ((b & 63) == 0) {
+                offsets[b >>> 6] = count;
+            }
+            if ((b & 63) == 0 || line != previous) {
+                bitmaps[b >>> 6] |= 1L << (b & 63);
+                values[count++] = line;
+                previous = line;
+            }
+        }
+        lines = Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Builds the trie of a header, or returns null if the start IPs share their whole high 64 bits,
+     * which leaves no bits to index.
+     *
+     * @param sipHigh The high 64 bits of the start IP of each header line, see DbSearcher.HeaderSipHigh.
+     * @param sipLow The low 64 bits of the start IP of each header line.
+     * @param length The number of header lines.
+     * @return The trie, null if it cannot index the header.
+     */
+    static HeaderTrie build(long[] sipHigh, long[] sipLow, int length) {
+        if (length == 0) {
+            return null;
+        }
+        int prefixBits = Long.numberOfLeadingZeros(sipHigh[0] ^ sipHigh[length - 1]);
+        if (prefixBits == 64) {
+            return null;
+        }
+        return new HeaderTrie(sipHigh, sipLow, length, prefixBits);
+    }
+
+    /**
+     * Finds the last header line whose start IP is not greater than the key, like DbSearcher.searchInHeader.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @return The header line, -1 if the key is before the first line.
+     */
+    int find(long hi, long lo) {
+        if (prefixBits > 0) {
+            long keyPrefix = hi & -1L << (64 - prefixBits);
+            if (keyPrefix != prefix) {
+                // the key is below or above all the start IPs
+                return Long.compareUnsigned(keyPrefix, prefix) < 0 ? -1 : length - 1;
+            }
+        }
+
+        int b = (int) (hi << prefixBits >>> (64 - bits));
+        int l = lineOf(b);
+        int h = b + 1 < 1 << bits ? lineOf(b + 1) : length - 1;
+
+        // the key is not below the line of its bucket, search the lines which start before the next bucket
+        l++;
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            long sh = sipHigh[m];
+            if (sh == hi ? Long.compareUnsigned(sipLow[m], lo) <= 0 : Long.compareUnsigned(sh, hi) < 0) {
+                l = m + 1;
+            } else {
+                h = m - 1;
+            }
+        }
+        return l - 1;
+    }
+
+    private int lineOf(int b) {
+        long bitmap = bitmaps[b >>> 6] & (-1L >>> (63 - (b & 63)));
+        return lines[offsets[b >>> 6] + Long.bitCount(bitmap) - 1];
+    }
+
+    /**
+     * Returns the high 64 bits of the first key of a bucket, whose low 64 bits are 0.
+     */
+    private long bucketStart(int b) {
+        return prefix | (long) b << (64 - prefixBits - bits);
+    }
+}
@@ -0,0 +1,113 @@
+package net.cz88.czdb;
+
+import java.util.Locale;
+
+/**
+ * The LoadTimings class holds the time a DbSearcher took to load its database, phase by phase,
+ * to find out where the startup time goes.
+ * <ul>
+ *     <li>hyper header: opening the file, reading and decrypting the hyper header;</li>
+ *     <li>data: reading the whole database in MEMORY mode, mapping it in MMAP mode;</li>
+ *     <li>header: reading the super part and the header block, and decoding the header;</li>
+ *     <li>geo map: reading and decrypting the geo map;</li>
+ *     <li>index: decoding the index blocks into the memory index in MEMORY mode;</li>
+ *     <li>options: applying the DbSearcherConfig, such as building the region dictionary.</li>
+ * </ul>
+ * A phase which does not apply to the query type takes 0 nanoseconds.
+ */
+public final class LoadTimings {
+    static final int HYPER_HEADER = 0;
+    static final int DATA = 1;
+    static final int HEADER = 2;
+    static final int GEO_MAP = 3;
+    static final int INDEX = 4;
+    static final int OPTIONS = 5;
+
+    private static final String[] NAMES = {"hyperHeader", "data", "header", "geoMap", "index", "options"};
+
+    private final long start;
+    private final long[] nanos = new long[NAMES.length];
+    private long last;
+
+    /**
+     * Starts timing a load.
+     *
+     * @param start The System.nanoTime() when the loading started.
+     */
+    LoadTimings(long start) {
+        this.start = start;
+        this.last = start;
+    }
+
+    /**
+     * Ends a phase, which lasted since the end of the previous phase.
+     *
+     * @param phase The phase, such as HEADER.
+     */
+    void record(int phase) {
+        long now = System.nanoTime();
+        nanos[phase] += now - last;
+        last = now;
+    }
+
+    /**
+     * Returns the time spent opening the file and decrypting the hyper header, in nanoseconds.
+     */
+    public long getHyperHeaderNanos() {
+        return nanos[HYPER_HEADER];
+    }
+
+    /**
+     * Returns the time spent reading or mapping the database, in nanoseconds.
+     */
+    public long getDataNanos() {
+        return nanos[DATA];
+    }
+
+    /**
+     * Returns the time spent reading and decoding the super part and the header block, in nanoseconds.
+     */
+    public long getHeaderNanos() {
+        return nanos[HEADER];
+    }
+
+    /**
+     * Returns the time spent reading and decrypting the geo map, in nanoseconds.
+     */
+    public long getGeoMapNanos() {
+        return nanos[GEO_MAP];
+    }
+
+    /**
+     * Returns the time spent decoding the memory index, in nanoseconds.
+     */
+    public long getIndexNanos() {
+        return nanos[INDEX];
+    }
+
+    /**
+     * Returns the time spent applying the DbSearcherConfig, in nanoseconds.
+     */
+    public long getOptionsNanos() {
+        return nanos[OPTIONS];
+    }
+
+    /**
+     * Returns the time from the start of the load to the end of its last recorded phase.
+     */
+    public long getTotalNanos() {
+        return last - start;
+    }
+
+    /**
+     * Returns the phases in milliseconds, such as "total=12.345ms, hyperHeader=0.512ms, data=9.876ms, ...".
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "total=%.3fms", getTotalNanos() / 1e6));
+        for (int i = 0; i < NAMES.length; i++) {
+            sb.append(String.format(Locale.ROOT, ", %s=%.3fms", NAMES[i], nanos[i] / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,356 @@
+package net.cz88.czdb;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * The LookupResult class holds the result of DbSearcher.lookup: the region of the IP address,
+ * and the range of the index block which contains it.
+ *
+ * The region is decoded lazily, as a whole. lookup only copies the data block, which is at most 255 bytes,
+ * and the first accessor which needs the region decodes all of it, geo columns included,
+ * unless the region dictionary already holds it. The column accessors then split the region,
+ * only creating the String of the column they return.
+ *
+ * The region is made of columns separated by a tab, the first column being the location "国家–省份–城市–区县",
+ * whose parts are separated by "–", and the last column being the ISP, for example "中国–上海–上海–虹口区\t电信".
+ *
+ * A LookupResult can be reused for many lookups to save its allocation, each lookup overwrites it.
+ * It is not thread-safe, every thread should use its own.
+ * <pre>
+ * LookupResult result = new LookupResult();
+ * if (searcher.lookup("1.2.3.4", result)) {
+ *     String country = result.getCountry();
+ * }
+ * </pre>
+ */
+public final class LookupResult {
+    /**
+     * The separator of the columns of a region.
+     */
+    public static final char COLUMN_SEPARATOR = '\t';
+
+    /**
+     * The separator of the parts of the location column.
+     */
+    public static final char LOCATION_SEPARATOR = '–';
+
+    private DbSearcher searcher;
+    private DbType dbType;
+    private boolean found;
+
+    // the range of the index block as unsigned 128-bit keys, an IPv4 address takes the top 32 bits of the high half
+    private long startHigh;
+    private long startLow;
+    private long endHigh;
+    private long endLow;
+
+    // the data block, decoded into region on first use
+    final byte[] data = new byte[256];
+    private int dataLen;
+    private String region;
+
+    /**
+     * Clears the result before a lookup.
+     */
+    void reset(DbSearcher searcher, DbType dbType) {
+        this.searcher = searcher;
+        this.dbType = dbType;
+        this.found = false;
+        this.startHigh = 0;
+        this.startLow = 0;
+        this.endHigh = 0;
+        this.endLow = 0;
+        this.dataLen = 0;
+        this.region = null;
+    }
+
+    /**
+     * Sets the range of the found index block, given as unsigned 128-bit keys.
+     */
+    void setRange(long startHigh, long startLow, long endHigh, long endLow) {
+        this.found = true;
+        this.startHigh = startHigh;
+        this.startLow = startLow;
+        this.endHigh = endHigh;
+        this.endLow = endLow;
+    }
+
+    /**
+     * Returns the bounds of the range as the unsigned 128-bit keys given to setRange.
+     */
+    long startHighKey() {
+        return startHigh;
+    }
+
+    long startLowKey() {
+        return startLow;
+    }
+
+    long endHighKey() {
+        return endHigh;
+    }
+
+    long endLowKey() {
+        return endLow;
+    }
+
+    /**
+     * Sets the data block, copied into data, to decode on first use.
+     */
+    void setDataLength(int dataLen) {
+        this.dataLen = dataLen;
+    }
+
+    /**
+     * Sets the region, already decoded by the region dictionary.
+     */
+    void setRegion(String region) {
+        this.region = region;
+    }
+
+    /**
+     * Returns whether the last lookup found the IP address.
+     * All the other accessors return null or 0 when it did not.
+     *
+     * @return true if the IP address was found
+     */
+    public boolean isFound() {
+        return found;
+    }
+
+    /**
+     * Returns the region of the IP address, as returned by DbSearcher.search.
+     *
+     * @return the region, null if the IP address was not found
+     */
+    public String getRegion() {
+        if (!found) {
+            return null;
+        }
+        if (region == null) {
+            region = searcher.decodeRegion(data, dataLen);
+        }
+        return region;
+    }
+
+    /**
+     * Returns the number of columns of the region.
+     *
+     * @return the number of columns, 0 if the IP address was not found
+     */
+    public int getColumnCount() {
+        String r = getRegion();
+        if (r == null) {
+            return 0;
+        }
+
+        int count = 1;
+        for (int i = r.indexOf(COLUMN_SEPARATOR); i >= 0; i = r.indexOf(COLUMN_SEPARATOR, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns a column of the region.
+     *
+     * @param index the index of the column, from 0
+     * @return the column, null if the IP address was not found or the region has no such column
+     */
+    public String getColumn(int index) {
+        return field(getRegion(), COLUMN_SEPARATOR, index);
+    }
+
+    /**
+     * Returns the country, the first part of the location column.
+     *
+     * @return the country, null if the IP address was not found
+     */
+    public String getCountry() {
+        return locationPart(0);
+    }
+
+    /**
+     * Returns the province, the second part of the location column.
+     *
+     * @return the province, null if the IP address was not found or the location has no province
+     */
+    public String getProvince() {
+        return locationPart(1);
+    }
+
+    /**
+     * Returns the city, the third part of the location column.
+     *
+     * @return the city, null if the IP address was not found or the location has no city
+     */
+    public String getCity() {
+        return locationPart(2);
+    }
+
+    /**
+     * Returns the district, the fourth part of the location column.
+     *
+     * @return the district, null if the IP address was not found or the location has no district
+     */
+    public String getDistrict() {
+        return locationPart(3);
+    }
+
+    /**
+     * Returns the ISP, the last column of the region.
+     *
+     * @return the ISP, null if the IP address was not found or the region has a single column
+     */
+    public String getIsp() {
+        String r = getRegion();
+        if (r == null) {
+            return null;
+        }
+
+        int i = r.lastIndexOf(COLUMN_SEPARATOR);
+        return i < 0 ? null : r.substring(i + 1);
+    }
+
+    /**
+     * Returns the first address of the range which contains the IP address, in an IPv4 database.
+     * Every address from getStartIpv4 to getEndIpv4 has the same region.
+     *
+     * @return the first address in network byte order, so 1.2.3.4 is 0x01020304, 0 if the IP address was not found
+     */
+    public int getStartIpv4() {
+        return dbType == DbType.IPV4 ? (int) (startHigh >>> 32) : 0;
+    }
+
+    /**
+     * Returns the last address of the range which contains the IP address, in an IPv4 database.
+     *
+     * @return the last address in network byte order, 0 if the IP address was not found
+     */
+    public int getEndIpv4() {
+        return dbType == DbType.IPV4 ? (int) (endHigh >>> 32) : 0;
+    }
+
+    /**
+     * Returns the high 64 bits of the first address of the range which contains the IP address.
+     * For an IPv4 database it is 0, and the low 64 bits hold the address as an unsigned 32-bit value.
+     *
+     * @return the high 64 bits of the first address
+     */
+    public long getStartIpHigh() {
+        return dbType == DbType.IPV4 ? 0 : startHigh;
+    }
+
+    /**
+     * Returns the low 64 bits of the first address of the range which contains the IP address.
+     *
+     * @return the low 64 bits of the first address
+     */
+    public long getStartIpLow() {
+        return dbType == DbType.IPV4 ? startHigh >>> 32 : startLow;
+    }
+
+    /**
+     * Returns the high 64 bits of the last address of the range which contains the IP address.
+     *
+     * @return the high 64 bits of the last address
+     */
+    public long getEndIpHigh() {
+        return dbType == DbType.IPV4 ? 0 : endHigh;
+    }
+
+    /**
+     * Returns the low 64 bits of the last address of the range which contains the IP address.
+     *
+     * @return the low 64 bits of the last address
+     */
+    public long getEndIpLow() {
+        return dbType == DbType.IPV4 ? endHigh >>> 32 : endLow;
+    }
+
+    /**
+     * Returns the first address of the range which contains the IP address, as text.
+     *
+     * @return the first address, null if the IP address was not found
+     */
+    public String getStartIp() {
+        return found ? toIpString(startHigh, startLow) : null;
+    }
+
+    /**
+     * Returns the last address of the range which contains the IP address, as text.
+     *
+     * @return the last address, null if the IP address was not found
+     */
+    public String getEndIp() {
+        return found ? toIpString(endHigh, endLow) : null;
+    }
+
+    @Override
+    public String toString() {
+        if (!found) {
+            return "LookupResult{not found}";
+        }
+        return "LookupResult{" + getStartIp() + " - " + getEndIp() + ", " + getRegion() + "}";
+    }
+
+    private String locationPart(int index) {
+        String r = getRegion();
+        if (r == null) {
+            return null;
+        }
+
+        int end = r.indexOf(COLUMN_SEPARATOR);
+        return field(r, end < 0 ? r.length() : end, LOCATION_SEPARATOR, index);
+    }
+
+    private static String field(String text, char separator, int index) {
+        return text == null ? null : field(text, text.length(), separator, index);
+    }
+
+    /**
+     * Returns the field at the given index of the text before limit, the fields being separated by the separator.
+     * Only the returned field is copied into a new String.
+     */
+    private static String field(String text, int limit, char separator, int index) {
+        if (index < 0) {
+            return null;
+        }
+
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            int next = text.indexOf(separator, start);
+            if (next < 0 || next >= limit) {
+                return null;
+            }
+            start = next + 1;
+        }
+
+        int end = text.indexOf(separator, start);
+        return text.substring(start, end < 0 || end > limit ? limit : end);
+    }
+
+    private String toIpString(long high, long low) {
+        byte[] bytes;
+        if (dbType == DbType.IPV4) {
+            bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (high >>> (56 - i * 8));
+            }
+        } else {
+            bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (high >>> (56 - i * 8));
+                bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+            }
+        }
+
+        try {
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        } catch (UnknownHostException e) {
+            // never thrown for an address of 4 or 16 bytes
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.entity.IndexBlock;
+
+/**
+ * The MemoryIndex class holds all the index blocks of a database, decoded into parallel primitive arrays.
+ * It is built once when a database is loaded in MEMORY mode, so that a search is a binary search
+ * over contiguous keys instead of copying bytes out of the database at every probe.
+ *
+ * The start and end IPs are stored with their sign bit flipped, so that a signed comparison orders them
+ * like the unsigned addresses they are.
+ * +------------------------+------------------------+-----------+-----------+
+ * | start IP               | end IP                 | data ptr  | data len  |
+ * +------------------------+------------------------+-----------+-----------+
+ * | start4 (IPv4)          | end4 (IPv4)            | dataPtr   | dataLen   |
+ * | startHigh/startLow     | endHigh/endLow         |           |           |
+ * | (IPv6)                 | (IPv6)                 |           |           |
+ * +------------------------+------------------------+-----------+-----------+
+ *
+ * The start IPs can also be copied in Eytzinger order, the order of a breadth-first walk of the binary search tree,
+ * see buildEytzinger. A search then reads the nodes of a level next to each other and keeps the top levels
+ * in a few hot cache lines, instead of jumping across the whole sorted array at every probe.
+ */
+final class MemoryIndex {
+    private final DbType dbType;
+    private final int length;
+
+    private int[] start4;
+    private int[] end4;
+
+    private long[] startHigh;
+    private long[] startLow;
+    private long[] endHigh;
+    private long[] endLow;
+
+    private final int[] dataPtr;
+    private final byte[] dataLen;
+
+    // The region dictionary id of each index block, null unless a region dictionary is used
+    private int[] regionId;
+
+    /**
+     * The start IPs in Eytzinger order from position 1, null unless buildEytzinger was called.
+     * An IPv6 start IP takes two longs, its high half then its low half, so a probe reads a single cache line.
+     * eytzingerRank holds the sorted position of each of them.
+     */
+    private int[] eytzinger4;
+    private long[] eytzinger6;
+    private int[] eytzingerRank;
+
+    /**
+     * Decodes the index blocks of a database loaded in memory.
+     *
+     * @param db The database, the hyper header excluded.
+     * @param dbType The type of the database.
+     * @param firstIndexPtr The pointer to the first index block.
+     * @param lastIndexPtr The pointer to the last index block.
+     */
+    MemoryIndex(DbStorage db, DbType dbType, long firstIndexPtr, long lastIndexPtr) {
+        int blockLen = IndexBlock.getIndexBlockLength(dbType);
+        this.dbType = dbType;
+        this.length = (int) ((lastIndexPtr - firstIndexPtr) / blockLen) + 1;
+        this.dataPtr = new int[length];
+        this.dataLen = new byte[length];
+
+        if (dbType == DbType.IPV4) {
+            start4 = new int[length];
+            end4 = new int[length];
+        } else {
+            startHigh = new long[length];
+            startLow = new long[length];
+            endHigh = new long[length];
+            endLow = new long[length];
+        }
+
+        int ipBytesLength = dbType == DbType.IPV4 ? 4 : 16;
+        long p = firstIndexPtr;
+        for (int i = 0; i < length; i++, p += blockLen) {
+            if (dbType == DbType.IPV4) {
+                start4[i] = db.getInt(p) ^ Integer.MIN_VALUE;
+                end4[i] = db.getInt(p + 4) ^ Integer.MIN_VALUE;
+            } else {
+                startHigh[i] = db.getLong(p) ^ Long.MIN_VALUE;
+                startLow[i] = db.getLong(p + 8) ^ Long.MIN_VALUE;
+                endHigh[i] = db.getLong(p + 16) ^ Long.MIN_VALUE;
+                endLow[i] = db.getLong(p + 24) ^ Long.MIN_VALUE;
+            }
+            // the pointers are unsigned 32-bit integers, see getDataPtr
+            dataPtr[i] = (int) db.getIntLong(p + ipBytesLength * 2);
+            dataLen[i] = db.get(p + ipBytesLength * 2 + 4);
+        }
+    }
+
+    /**
+     * Finds the index block which contains the IP address.
+     * The IP address is an unsigned 128-bit key, an IPv4 address sits in the top 32 bits of hi.
+     *
+     * @param hi The high 64 bits of the key.
+     * @param lo The low 64 bits of the key.
+     * @return The position of the index block, -1 if not found.
+     */
+    int find(long hi, long lo) {
+        if (eytzingerRank != null) {
+            if (dbType == DbType.IPV4) {
+                return findEytzinger4((int) (hi >>> 32) ^ Integer.MIN_VALUE);
+            }
+            return findEytzinger6(hi ^ Long.MIN_VALUE, lo ^ Long.MIN_VALUE);
+        }
+
+        if (dbType == DbType.IPV4) {
+            return find4((int) (hi >>> 32) ^ Integer.MIN_VALUE);
+        }
+        return find6(hi ^ Long.MIN_VALUE, lo ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * Finds the last block whose start IP is not greater than the key, then checks the key against its end IP.
+     * The loop only moves base forward, which the JIT can turn into conditional moves.
+     */
+    private int find4(int key) {
+        int[] start = start4;
+        int base = 0, n = length;
+        while (n > 1) {
+            int half = n >>> 1;
+            if (start[base + half] <= key) {
+                base += half;
+            }
+            n -= half;
+        }
+
+        if (start[base] <= key && key <= end4[base]) {
+            return base;
+        }
+        return -1;
+    }
+
+    private int find6(long hi, long lo) {
+        long[] sh = startHigh, sl = startLow;
+        int base = 0, n = length;
+        while (n > 1) {
+            int half = n >>> 1;
+            int m = base + half;
+            if (sh[m] < hi || sh[m] == hi && sl[m] <= lo) {
+                base = m;
+            }
+            n -= half;
+        }
+
+        boolean afterStart = sh[base] < hi || sh[base] == hi && sl[base] <= lo;
+        boolean beforeEnd = hi < endHigh[base] || hi == endHigh[base] && lo <= endLow[base];
+        return afterStart && beforeEnd ? base : -1;
+    }
+
+    /**
+     * Walks the Eytzinger tree down to a leaf, going right while the start IP is not greater than the key.
+     * The walk ends at the first start IP greater than the key, found by dropping the trailing right turns,
+     * and the block before it in sorted order is the only one which can contain the key.
+     * The loop has no data-dependent branch, the JIT turns the comparison into a conditional add.
+     */
+    private int findEytzinger4(int key) {
+        int[] tree = eytzinger4;
+        int k = 1;
+        while (k <= length) {
+            k = 2 * k + (tree[k] <= key ? 1 : 0);
+        }
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+
+        int i = (k == 0 ? length : eytzingerRank[k]) - 1;
+        return i >= 0 && key <= end4[i] ? i : -1;
+    }
+
+    private int findEytzinger6(long hi, long lo) {
+        long[] tree = eytzinger6;
+        int k = 1;
+        while (k <= length) {
+            long h = tree[2 * k];
+            k = 2 * k + (h < hi | h == hi & tree[2 * k + 1] <= lo ? 1 : 0);
+        }
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+
+        int i = (k == 0 ? length : eytzingerRank[k]) - 1;
+        return i >= 0 && (hi < endHigh[i] || hi == endHigh[i] && lo <= endLow[i]) ? i : -1;
+    }
+
+    /**
+     * Copies the start IPs in Eytzinger order, so that find walks them instead of the sorted arrays.
+     * It costs another copy of the start IPs and an int per index block.
+     */
+    void buildEytzinger() {
+        int[] rank = new int[length + 1];
+        if (dbType == DbType.IPV4) {
+            int[] tree = new int[length + 1];
+            fillEytzinger(tree, null, rank, 0, 1);
+            eytzinger4 = tree;
+        } else {
+            long[] tree = new long[2 * (length + 1)];
+            fillEytzinger(null, tree, rank, 0, 1);
+            eytzinger6 = tree;
+        }
+        eytzingerRank = rank;
+    }
+
+    /**
+     * Fills the subtree rooted at the node k with the start IPs from the sorted position i, by an in-order walk.
+     *
+     * @return The sorted position following the subtree.
+     */
+    private int fillEytzinger(int[] tree4, long[] tree6, int[] rank, int i, int k) {
+        if (k <= length) {
+            i = fillEytzinger(tree4, tree6, rank, i, 2 * k);
+            if (tree4 != null) {
+                tree4[k] = start4[i];
+            } else {
+                tree6[2 * k] = startHigh[i];
+                tree6[2 * k + 1] = startLow[i];
+            }
+            rank[k] = i;
+            i = fillEytzinger(tree4, tree6, rank, i + 1, 2 * k + 1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of index blocks.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Returns the high 64 bits of the start IP of the index block at the given position, as a search key.
+     * An IPv4 address takes the top 32 bits.
+     */
+    long getStartHigh(int i) {
+        return dbType == DbType.IPV4 ? ((start4[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL) << 32 : startHigh[i] ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the low 64 bits of the start IP of the index block at the given position, as a search key.
+     */
+    long getStartLow(int i) {
+        return dbType == DbType.IPV4 ? 0 : startLow[i] ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the high 64 bits of the end IP of the index block at the given position, as a search key.
+     */
+    long getEndHigh(int i) {
+        return dbType == DbType.IPV4 ? ((end4[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL) << 32 : endHigh[i] ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the low 64 bits of the end IP of the index block at the given position, as a search key.
+     */
+    long getEndLow(int i) {
+        return dbType == DbType.IPV4 ? 0 : endLow[i] ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the data pointer of the index block at the given position.
+     */
+    long getDataPtr(int i) {
+        return dataPtr[i] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the data length of the index block at the given position.
+     */
+    int getDataLen(int i) {
+        return dataLen[i] & 0xFF;
+    }
+
+    /**
+     * Returns the region dictionary id of the index block at the given position.
+     */
+    int getRegionId(int i) {
+        return regionId[i];
+    }
+
+    /**
+     * Stores the region dictionary id of every index block, so that a search maps straight to its region.
+     *
+     * @param dictionary The region dictionary of the database.
+     */
+    void setRegionIds(RegionDictionary dictionary) {
+        int[] ids = new int[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = dictionary.idOf(getDataPtr(i));
+        }
+        regionId = ids;
+    }
+}
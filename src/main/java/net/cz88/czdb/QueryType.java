@@ -2,7 +2,7 @@ package net.cz88.czdb;
 
 /**
  * The QueryType enum represents the different types of query modes available in the application.
- * It includes MEMORY, BINARY, and BTREE modes.
+ * It includes MEMORY, MMAP, and BTREE modes.
  */
 public enum QueryType {
     /**
@@ -10,12 +10,17 @@ public enum QueryType {
      * This mode is thread-safe and stores the data in memory.
      */
     MEMORY,
+    /**
+     * Represents the MMAP mode.
+     * This mode is thread-safe and maps the database file into memory instead of copying it onto the heap.
+     * The mapped pages live in the OS page cache, so they are shared by every process that maps the same file.
+     */
+    MMAP,
     /**
      * Represents the BTREE mode.
      * This mode uses a B-tree data structure for querying.
-     * It is not thread-safe. Different threads can use different query objects.
-     * In case of high concurrency, it may lead to too many open files error.
-     * In such cases, either increase the maximum allowed open files in the kernel (fs.file-max) or use the MEMORY mode.
+     * It is thread-safe. The index and the data are read with positional reads on one shared file handler,
+     * so a single query object can serve all threads with one open file.
      */
     BTREE
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package net.cz88.czdb;
+
+/**
+ * The RecentRanges class keeps the last ranges found by the searches of one thread, with their regions.
+ * Neighbouring addresses, such as those of consecutive log lines, often fall into the same index block,
+ * so a search which falls into one of these ranges returns its region without touching the header or the index.
+ *
+ * Like MemoryIndex, the start and end IPs are stored as unsigned 128-bit keys with their sign bit flipped,
+ * so a signed comparison orders them like the unsigned addresses they are. A range is only a few longs,
+ * so the cache fits in a few cache lines and is scanned linearly. The oldest range is replaced first.
+ *
+ * It is not thread-safe, DbSearcher keeps one per thread.
+ */
+final class RecentRanges {
+    private final long[] startHigh;
+    private final long[] startLow;
+    private final long[] endHigh;
+    private final long[] endLow;
+    private final String[] regions;
+    private int size;
+    private int next;
+
+    /**
+     * Receives the range of the index block found by DbSearcher.locate, which is then added with its region.
+     */
+    final LookupResult range = new LookupResult();
+
+    /**
+     * Creates a cache of the given number of ranges.
+     *
+     * @param capacity the number of ranges, at least 1
+     */
+    RecentRanges(int capacity) {
+        startHigh = new long[capacity];
+        startLow = new long[capacity];
+        endHigh = new long[capacity];
+        endLow = new long[capacity];
+        regions = new String[capacity];
+    }
+
+    /**
+     * Returns the region of the cached range which contains the key.
+     *
+     * @param hi the high 64 bits of the key
+     * @param lo the low 64 bits of the key
+     * @return the region, null if no cached range contains the key
+     */
+    String get(long hi, long lo) {
+        long h = hi ^ Long.MIN_VALUE;
+        long l = lo ^ Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            if ((startHigh[i] < h || startHigh[i] == h && startLow[i] <= l)
+                    && (h < endHigh[i] || h == endHigh[i] && l <= endLow[i])) {
+                return regions[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the range last received by range with its region, replacing the oldest range if the cache is full.
+     *
+     * @param region the region of the range
+     */
+    void add(String region) {
+        int i = next;
+        startHigh[i] = range.startHighKey() ^ Long.MIN_VALUE;
+        startLow[i] = range.startLowKey() ^ Long.MIN_VALUE;
+        endHigh[i] = range.endHighKey() ^ Long.MIN_VALUE;
+        endLow[i] = range.endLowKey() ^ Long.MIN_VALUE;
+        regions[i] = region;
+        next = i + 1 == regions.length ? 0 : i + 1;
+        if (size < regions.length) {
+            size++;
+        }
+    }
+}
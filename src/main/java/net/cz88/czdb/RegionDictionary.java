@@ -0,0 +1,79 @@
+package net.cz88.czdb;
+
+/**
+ * The RegionDictionary class holds the decoded region of every distinct data block of a database.
+ * Many index blocks point to the same data block, so the regions are decoded once when the database is loaded
+ * and a search only looks up the dictionary id of its data pointer.
+ *
+ * The id of a data block is its position in the data pointers given in ascending order.
+ * In MEMORY mode the ids are stored in the MemoryIndex, so a search maps straight to its region.
+ * The other modes find the data pointer in the index blocks of the file, which have no room for an id,
+ * so they look it up in an open addressing hash table of the data pointers, with one probe most of the time.
+ */
+final class RegionDictionary {
+    // the data pointers, at most half of the slots, 0 marking an empty slot, and the id of each
+    private final long[] slots;
+    private final int[] ids;
+    private final int mask;
+    private final String[] regions;
+
+    /**
+     * Constructs a dictionary from the data pointers, in ascending order, and their decoded regions.
+     *
+     * @param dataPtrs The distinct data pointers in ascending order, none of them 0.
+     * @param regions The region of each data pointer.
+     */
+    RegionDictionary(long[] dataPtrs, String[] regions) {
+        int capacity = 2;
+        while (capacity < dataPtrs.length * 2) {
+            capacity <<= 1;
+        }
+        this.slots = new long[capacity];
+        this.ids = new int[capacity];
+        this.mask = capacity - 1;
+        this.regions = regions;
+
+        for (int id = 0; id < dataPtrs.length; id++) {
+            int slot = slotOf(dataPtrs[id]);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = dataPtrs[id];
+            ids[slot] = id;
+        }
+    }
+
+    /**
+     * Returns the dictionary id of a data pointer.
+     *
+     * @param dataPtr The data pointer.
+     * @return The id of the data pointer, a negative number if the data pointer is not in the dictionary.
+     */
+    int idOf(long dataPtr) {
+        for (int slot = slotOf(dataPtr); slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (slots[slot] == dataPtr) {
+                return ids[slot];
+            }
+        }
+        return -1;
+    }
+
+    private int slotOf(long dataPtr) {
+        // the data pointers are close to each other, the multiplication spreads them over the table
+        return (int) ((dataPtr * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /**
+     * Returns the region of a dictionary id.
+     */
+    String getRegion(int id) {
+        return regions[id];
+    }
+
+    /**
+     * Returns the number of distinct data blocks.
+     */
+    int size() {
+        return regions.length;
+    }
+}
@@ -0,0 +1,445 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.exception.IpFormatException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The ReloadingDbSearcher class serves searches from a database file which may be replaced while it runs.
+ *
+ * A background thread checks the modification time and the size of the file at a fixed interval.
+ * Once a change has been stable for one interval, so a file being copied is not loaded half written,
+ * it builds a new DbSearcher and warms it up, then publishes it with one atomic reference swap.
+ * The old DbSearcher is closed once the searches which were running on it have finished.
+ *
+ * Searches never block and never wait for a reload: each one takes the current DbSearcher and holds it
+ * with a reference count until it returns. If the new file cannot be loaded, for example because it has expired,
+ * the current DbSearcher keeps serving and the error is available from getLastReloadError.
+ * The watcher does not load that file again until it changes.
+ *
+ * In MMAP and BTREE modes the old DbSearcher keeps reading the old file until it is closed, so a new file should
+ * be written next to the database file and moved over it, rather than written into the database file in place.
+ * <pre>
+ * ReloadingDbSearcher searcher = new ReloadingDbSearcher(dbFile, QueryType.MEMORY, key);
+ * String region = searcher.search("1.2.3.4");
+ * </pre>
+ */
+public class ReloadingDbSearcher {
+    /**
+     * The default interval between two checks of the file, in milliseconds.
+     */
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 10_000;
+
+    private final Path dbFile;
+    private final QueryType queryType;
+    private final String key;
+    private final DbSearcherConfig config;
+
+    private final AtomicReference<Instance> current = new AtomicReference<>();
+    private final ScheduledExecutorService watcher;
+
+    // the modification time and size of the loaded file, of a change not stable yet, and of a file which failed to load
+    private FileStamp loadedStamp;
+    private FileStamp pendingStamp;
+    private FileStamp failedStamp;
+
+    // the number of DbSearcher built, whether they loaded or not
+    final AtomicInteger loadAttempts = new AtomicInteger();
+
+    private volatile Exception lastReloadError;
+    private volatile boolean closed;
+
+    /**
+     * Loads the database file and checks it for changes every DEFAULT_CHECK_INTERVAL_MILLIS.
+     *
+     * @param dbFile The path to the database file.
+     * @param queryType The type of the query (MEMORY, MMAP, BTREE).
+     * @param key The key used for decrypting the header block of the database file.
+     * @throws Exception If the database file cannot be loaded.
+     */
+    public ReloadingDbSearcher(String dbFile, QueryType queryType, String key) throws Exception {
+        this(dbFile, queryType, key, new DbSearcherConfig(), DEFAULT_CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Loads the database file and checks it for changes at the given interval.
+     *
+     * @param dbFile The path to the database file.
+     * @param queryType The type of the query (MEMORY, MMAP, BTREE).
+     * @param key The key used for decrypting the header block of the database file.
+     * @param config The optional settings of every DbSearcher built.
+     * @param checkIntervalMillis The interval between two checks of the file, in milliseconds, 0 to never check.
+     * @throws Exception If the database file cannot be loaded.
+     */
+    public ReloadingDbSearcher(String dbFile, QueryType queryType, String key, DbSearcherConfig config,
+                               long checkIntervalMillis) throws Exception {
+        if (checkIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid check interval: " + checkIntervalMillis);
+        }
+
+        this.dbFile = Paths.get(dbFile);
+        this.queryType = queryType;
+        this.key = key;
+        this.config = config;
+
+        loadedStamp = FileStamp.of(this.dbFile);
+        current.set(new Instance(load()));
+
+        if (checkIntervalMillis > 0) {
+            watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "czdb-reload-" + this.dbFile.getFileName());
+                t.setDaemon(true);
+                return t;
+            });
+            watcher.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            watcher = null;
+        }
+    }
+
+    /**
+     * Searches for the region of an IP address, see DbSearcher.search(String).
+     */
+    public String search(String ip) throws IpFormatException, IOException {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.search(ip);
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Searches for the region of an IP address in network byte order, see DbSearcher.search(byte[]).
+     */
+    public String search(byte[] ip) throws IOException {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.search(ip);
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Searches for the region of an IPv4 address, see DbSearcher.search(int).
+     */
+    public String search(int ip) throws IOException {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.search(ip);
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Searches for the region of an IPv6 address, see DbSearcher.search(long, long).
+     */
+    public String search(long hi, long lo) throws IOException {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.search(hi, lo);
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Searches for the regions of many IP addresses at once, see DbSearcher.searchBatch(String[]).
+     */
+    public String[] searchBatch(String[] ips) throws IOException {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.searchBatch(ips);
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Searches for the regions of many IPv4 addresses at once, see DbSearcher.searchBatch(int[]).
+     */
+    public String[] searchBatch(int[] ips) throws IOException {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.searchBatch(ips);
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Searches for the regions of many IPv6 addresses at once, see DbSearcher.searchBatch(long[]).
+     */
+    public String[] searchBatch(long[] ips) throws IOException {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.searchBatch(ips);
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Looks up an IP address, see DbSearcher.lookup(String).
+     * The region is decoded before the DbSearcher is released, as it may be closed by a reload afterwards.
+     */
+    public LookupResult lookup(String ip) throws IOException {
+        Instance instance = acquire();
+        try {
+            LookupResult result = instance.searcher.lookup(ip);
+            if (result != null) {
+                result.getRegion();
+            }
+            return result;
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Looks up an IP address into the given result, see DbSearcher.lookup(String, LookupResult).
+     * The region is decoded before the DbSearcher is released, as it may be closed by a reload afterwards.
+     */
+    public boolean lookup(String ip, LookupResult result) throws IOException {
+        Instance instance = acquire();
+        try {
+            boolean found = instance.searcher.lookup(ip, result);
+            result.getRegion();
+            return found;
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Looks up an IPv4 address into the given result, see DbSearcher.lookup(int, LookupResult).
+     */
+    public boolean lookup(int ip, LookupResult result) throws IOException {
+        Instance instance = acquire();
+        try {
+            boolean found = instance.searcher.lookup(ip, result);
+            result.getRegion();
+            return found;
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Looks up an IPv6 address into the given result, see DbSearcher.lookup(long, long, LookupResult).
+     */
+    public boolean lookup(long hi, long lo, LookupResult result) throws IOException {
+        Instance instance = acquire();
+        try {
+            boolean found = instance.searcher.lookup(hi, lo, result);
+            result.getRegion();
+            return found;
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Returns the type of the database currently served.
+     *
+     * @return the type of the database
+     */
+    public DbType getDbType() {
+        Instance instance = acquire();
+        try {
+            return instance.searcher.getDbType();
+        } finally {
+            instance.release();
+        }
+    }
+
+    /**
+     * Returns the error of the last reload which failed, cleared by the next successful reload.
+     *
+     * @return the error, null if the last reload succeeded
+     */
+    public Exception getLastReloadError() {
+        return lastReloadError;
+    }
+
+    /**
+     * Loads the database file now, whether it changed or not, and swaps it in.
+     *
+     * @throws Exception If the database file cannot be loaded, the current DbSearcher is kept.
+     */
+    public synchronized void reload() throws Exception {
+        if (closed) {
+            throw new IllegalStateException("The searcher is closed.");
+        }
+
+        FileStamp stamp = FileStamp.of(dbFile);
+        DbSearcher searcher;
+        try {
+            searcher = load();
+        } catch (Exception e) {
+            // the watcher does not load this file again until it changes
+            failedStamp = stamp;
+            lastReloadError = e;
+            throw e;
+        }
+
+        Instance old = current.getAndSet(new Instance(searcher));
+        old.retire();
+        loadedStamp = stamp;
+        pendingStamp = null;
+        failedStamp = null;
+        lastReloadError = null;
+    }
+
+    /**
+     * Stops checking the file, and closes the current DbSearcher once its running searches have finished.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+        current.get().retire();
+    }
+
+    /**
+     * Builds a DbSearcher of the database file, and warms it up before it serves any search.
+     */
+    private DbSearcher load() throws Exception {
+        loadAttempts.incrementAndGet();
+        DbSearcher searcher = new DbSearcher(dbFile.toString(), queryType, key, config);
+        try {
+            searcher.warmUp();
+        } catch (IOException e) {
+            searcher.close();
+            throw e;
+        }
+        return searcher;
+    }
+
+    /**
+     * Reloads the file when its change has been stable for one interval. It runs on the watcher thread.
+     */
+    private synchronized void check() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            FileStamp stamp = FileStamp.of(dbFile);
+            if (stamp.equals(loadedStamp) || stamp.equals(failedStamp)) {
+                // unchanged, or the same file which failed to load, which is not loaded again until it changes
+                pendingStamp = null;
+            } else if (!stamp.equals(pendingStamp)) {
+                // still being written, or just replaced, check again at the next interval
+                pendingStamp = stamp;
+                failedStamp = null;
+            } else {
+                reload();
+            }
+        } catch (Exception e) {
+            // the file may be missing while it is replaced, the next check tries again
+            lastReloadError = e;
+        }
+    }
+
+    /**
+     * Takes the current instance for one search. It never blocks: if the instance is swapped
+     * between reading the reference and counting the search, the count is undone and the new instance is taken.
+     */
+    Instance acquire() {
+        while (true) {
+            Instance instance = current.get();
+            instance.references.incrementAndGet();
+            if (current.get() == instance) {
+                if (instance.retired) {
+                    // only the last instance is retired without being swapped, by close
+                    instance.release();
+                    throw new IllegalStateException("The searcher is closed.");
+                }
+                return instance;
+            }
+            instance.release();
+        }
+    }
+
+    /**
+     * A DbSearcher with the number of searches running on it.
+     * Once retired, it is closed by whichever of retire or the last release sees no search running.
+     */
+    static final class Instance {
+        final DbSearcher searcher;
+        final AtomicInteger references = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        volatile boolean retired;
+
+        Instance(DbSearcher searcher) {
+            this.searcher = searcher;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && retired) {
+                closeOnce();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            if (references.get() == 0) {
+                closeOnce();
+            }
+        }
+
+        private void closeOnce() {
+            if (closed.compareAndSet(false, true)) {
+                searcher.close();
+            }
+        }
+    }
+
+    /**
+     * The modification time and the size of a file, which change when it is replaced.
+     */
+    private static final class FileStamp {
+        final long modified;
+        final long size;
+
+        FileStamp(long modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+
+        static FileStamp of(Path file) throws IOException {
+            return new FileStamp(Files.getLastModifiedTime(file).toMillis(), Files.size(file));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp other = (FileStamp) o;
+            return modified == other.modified && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(modified) * 31 + Long.hashCode(size);
+        }
+    }
+}
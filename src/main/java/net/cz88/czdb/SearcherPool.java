@@ -0,0 +1,237 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.exception.IpFormatException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The SearcherPool class leases lightweight handles on the database of one DbSearcher to the threads which search it.
+ *
+ * The searcher holds the immutable parts of the database once: the header, the geo map, the column selection,
+ * the caches. A handle shares them, and holds only what a search writes: its search buffers and, in BTREE mode,
+ * its own file channel. A thread interrupted while reading then closes the channel of its handle only,
+ * instead of the channel shared by all threads. At most maxHandles handles are ever created, and a thread
+ * leasing one while they are all leased waits for one to be returned, so the memory and the file descriptors
+ * used stay the same however many threads search.
+ *
+ * With thread affinity, a thread leases the handle it used last again if it is idle, so it keeps reading
+ * through the buffers it has already warmed.
+ * <pre>
+ * SearcherPool pool = new SearcherPool(new DbSearcher(dbFile, QueryType.BTREE, key), 8, true);
+ * try (SearcherPool.Handle handle = pool.lease()) {
+ *     String region = handle.getSearcher().search("1.2.3.4");
+ * }
+ * </pre>
+ */
+public class SearcherPool implements Closeable {
+    private final DbSearcher searcher;
+    private final int maxHandles;
+    private final boolean closeSearcher;
+
+    // a permit per handle which may be leased, and the handles which are not leased, the last returned first
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Handle> idle = new ConcurrentLinkedDeque<>();
+
+    // the handle each thread leased last, null without thread affinity
+    private final ThreadLocal<Handle> lastHandle;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool of handles without thread affinity.
+     *
+     * @param searcher The searcher whose database is shared by the handles, which is closed with the pool.
+     * @param maxHandles The largest number of handles, leased at the same time.
+     */
+    public SearcherPool(DbSearcher searcher, int maxHandles) {
+        this(searcher, maxHandles, false);
+    }
+
+    /**
+     * Creates a pool of handles. No handle is created until it is leased.
+     *
+     * @param searcher The searcher whose database is shared by the handles, which is closed with the pool.
+     * @param maxHandles The largest number of handles, leased at the same time.
+     * @param threadAffinity Whether a thread leases the handle it used last again when it is idle.
+     */
+    public SearcherPool(DbSearcher searcher, int maxHandles, boolean threadAffinity) {
+        this(searcher, maxHandles, threadAffinity, true);
+    }
+
+    /**
+     * Creates a pool of handles, which closes the searcher with the pool or not.
+     * A searcher which leases handles for itself does not, since it closes the pool when it is closed.
+     */
+    SearcherPool(DbSearcher searcher, int maxHandles, boolean threadAffinity, boolean closeSearcher) {
+        if (searcher == null) {
+            throw new IllegalArgumentException("The searcher is null.");
+        }
+        if (maxHandles <= 0) {
+            throw new IllegalArgumentException("The number of handles must be positive: " + maxHandles);
+        }
+
+        this.searcher = searcher;
+        this.maxHandles = maxHandles;
+        this.closeSearcher = closeSearcher;
+        this.permits = new Semaphore(maxHandles);
+        this.lastHandle = threadAffinity ? new ThreadLocal<>() : null;
+    }
+
+    /**
+     * Leases a handle, waiting for one to be returned if maxHandles handles are leased.
+     * The handle must be returned by closing it, and used by the current thread only until then.
+     *
+     * @return The handle.
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     * @throws IllegalStateException If the pool is closed.
+     */
+    public Handle lease() throws InterruptedException {
+        permits.acquire();
+        if (closed) {
+            permits.release();
+            throw new IllegalStateException("The searcher pool is closed.");
+        }
+
+        Handle handle = null;
+        if (lastHandle != null) {
+            Handle last = lastHandle.get();
+            if (last != null && idle.remove(last)) {
+                handle = last;
+            }
+        }
+        if (handle == null) {
+            handle = idle.pollFirst();
+        }
+        if (handle == null) {
+            try {
+                handle = new Handle(new DbSearcher(searcher));
+            } catch (RuntimeException | Error e) {
+                // the permit of a handle which could not be created is given back
+                permits.release();
+                throw e;
+            }
+        }
+        if (lastHandle != null) {
+            lastHandle.set(handle);
+        }
+
+        handle.leased = true;
+        return handle;
+    }
+
+    /**
+     * Searches the region of an IP address with a handle leased for this search only.
+     *
+     * @param ip The IP address.
+     * @return The region, null if not found.
+     * @throws IpFormatException If the IP address is invalid.
+     * @throws IOException If an I/O error occurs, or the current thread is interrupted while waiting for a handle.
+     */
+    public String search(String ip) throws IpFormatException, IOException {
+        try (Handle handle = leaseInterruptibly()) {
+            return handle.searcher.search(ip);
+        }
+    }
+
+    /**
+     * Looks up an IP address with a handle leased for this lookup only, see DbSearcher.lookup(String, LookupResult).
+     *
+     * @param ip The IP address.
+     * @param result The result to fill.
+     * @return true if the IP address is found.
+     * @throws IOException If an I/O error occurs, or the current thread is interrupted while waiting for a handle.
+     */
+    public boolean lookup(String ip, LookupResult result) throws IOException {
+        try (Handle handle = leaseInterruptibly()) {
+            return handle.searcher.lookup(ip, result);
+        }
+    }
+
+    private Handle leaseInterruptibly() throws InterruptedIOException {
+        try {
+            return lease();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a searcher handle");
+        }
+    }
+
+    /**
+     * Returns the searcher whose database is shared by the handles.
+     */
+    public DbSearcher getSearcher() {
+        return searcher;
+    }
+
+    /**
+     * Returns the number of handles created and not leased.
+     */
+    public int getIdleHandles() {
+        return idle.size();
+    }
+
+    /**
+     * Closes the handles and the searcher, once the leased handles have been returned.
+     * No handle can be leased anymore.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // every permit is back once every leased handle is returned
+        permits.acquireUninterruptibly(maxHandles);
+        Handle handle;
+        while ((handle = idle.pollFirst()) != null) {
+            handle.searcher.close();
+        }
+        if (closeSearcher) {
+            searcher.close();
+        }
+
+        // the leases waiting for a permit fail with the closed pool
+        permits.release(maxHandles);
+    }
+
+    private void release(Handle handle) {
+        idle.offerFirst(handle);
+        permits.release();
+    }
+
+    /**
+     * A handle leased from the pool, which is returned to it when closed.
+     */
+    public final class Handle implements Closeable {
+        private final DbSearcher searcher;
+        private boolean leased;
+
+        private Handle(DbSearcher searcher) {
+            this.searcher = searcher;
+        }
+
+        /**
+         * Returns the searcher of the handle, which must not be used once the handle is returned.
+         * Closing it only closes the file channel of the handle, which is opened again on the next read.
+         */
+        public DbSearcher getSearcher() {
+            return searcher;
+        }
+
+        /**
+         * Returns the handle to the pool. Returning it again does nothing.
+         */
+        @Override
+        public void close() {
+            if (leased) {
+                leased = false;
+                release(this);
+            }
+        }
+    }
+}
@@ -99,7 +99,7 @@ public class SearcherTest {
         dbFilePathOption.setRequired(true);
         options.addOption(dbFilePathOption);
 
-        Option queryTypeOption = new Option("t", "queryType", true, "The type of the query. The valid types are MEMORY, BINARY, BTREE.");
+        Option queryTypeOption = new Option("t", "queryType", true, "The type of the query. The valid types are MEMORY, MMAP, BTREE.");
         queryTypeOption.setRequired(true);
         options.addOption(queryTypeOption);
 
@@ -135,7 +135,7 @@ public class SearcherTest {
         try {
             queryType = QueryType.valueOf(cmd.getOptionValue("queryType").toUpperCase());
         } catch (IllegalArgumentException e) {
-            System.out.println("Invalid query type. The valid types are MEMORY, BINARY, BTREE.");
+            System.out.println("Invalid query type. The valid types are MEMORY, MMAP, BTREE.");
             return;
         }
         String key = cmd.getOptionValue("key");
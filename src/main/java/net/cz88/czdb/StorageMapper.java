@@ -0,0 +1,34 @@
+package net.cz88.czdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The StorageMapper class creates the chunks of a DbStorage with the APIs of Java 8:
+ * a MappedByteBuffer per chunk to map a file, and a direct ByteBuffer per chunk to copy it into.
+ * Their memory is released by the garbage collector once the storage is unreachable.
+ *
+ * The multi-release JAR replaces this class on Java 22 and later, see src/main/java22.
+ */
+final class StorageMapper {
+    private StorageMapper() {
+    }
+
+    static DbStorage map(FileChannel channel, long offset, long size) throws IOException {
+        ByteBuffer[] chunks = new ByteBuffer[DbStorage.chunkCount(size)];
+        for (int i = 0; i < chunks.length; i++) {
+            long position = (long) i << DbStorage.CHUNK_BITS;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + position, DbStorage.chunkLength(size, i));
+        }
+        return new DbStorage(chunks, size, null);
+    }
+
+    static DbStorage allocate(long size) {
+        ByteBuffer[] chunks = new ByteBuffer[DbStorage.chunkCount(size)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(DbStorage.chunkLength(size, i));
+        }
+        return new DbStorage(chunks, size, null);
+    }
+}
@@ -39,8 +39,39 @@ public class DataBlock {
      * @return the region of this data block
      */
     public String getRegion(byte[] geoMapData, long columnSelection) {
+        return getRegion(region, 0, region.length, geoMapData, columnSelection);
+    }
+
+    /**
+     * Decodes the region of a data block stored in a byte array, without copying it into a DataBlock first.
+     *
+     * @param data the byte array which contains the data block
+     * @param offset the position of the data block in the array
+     * @param length the length of the data block
+     * @param geoMapData the decrypted geo map of the database, null if the database has no geo mapping
+     * @param columnSelection the selected geo columns of the database
+     * @return the region of the data block
+     */
+    public static String getRegion(byte[] data, int offset, int length, byte[] geoMapData, long columnSelection) {
+        return getRegion(data, offset, length, geoMapData, columnSelection, null);
+    }
+
+    /**
+     * Decodes the region of a data block stored in a byte array, looking up the geo columns in the cache first.
+     * The geo columns decoded on a cache miss are added to the cache.
+     *
+     * @param data the byte array which contains the data block
+     * @param offset the position of the data block in the array
+     * @param length the length of the data block
+     * @param geoMapData the decrypted geo map of the database, null if the database has no geo mapping
+     * @param columnSelection the selected geo columns of the database
+     * @param geoColumnCache the cache of the decoded geo columns, null to always decode them
+     * @return the region of the data block
+     */
+    public static String getRegion(byte[] data, int offset, int length, byte[] geoMapData, long columnSelection,
+                                   GeoColumnCache geoColumnCache) {
         try {
-            return unpack(geoMapData, columnSelection);
+            return unpack(data, offset, length, geoMapData, columnSelection, geoColumnCache);
         } catch (IOException e) {
             return "null";
         }
@@ -77,8 +108,9 @@ public class DataBlock {
         return this;
     }
 
-    private String unpack(byte[] geoMapData, long columnSelection) throws IOException {
-        try (MessageUnpacker regionUnpacker = MessagePack.newDefaultUnpacker(region)) {
+    private static String unpack(byte[] data, int offset, int length, byte[] geoMapData, long columnSelection,
+                                 GeoColumnCache geoColumnCache) throws IOException {
+        try (MessageUnpacker regionUnpacker = MessagePack.newDefaultUnpacker(data, offset, length)) {
             long geoPosMixSize = regionUnpacker.unpackLong();
             String otherData = regionUnpacker.unpackString();
 
@@ -89,27 +121,39 @@ public class DataBlock {
             int dataLen = (int)(geoPosMixSize >> 24) & 0xFF;
             int dataPtr = (int)(geoPosMixSize & 0x00FFFFFF);
 
-            // read the region data from the geoMapData
-            byte[] regionData = new byte[dataLen];
-            System.arraycopy(geoMapData, dataPtr, regionData, 0, dataLen);
-            StringBuilder sb = new StringBuilder();
+            String columns = geoColumnCache == null ? null : geoColumnCache.get(dataPtr);
+            if (columns == null) {
+                columns = unpackGeoColumns(geoMapData, dataPtr, dataLen, columnSelection);
+                if (geoColumnCache != null) {
+                    geoColumnCache.put(dataPtr, columns);
+                }
+            }
+
+            return columns + otherData;
+        }
+    }
 
-            try (MessageUnpacker geoColumnUnpacker = MessagePack.newDefaultUnpacker(regionData)) {
-                int columnNumber = geoColumnUnpacker.unpackArrayHeader();
+    /**
+     * Reads the region data from the geoMapData, and joins the selected columns, each followed by a tab.
+     */
+    private static String unpackGeoColumns(byte[] geoMapData, int dataPtr, int dataLen, long columnSelection) throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        try (MessageUnpacker geoColumnUnpacker = MessagePack.newDefaultUnpacker(geoMapData, dataPtr, dataLen)) {
+            int columnNumber = geoColumnUnpacker.unpackArrayHeader();
 
-                for (int i = 0; i < columnNumber; i++) {
-                    boolean columnSelected = (columnSelection >> (i + 1) & 1) == 1;
-                    String value = geoColumnUnpacker.unpackString();
-                    value = "".equalsIgnoreCase(value) ? "null" : value;
+            for (int i = 0; i < columnNumber; i++) {
+                boolean columnSelected = (columnSelection >> (i + 1) & 1) == 1;
+                String value = geoColumnUnpacker.unpackString();
+                value = "".equalsIgnoreCase(value) ? "null" : value;
 
-                    if (columnSelected) {
-                        sb.append(value);
-                        sb.append("\t");
-                    }
+                if (columnSelected) {
+                    sb.append(value);
+                    sb.append("\t");
                 }
             }
-
-            return sb + otherData;
         }
+
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
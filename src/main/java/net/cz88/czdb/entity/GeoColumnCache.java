@@ -0,0 +1,121 @@
+package net.cz88.czdb.entity;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The GeoColumnCache class caches the decoded geo columns of the geo map, keyed by their offset in the geo map,
+ * which is the low 24 bits of the geoPosMixSize of a data block.
+ * The cached value is the selected columns already joined, each followed by a tab, ready to be prefixed to otherData.
+ *
+ * The cache is a fixed array of slots indexed by a hash of the offset, an offset evicts whatever was in its slot.
+ * It is bounded by its capacity, lock-free, and allocates nothing on a hit.
+ * The slots are written without synchronization: an entry only has final fields,
+ * so a reader sees either a complete entry or an older one, which is then checked against the offset.
+ * It can count its hits and misses, for the metrics of the DbSearcher, with striped counters.
+ */
+public final class GeoColumnCache {
+    private final Entry[] slots;
+    private final int shift;
+
+    // the number of hits and misses, null unless they are recorded
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * Creates a cache with at least the given number of slots, rounded up to a power of two.
+     *
+     * @param capacity the number of slots, at least 1
+     * @throws IllegalArgumentException if the capacity is not positive or greater than 2^30
+     */
+    public GeoColumnCache(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Creates a cache with at least the given number of slots, rounded up to a power of two,
+     * which counts its hits and misses if recordStats is true.
+     *
+     * @param capacity the number of slots, at least 1
+     * @param recordStats whether to count the hits and misses
+     * @throws IllegalArgumentException if the capacity is not positive or greater than 2^30
+     */
+    public GeoColumnCache(int capacity, boolean recordStats) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid geo column cache capacity: " + capacity);
+        }
+
+        int bits = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        this.slots = new Entry[1 << bits];
+        // a shift of 32 would not shift at all, so a single slot is handled by the mask in slotOf
+        this.shift = 32 - bits;
+        this.hits = recordStats ? new LongAdder() : null;
+        this.misses = recordStats ? new LongAdder() : null;
+    }
+
+    /**
+     * Returns the cached columns at the given offset of the geo map.
+     *
+     * @param geoPtr the offset of the columns in the geo map
+     * @return the joined selected columns, null if they are not cached
+     */
+    public String get(int geoPtr) {
+        Entry entry = slots[slotOf(geoPtr)];
+        String columns = entry != null && entry.geoPtr == geoPtr ? entry.columns : null;
+        if (hits != null) {
+            (columns != null ? hits : misses).increment();
+        }
+        return columns;
+    }
+
+    /**
+     * Caches the columns at the given offset of the geo map, evicting the columns which shared its slot.
+     *
+     * @param geoPtr the offset of the columns in the geo map
+     * @param columns the joined selected columns
+     */
+    public void put(int geoPtr, String columns) {
+        slots[slotOf(geoPtr)] = new Entry(geoPtr, columns);
+    }
+
+    /**
+     * Returns the number of slots of this cache.
+     *
+     * @return the number of slots
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the number of calls to get which found the columns.
+     *
+     * @return the number of hits, 0 unless they are recorded
+     */
+    public long getHitCount() {
+        return hits == null ? 0 : hits.sum();
+    }
+
+    /**
+     * Returns the number of calls to get which did not find the columns.
+     *
+     * @return the number of misses, 0 unless they are recorded
+     */
+    public long getMissCount() {
+        return misses == null ? 0 : misses.sum();
+    }
+
+    private int slotOf(int geoPtr) {
+        // the offsets are close to each other, a multiplicative hash spreads them over the slots
+        return (geoPtr * 0x9E3779B9) >>> shift & (slots.length - 1);
+    }
+
+    private static final class Entry {
+        final int geoPtr;
+        final String columns;
+
+        Entry(int geoPtr, String columns) {
+            this.geoPtr = geoPtr;
+            this.columns = columns;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package net.cz88.czdb.entity;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The RegionCache class caches the regions of the searched IP addresses, keyed by the unsigned 128-bit key of the address
+ * (an IPv4 address in the high 32 bits of hi), so a hit neither parses into a String key nor touches the index.
+ *
+ * The cache is bounded by its capacity and follows the W-TinyLFU policy: a new address enters a small LRU window,
+ * and when it leaves the window it is admitted to the main segmented LRU only if it was searched more often than
+ * the address it would evict. The frequencies are estimated by a count-min sketch of 4-bit counters,
+ * halved periodically so they follow the changes of the traffic. A skewed traffic, such as a few NAT addresses
+ * making most of the searches, keeps its hot addresses cached while a scan of one-off addresses only churns the window.
+ *
+ * The cache is split into segments by the hash of the key, each guarded by its own lock,
+ * so concurrent searches of different addresses seldom contend. A hit allocates nothing.
+ */
+public final class RegionCache {
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int capacity;
+
+    // the number of hits and misses, null unless they are recorded
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * Creates a cache of the given number of regions.
+     *
+     * @param capacity the number of regions, at least 1
+     * @throws IllegalArgumentException if the capacity is not positive or greater than 2^30
+     */
+    public RegionCache(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Creates a cache of the given number of regions, which counts its hits and misses if recordStats is true.
+     *
+     * @param capacity the number of regions, at least 1
+     * @param recordStats whether to count the hits and misses
+     * @throws IllegalArgumentException if the capacity is not positive or greater than 2^30
+     */
+    public RegionCache(int capacity, boolean recordStats) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid region cache capacity: " + capacity);
+        }
+
+        // 4 segments per processor to keep the locks apart, but no segment smaller than 64 regions,
+        // whose frequencies would be too coarse to compare
+        int wanted = Math.min(Runtime.getRuntime().availableProcessors() * 4, Math.max(1, capacity / 64));
+        int bits = 32 - Integer.numberOfLeadingZeros(wanted - 1);
+        this.segments = new Segment[1 << bits];
+        // the segment is picked by the high bits of the hash, a single segment by the mask in segmentOf
+        // since a shift of 64 does not shift at all
+        this.segmentShift = 64 - bits;
+        for (int i = 0; i < segments.length; i++) {
+            // the first segments take the remainder of the capacity
+            segments[i] = new Segment(capacity / segments.length + (i < capacity % segments.length ? 1 : 0));
+        }
+        this.capacity = capacity;
+        this.hits = recordStats ? new LongAdder() : null;
+        this.misses = recordStats ? new LongAdder() : null;
+    }
+
+    /**
+     * Returns the cached region of an IP address, and counts the search in the frequencies of the cache.
+     *
+     * @param hi the high 64 bits of the key
+     * @param lo the low 64 bits of the key
+     * @return the cached region, null if it is not cached
+     */
+    public String get(long hi, long lo) {
+        long hash = hash(hi, lo);
+        String region = segmentOf(hash).get(hi, lo, hash);
+        if (hits != null) {
+            (region != null ? hits : misses).increment();
+        }
+        return region;
+    }
+
+    /**
+     * Offers the region of an IP address to the cache, which keeps it unless the address is searched less often
+     * than the addresses already cached.
+     *
+     * @param hi the high 64 bits of the key
+     * @param lo the low 64 bits of the key
+     * @param region the region, not null
+     */
+    public void put(long hi, long lo, String region) {
+        long hash = hash(hi, lo);
+        segmentOf(hash).put(hi, lo, hash, region);
+    }
+
+    /**
+     * Returns the number of regions this cache can hold.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of regions cached.
+     *
+     * @return the number of regions
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of calls to get which found the region.
+     *
+     * @return the number of hits, 0 unless they are recorded
+     */
+    public long getHitCount() {
+        return hits == null ? 0 : hits.sum();
+    }
+
+    /**
+     * Returns the number of calls to get which did not find the region.
+     *
+     * @return the number of misses, 0 unless they are recorded
+     */
+    public long getMissCount() {
+        return misses == null ? 0 : misses.sum();
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> segmentShift) & (segments.length - 1)];
+    }
+
+    private static long hash(long hi, long lo) {
+        // the murmur3 finalizer, the keys of neighbouring addresses differ by a few low bits of hi or lo only
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * A segment is a W-TinyLFU cache of its own: a hash table of nodes, each in one of three LRU queues,
+     * the window, the probation and the protected queue, and the sketch of the frequencies of its keys.
+     */
+    private static final class Segment {
+        private static final byte WINDOW = 0;
+        private static final byte PROBATION = 1;
+        private static final byte PROTECTED = 2;
+
+        private final int maxSize;
+        private final int maxWindow;
+        private final int maxProtected;
+        private final Node[] table;
+        private final FrequencySketch sketch;
+
+        // the queues are circular, their sentinel's next is the least recently used node
+        private final Node window = Node.sentinel();
+        private final Node probation = Node.sentinel();
+        private final Node protectedQueue = Node.sentinel();
+        private int size;
+        private int windowSize;
+        private int protectedSize;
+
+        Segment(int maxSize) {
+            // the window is 1% of the cache, the protected queue 80% of the rest
+            this.maxSize = maxSize;
+            this.maxWindow = Math.max(1, maxSize / 100);
+            this.maxProtected = (int) ((maxSize - maxWindow) * 0.8);
+            this.table = new Node[Integer.highestOneBit(Math.max(1, maxSize) * 2 - 1) << 1];
+            this.sketch = new FrequencySketch(maxSize);
+        }
+
+        synchronized String get(long hi, long lo, long hash) {
+            sketch.increment(hash);
+            Node node = find(hi, lo, hash);
+            if (node == null) {
+                return null;
+            }
+
+            if (node.queue == PROBATION) {
+                // a second hit promotes the node, which may push the least recently protected one back to probation
+                unlink(node);
+                node.queue = PROTECTED;
+                append(protectedQueue, node);
+                protectedSize++;
+                if (protectedSize > maxProtected) {
+                    Node demoted = protectedQueue.next;
+                    unlink(demoted);
+                    demoted.queue = PROBATION;
+                    append(probation, demoted);
+                    protectedSize--;
+                }
+            } else {
+                unlink(node);
+                append(node.queue == WINDOW ? window : protectedQueue, node);
+            }
+            return node.region;
+        }
+
+        synchronized void put(long hi, long lo, long hash, String region) {
+            Node node = find(hi, lo, hash);
+            if (node != null) {
+                // searched again by a concurrent thread before its region was offered
+                node.region = region;
+                return;
+            }
+
+            node = new Node(hi, lo, hash, region);
+            int index = (int) hash & (table.length - 1);
+            node.chain = table[index];
+            table[index] = node;
+            append(window, node);
+            size++;
+            windowSize++;
+
+            if (windowSize > maxWindow) {
+                // the least recently used node of the window becomes a candidate for the main queues
+                Node candidate = window.next;
+                unlink(candidate);
+                candidate.queue = PROBATION;
+                append(probation, candidate);
+                windowSize--;
+            }
+            if (size > maxSize) {
+                evict();
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Evicts either the candidate which just left the window or the least recently used node of probation,
+         * whichever was searched less often.
+         */
+        private void evict() {
+            Node candidate = probation.prev;
+            Node victim = probation.next;
+            if (victim == probation) {
+                // everything is protected, or in the window when the segment is tiny
+                victim = protectedQueue.next != protectedQueue ? protectedQueue.next : window.next;
+                candidate = victim;
+            }
+
+            if (candidate != victim && sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                remove(victim);
+            } else {
+                remove(candidate);
+            }
+        }
+
+        private Node find(long hi, long lo, long hash) {
+            for (Node node = table[(int) hash & (table.length - 1)]; node != null; node = node.chain) {
+                if (node.hi == hi && node.lo == lo) {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        private void remove(Node node) {
+            int index = (int) node.hash & (table.length - 1);
+            if (table[index] == node) {
+                table[index] = node.chain;
+            } else {
+                Node previous = table[index];
+                while (previous.chain != node) {
+                    previous = previous.chain;
+                }
+                previous.chain = node.chain;
+            }
+
+            unlink(node);
+            size--;
+            if (node.queue == WINDOW) {
+                windowSize--;
+            } else if (node.queue == PROTECTED) {
+                protectedSize--;
+            }
+        }
+
+        private static void append(Node queue, Node node) {
+            node.prev = queue.prev;
+            node.next = queue;
+            queue.prev.next = node;
+            queue.prev = node;
+        }
+
+        private static void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+        }
+    }
+
+    private static final class Node {
+        final long hi;
+        final long lo;
+        final long hash;
+        String region;
+        byte queue;
+        Node prev;
+        Node next;
+        // the next node of the same bucket of the hash table
+        Node chain;
+
+        Node(long hi, long lo, long hash, String region) {
+            this.hi = hi;
+            this.lo = lo;
+            this.hash = hash;
+            this.region = region;
+        }
+
+        static Node sentinel() {
+            Node sentinel = new Node(0, 0, 0, null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters, 16 to a long, which estimates how often a key was searched.
+     * Every key has a counter in each of 4 rows, its frequency is the smallest of them.
+     * Once 10 times the capacity of the segment has been counted, all the counters are halved.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+
+        private final long[] table;
+        private final int counterMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            // 4 counters per row and cached key, in at least 2 longs per row
+            int longs = Integer.highestOneBit(Math.max(4, capacity - 1)) << 1 >>> 2;
+            this.table = new long[longs * 4];
+            this.counterMask = longs * 16 - 1;
+            this.sampleSize = Math.max(10 * capacity, 16);
+        }
+
+        void increment(long hash) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int index = indexOf(hash, row);
+                int shift = (index & 15) << 2;
+                long word = table[index >>> 4];
+                if ((word >>> shift & 0xF) < 15) {
+                    table[index >>> 4] = word + (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = table[i] >>> 1 & 0x7777777777777777L;
+                }
+                additions >>>= 1;
+            }
+        }
+
+        int frequency(long hash) {
+            int frequency = 15;
+            for (int row = 0; row < 4; row++) {
+                int index = indexOf(hash, row);
+                frequency = Math.min(frequency, (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+            }
+            return frequency;
+        }
+
+        /**
+         * Returns the index of the counter of the key in the given row: the row's quarter of the table,
+         * then the counter within it.
+         */
+        private int indexOf(long hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return row * (counterMask + 1) + ((int) h & counterMask);
+        }
+    }
+}
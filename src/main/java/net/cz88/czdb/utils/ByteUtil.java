@@ -1,11 +1,19 @@
 package net.cz88.czdb.utils;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * This utility class provides methods for manipulating byte arrays.
  * It includes methods for writing specific bytes to a byte array,
- * writing an integer to a byte array, and getting an integer from a byte array.
+ * writing an integer to a byte array, getting an integer from a byte array,
+ * and filling a byte array from a stream.
  */
 public class ByteUtil {
+    // The largest single read of readFully, a file channel reading into a byte array copies through a direct buffer as large
+    private static final int MAX_READ = 1 << 20;
+
     /**
      * Writes specified bytes to a byte array starting from a given offset.
      *
@@ -50,6 +58,33 @@ public class ByteUtil {
         );
     }
 
+    /**
+     * Gets a big-endian 4-byte integer from a byte array starting from a specified offset.
+     * IP addresses are stored in this byte order.
+     *
+     * @param b     the byte array to read from
+     * @param offset the position in the array to start reading
+     * @return the integer value read from the byte array
+     */
+    public static int getIntBE(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 |
+                (b[offset + 1] & 0xFF) << 16 |
+                (b[offset + 2] & 0xFF) << 8 |
+                (b[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Gets a big-endian 8-byte long from a byte array starting from a specified offset.
+     * IP addresses are stored in this byte order.
+     *
+     * @param b     the byte array to read from
+     * @param offset the position in the array to start reading
+     * @return the long value read from the byte array
+     */
+    public static long getLongBE(byte[] b, int offset) {
+        return (getIntBE(b, offset) & 0xFFFFFFFFL) << 32 | (getIntBE(b, offset + 4) & 0xFFFFFFFFL);
+    }
+
     /**
      * Gets a 3-byte integer from a byte array starting from a specified offset.
      *
@@ -91,4 +126,47 @@ public class ByteUtil {
                 (b[offset] & 0x000000FF)
         );
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads exactly len bytes from a stream into a byte array.
+     * A single read may return fewer bytes than asked, such as the read of a decompressing stream.
+     *
+     * @param is     the stream to read from
+     * @param b      the byte array to fill
+     * @param offset the position in the array to start writing
+     * @param len    the number of bytes to read
+     * @throws EOFException if the stream ends before len bytes are read
+     * @throws IOException  if an I/O error occurs
+     */
+    public static void readFully(InputStream is, byte[] b, int offset, int len) throws IOException {
+        for (int n = 0; n < len; ) {
+            int read = is.read(b, offset + n, Math.min(len - n, MAX_READ));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+    }
+
+    /**
+     * Skips exactly n bytes of a stream, which InputStream.skip does not guarantee.
+     *
+     * @param is the stream to skip bytes of
+     * @param n  the number of bytes to skip
+     * @throws EOFException if the stream ends before n bytes are skipped
+     * @throws IOException  if an I/O error occurs
+     */
+    public static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                // skip may return 0 before the end of the stream, a read tells them apart
+                if (is.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -28,14 +28,14 @@ public class HyperHeaderDecoder {
      */
     public static HyperHeaderBlock decrypt(InputStream is, String key) throws Exception {
         byte[] headerBytes = new byte[HyperHeaderBlock.HEADER_SIZE];
-        is.read(headerBytes);
+        ByteUtil.readFully(is, headerBytes, 0, headerBytes.length);
 
         int version = (int)ByteUtil.getIntLong(headerBytes, 0);
         int clientId = (int)ByteUtil.getIntLong(headerBytes, 4);
         int encryptedBlockSize = (int)ByteUtil.getIntLong(headerBytes, 8);
 
         byte[] encryptedBytes = new byte[encryptedBlockSize];
-        is.read(encryptedBytes);
+        ByteUtil.readFully(is, encryptedBytes, 0, encryptedBytes.length);
 
         DecryptedBlock decryptedBlock = DecryptedBlock.decrypt(key, encryptedBytes);
 
@@ -0,0 +1,228 @@
+package net.cz88.czdb.utils;
+
+/**
+ * This utility class parses IPv4 and IPv6 literals into primitives, in a single pass and without allocating.
+ * Unlike InetAddress.getByName, it never falls back to a DNS lookup: anything which is not a literal is rejected.
+ *
+ * An IPv4 address is returned as an unsigned 32-bit value in a long, so 1.2.3.4 is 0x01020304.
+ * An IPv6 address is written as its high and low 64 bits into a long array of length 2.
+ */
+public class IpParser {
+    /**
+     * Returned by parseIpv4 when the text is not an IPv4 literal.
+     */
+    public static final long INVALID = -1L;
+
+    /**
+     * Parses an IPv4 literal in dotted decimal notation, such as 1.2.3.4.
+     * Each part is 1 to 3 decimal digits no greater than 255, leading zeros are allowed.
+     *
+     * @param s the text to parse
+     * @return the address as an unsigned 32-bit value, or INVALID if the text is not an IPv4 literal
+     */
+    public static long parseIpv4(CharSequence s) {
+        if (s == null) {
+            return INVALID;
+        }
+        return parseIpv4(s, 0, s.length());
+    }
+
+    /**
+     * Parses the IPv4 literal between from, included, and to, excluded.
+     *
+     * @param s the text to parse
+     * @param from the index of the first character
+     * @param to the index after the last character
+     * @return the address as an unsigned 32-bit value, or INVALID if the text is not an IPv4 literal
+     */
+    public static long parseIpv4(CharSequence s, int from, int to) {
+        long ip = 0;
+        int parts = 0, part = 0, digits = 0;
+
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                part = part * 10 + (c - '0');
+                if (++digits > 3 || part > 255) {
+                    return INVALID;
+                }
+            } else if (c == '.' && digits > 0 && parts < 3) {
+                ip = ip << 8 | part;
+                parts++;
+                part = 0;
+                digits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+
+        if (digits == 0 || parts != 3) {
+            return INVALID;
+        }
+        return ip << 8 | part;
+    }
+
+    /**
+     * Parses an IPv6 literal, such as 2001:db8::1.
+     * The :: compression, an embedded IPv4 address in the last 32 bits, such as ::ffff:1.2.3.4,
+     * and a zone ID, such as fe80::1%eth0, are supported. The zone ID is ignored.
+     *
+     * @param s the text to parse
+     * @param out the array receiving the high 64 bits at index 0 and the low 64 bits at index 1, left untouched on failure
+     * @return true if the text is an IPv6 literal
+     */
+    public static boolean parseIpv6(CharSequence s, long[] out) {
+        if (s == null) {
+            return false;
+        }
+        return parseIpv6(s, 0, s.length(), out);
+    }
+
+    /**
+     * Parses the IPv6 literal between from, included, and to, excluded. See parseIpv6(CharSequence, long[]).
+     *
+     * @param s the text to parse
+     * @param from the index of the first character
+     * @param to the index after the last character
+     * @param out the array receiving the high 64 bits at index 0 and the low 64 bits at index 1, left untouched on failure
+     * @return true if the text is an IPv6 literal
+     */
+    public static boolean parseIpv6(CharSequence s, int from, int to, long[] out) {
+        // the zone ID is not part of the address
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == '%') {
+                if (i == to - 1) {
+                    return false;
+                }
+                to = i;
+                break;
+            }
+        }
+
+        // groups before the :: are shifted into (headHi, headLo), groups after it into (tailHi, tailLo)
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+
+        int i = from;
+        if (i + 1 < to && s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        } else if (i < to && s.charAt(i) == ':') {
+            return false;
+        }
+
+        while (i < to) {
+            int start = i, group = 0;
+            while (i < to && i - start < 5) {
+                int d = hexDigit(s.charAt(i));
+                if (d < 0) {
+                    break;
+                }
+                group = group << 4 | d;
+                i++;
+            }
+
+            long value = group;
+            int groups = 1;
+            if (i < to && s.charAt(i) == '.') {
+                // an embedded IPv4 address takes the last two groups
+                value = parseIpv4(s, start, to);
+                if (value == INVALID) {
+                    return false;
+                }
+                i = to;
+                groups = 2;
+            } else if (i == start || i - start > 4) {
+                return false;
+            }
+
+            if (headGroups + tailGroups + groups > 8) {
+                return false;
+            }
+
+            int bits = groups * 16;
+            if (compressed) {
+                tailHi = tailHi << bits | tailLo >>> (64 - bits);
+                tailLo = tailLo << bits | value;
+                tailGroups += groups;
+            } else {
+                headHi = headHi << bits | headLo >>> (64 - bits);
+                headLo = headLo << bits | value;
+                headGroups += groups;
+            }
+
+            if (i == to) {
+                break;
+            }
+
+            // the only character allowed after a group is a colon, followed by a group or a second colon
+            if (s.charAt(i) != ':' || i + 1 == to) {
+                return false;
+            }
+            i++;
+            if (s.charAt(i) == ':') {
+                if (compressed || i + 1 < to && s.charAt(i + 1) == ':') {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) {
+            return false;
+        }
+
+        // move the head groups to the top of the address, the compressed zeros sit between head and tail
+        int shift = (8 - headGroups) * 16;
+        if (shift >= 128) {
+            headHi = 0;
+            headLo = 0;
+        } else if (shift >= 64) {
+            headHi = headLo << (shift - 64);
+            headLo = 0;
+        } else if (shift > 0) {
+            headHi = headHi << shift | headLo >>> (64 - shift);
+            headLo = headLo << shift;
+        }
+
+        out[0] = headHi | tailHi;
+        out[1] = headLo | tailLo;
+        return true;
+    }
+
+    /**
+     * Returns the IPv4 address embedded in an IPv6 address, so it can be searched in an IPv4 database.
+     * The forms recognized are the IPv4-mapped addresses ::ffff:a.b.c.d, the IPv4-translated addresses
+     * ::ffff:0:a.b.c.d, and the deprecated IPv4-compatible addresses ::a.b.c.d, but not :: and ::1.
+     *
+     * @param hi the high 64 bits of the IPv6 address
+     * @param lo the low 64 bits of the IPv6 address
+     * @return the IPv4 address as an unsigned 32-bit value, or INVALID if no IPv4 address is embedded
+     */
+    public static long embeddedIpv4(long hi, long lo) {
+        if (hi != 0) {
+            return INVALID;
+        }
+
+        long prefix = lo >>> 32;
+        long ipv4 = lo & 0xFFFFFFFFL;
+        if (prefix == 0xFFFFL || prefix == 0xFFFF0000L || prefix == 0 && ipv4 > 1) {
+            return ipv4;
+        }
+        return INVALID;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,64 @@
+package net.cz88.czdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The AsyncSearch class runs the asynchronous searches of a DbSearcher in BTREE mode, see DbSearcher.searchAsync,
+ * the version of the multi-release JAR for Java 21 and later, where virtual threads are final.
+ *
+ * Every search runs on its own virtual thread, which blocks on the positional reads of a handle leased from
+ * a SearcherPool, and gives its carrier thread back to other searches meanwhile. The handles keep their search buffers,
+ * so a virtual thread allocates none, and their number bounds the file descriptors opened by the searches.
+ */
+final class AsyncSearch {
+    // the largest number of searches reading the file at the same time, each through its own handle
+    private static final int HANDLES = 4 * Runtime.getRuntime().availableProcessors();
+
+    private final SearcherPool handles;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    AsyncSearch(DbSearcher searcher, String dbFile) {
+        this.handles = new SearcherPool(searcher, HANDLES, false, false);
+    }
+
+    CompletableFuture<String> search(long hi, long lo) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                SearcherPool.Handle handle;
+                try {
+                    handle = handles.lease();
+                } catch (IllegalStateException e) {
+                    // the pool is closed, as the channel of the Java 8 version
+                    throw new CompletionException(new AsynchronousCloseException());
+                } catch (InterruptedException e) {
+                    throw new CompletionException(new InterruptedIOException("Interrupted while waiting for a searcher handle"));
+                }
+
+                try (SearcherPool.Handle leased = handle) {
+                    return leased.getSearcher().searchRegion(hi, lo, false);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            // submitted after close
+            return CompletableFuture.failedFuture(new AsynchronousCloseException());
+        }
+    }
+
+    /**
+     * Waits for the searches holding a handle, then closes the handles, but not the searcher.
+     * The searches which have not leased a handle yet, or are submitted afterwards, fail with an AsynchronousCloseException.
+     */
+    void close() {
+        executor.shutdown();
+        handles.close();
+    }
+}
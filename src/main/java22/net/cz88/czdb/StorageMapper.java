@@ -0,0 +1,54 @@
+package net.cz88.czdb;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The StorageMapper class creates the chunks of a DbStorage as views of a single MemorySegment,
+ * the version of the multi-release JAR for Java 22 and later, where the foreign memory API is final.
+ *
+ * A file is mapped by one call whatever its size, and a copy is made into one off-heap allocation.
+ * The memory belongs to a shared Arena, which is closed by DbStorage.close,
+ * so the file is unmapped, or the copy freed, as soon as the DbSearcher is closed instead of by a later garbage collection.
+ */
+final class StorageMapper {
+    private StorageMapper() {
+    }
+
+    static DbStorage map(FileChannel channel, long offset, long size) throws IOException {
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, size, arena);
+            return new DbStorage(chunksOf(segment, size), size, arena::close);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    static DbStorage allocate(long size) {
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment segment = arena.allocate(size, Long.BYTES);
+            return new DbStorage(chunksOf(segment, size), size, arena::close);
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the views of the segment for the chunks of the storage, which overlap like the chunks of Java 8.
+     */
+    private static ByteBuffer[] chunksOf(MemorySegment segment, long size) {
+        ByteBuffer[] chunks = new ByteBuffer[DbStorage.chunkCount(size)];
+        for (int i = 0; i < chunks.length; i++) {
+            long position = (long) i << DbStorage.CHUNK_BITS;
+            chunks[i] = segment.asSlice(position, DbStorage.chunkLength(size, i)).asByteBuffer();
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,128 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.constant.DbConstant;
+import net.cz88.czdb.entity.HeaderBlock;
+import net.cz88.czdb.entity.IndexBlock;
+import net.cz88.czdb.utils.ByteUtil;
+import net.cz88.czdb.utils.HyperHeaderDecoder;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Generates the databases the tests search, with DbBuilder, so no database file has to be installed.
+ *
+ * A ranges file has one range per line: the start IP, the end IP and the region, separated by commas.
+ * The region is a location and an ISP separated by a tab, like the regions of the cz88 databases.
+ */
+final class DbFixtures {
+    static final String KEY = "Mef4JXjVsTvGAeFj9Z06FQ==";
+
+    private static final String[] LOCATIONS = {"中国–上海–上海–虹口区", "中国–北京–北京", "中国–广东–深圳–南山区",
+            "美国–加利福尼亚", "日本–东京–东京", "德国"};
+    private static final String[] ISPS = {"电信", "联通", "移动", "教育网", "Comcast", "NTT"};
+
+    private DbFixtures() {
+    }
+
+    /**
+     * Writes a ranges file of random, sorted ranges, with gaps between some of them.
+     *
+     * @param file the ranges file to write
+     * @param dbType the type of the addresses
+     * @param count the number of ranges
+     * @param seed the seed of the ranges
+     */
+    static void writeRanges(File file, DbType dbType, int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        // an IPv4 address, or the high 64 bits of an IPv6 address, the low 64 bits of a range going from 0 to all ones
+        long space = dbType == DbType.IPV4 ? 1L << 32 : 1L << 62;
+        long step = space / count;
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < count; i++) {
+                long start = i * step + (random.nextInt(4) == 0 ? random.nextInt((int) Math.min(step / 2, 1 << 20)) : 0);
+                long end = (i + 1) * step - 1 - (random.nextInt(4) == 0 ? step / 4 : 0);
+                String region = LOCATIONS[random.nextInt(LOCATIONS.length)] + "\t" + ISPS[random.nextInt(ISPS.length)];
+                writer.write(toIp(dbType, start, 0) + "," + toIp(dbType, end, -1) + "," + region);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Builds a database from a ranges file, packing the location into the geo map.
+     *
+     * @param ranges the ranges file
+     * @param db the database file to write
+     * @param dbType the type of the database
+     * @param headerGranularity the number of index blocks in a header segment
+     */
+    static void build(File ranges, File db, DbType dbType, int headerGranularity) throws IOException {
+        try (DbBuilder builder = new DbBuilder(dbType, KEY).setGeoColumnCount(1).setHeaderGranularity(headerGranularity)) {
+            for (String line : Files.readAllLines(ranges.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split(",", 3);
+                builder.add(fields[0], fields[1], fields[2].split("\t"));
+            }
+            builder.build(db.getPath());
+        }
+    }
+
+    /**
+     * Copies a database with a hole of the given size between the header and the data blocks,
+     * moving every pointer past the header by the size of the hole, so large pointers can be searched
+     * in a sparse file, where the hole takes no space.
+     *
+     * @param db the database file built by build
+     * @param copy the database file to write
+     * @param hole the size of the hole
+     */
+    static void insertHole(File db, File copy, long hole) throws Exception {
+        byte[] bytes = Files.readAllBytes(db.toPath());
+        int offset = HyperHeaderDecoder.decrypt(new ByteArrayInputStream(bytes), KEY).getHeaderSize();
+        DbType dbType = (bytes[offset] & 1) == 0 ? DbType.IPV4 : DbType.IPV6;
+        int headerSize = (int) ByteUtil.getIntLong(bytes, offset + DbConstant.HEADER_BLOCK_PTR);
+        long firstIndexPtr = ByteUtil.getIntLong(bytes, offset + DbConstant.FIRST_INDEX_PTR);
+        long lastIndexPtr = ByteUtil.getIntLong(bytes, offset + DbConstant.END_INDEX_PTR);
+
+        movePointer(bytes, offset + DbConstant.FILE_SIZE_PTR, hole);
+        movePointer(bytes, offset + DbConstant.FIRST_INDEX_PTR, hole);
+        movePointer(bytes, offset + DbConstant.END_INDEX_PTR, hole);
+        for (int line = 0; line < headerSize; line += HeaderBlock.HEADER_LINE_SIZE) {
+            movePointer(bytes, offset + DbConstant.SUPER_PART_LENGTH + line + 16, hole);
+        }
+        int blockLength = IndexBlock.getIndexBlockLength(dbType);
+        int dataPtrOffset = dbType == DbType.IPV4 ? 8 : 32;
+        for (long ptr = firstIndexPtr; ptr <= lastIndexPtr; ptr += blockLength) {
+            movePointer(bytes, (int) (offset + ptr) + dataPtrOffset, hole);
+        }
+
+        int dataStart = offset + DbConstant.SUPER_PART_LENGTH + headerSize;
+        try (RandomAccessFile raf = new RandomAccessFile(copy, "rw")) {
+            raf.write(bytes, 0, dataStart);
+            raf.seek(dataStart + hole);
+            raf.write(bytes, dataStart, bytes.length - dataStart);
+        }
+    }
+
+    private static void movePointer(byte[] bytes, int p, long hole) {
+        ByteUtil.writeIntLong(bytes, p, ByteUtil.getIntLong(bytes, p) + hole);
+    }
+
+    private static String toIp(DbType dbType, long value, long low) throws IOException {
+        byte[] bytes = new byte[dbType == DbType.IPV4 ? 4 : 16];
+        for (int i = 0; i < bytes.length && i < 8; i++) {
+            bytes[i] = (byte) (value >>> ((Math.min(bytes.length, 8) - 1 - i) * 8));
+        }
+        for (int i = 8; i < bytes.length; i++) {
+            bytes[i] = (byte) (low >>> ((15 - i) * 8));
+        }
+        return InetAddress.getByAddress(bytes).getHostAddress();
+    }
+}
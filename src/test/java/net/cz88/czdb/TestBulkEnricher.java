@@ -0,0 +1,217 @@
+package net.cz88.czdb;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that BulkEnricher appends the region of the IP column to every line, in the order of the input,
+ * whatever the size of the chunks, and that the errors of the input and of the output end the enrichment.
+ */
+public class TestBulkEnricher {
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> ranges;
+    private static DbSearcher searcher;
+
+    @BeforeClass
+    public static void buildDatabase() throws Exception {
+        File file = folder.newFile("ipv4.txt");
+        DbFixtures.writeRanges(file, DbType.IPV4, 100, 9);
+        ranges = Files.readAllLines(file.toPath());
+        File db = folder.newFile("ipv4.czdb");
+        DbFixtures.build(file, db, DbType.IPV4, 10);
+        searcher = new DbSearcher(db.getPath(), QueryType.MEMORY, DbFixtures.KEY);
+    }
+
+    @AfterClass
+    public static void closeSearcher() {
+        searcher.close();
+    }
+
+    @Test
+    public void keepsOrderAcrossChunks() throws Exception {
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        int lines = 0;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < ranges.size(); i++) {
+                String[] range = ranges.get((i * 37 + round) % ranges.size()).split(",", 3);
+                String ip = i % 2 == 0 ? range[0] : range[1];
+                input.append(ip).append('\t').append(lines).append('\n');
+                expected.append(ip).append('\t').append(lines).append('\t').append(range[2]).append('\n');
+                lines++;
+            }
+            // neither an IP literal nor a line with an IP column
+            input.append("not-an-ip\t").append(lines).append('\n');
+            expected.append("not-an-ip\t").append(lines).append("\t\n");
+            lines++;
+            input.append('\n');
+            expected.append("\t\n");
+            lines++;
+        }
+
+        for (int chunkSize : new int[]{16, 64, 1000, 1 << 20}) {
+            BulkEnricher enricher = new BulkEnricher(searcher).setChunkSize(chunkSize).setParallelism(4).setMaxInFlight(2);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertEquals(lines, enrich(enricher, input.toString(), output));
+            assertEquals("chunk size " + chunkSize, expected.toString(), output.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void headerQuotesAndCrlf() throws Exception {
+        String[] first = ranges.get(3).split(",", 3);
+        String[] second = ranges.get(42).split(",", 3);
+        String input = "\"name, full\",ip,note\r\n"
+                + "\"Doe, Jane\"," + first[1] + ",x\r\n"
+                + "plain,\"" + second[0] + "\",\"y, z\"\r\n"
+                + "short\r\n"
+                + "\"\"," + first[0];
+        String expected = "\"name, full\",ip,note,region\r\n"
+                + "\"Doe, Jane\"," + first[1] + ",x," + first[2] + "\r\n"
+                + "plain,\"" + second[0] + "\",\"y, z\"," + second[2] + "\r\n"
+                + "short,\r\n"
+                + "\"\"," + first[0] + "," + first[2];
+
+        for (int chunkSize : new int[]{8, 30, 1 << 20}) {
+            BulkEnricher enricher = new BulkEnricher(searcher).setChunkSize(chunkSize)
+                    .setColumn(1).setSeparator(',').setHeader(true);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertEquals(5, enrich(enricher, input, output));
+            assertEquals("chunk size " + chunkSize, expected, output.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void lineLongerThanChunk() throws Exception {
+        String[] range = ranges.get(7).split(",", 3);
+        StringBuilder note = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            note.append((char) ('a' + i % 26));
+        }
+        String input = range[0] + "\tshort\n" + range[1] + "\t" + note + "\n" + range[0] + "\tshort\n";
+        String expected = range[0] + "\tshort\t" + range[2] + "\n"
+                + range[1] + "\t" + note + "\t" + range[2] + "\n"
+                + range[0] + "\tshort\t" + range[2] + "\n";
+
+        // the chunk doubles six times to hold the long line
+        BulkEnricher enricher = new BulkEnricher(searcher).setChunkSize(16).setParallelism(2);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(3, enrich(enricher, input, output));
+        assertEquals(expected, output.toString("UTF-8"));
+    }
+
+    @Test
+    public void inputErrorEndsEnrichment() throws Exception {
+        byte[] line = (ranges.get(0).split(",", 3)[0] + "\n").getBytes(StandardCharsets.UTF_8);
+        ReadableByteChannel in = new ReadableByteChannel() {
+            private int reads;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (reads++ == 50) {
+                    throw new IOException("input failed");
+                }
+                int n = Math.min(line.length, dst.remaining());
+                dst.put(line, 0, n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try {
+            new BulkEnricher(searcher).setChunkSize(32).enrich(in, Channels.newChannel(new ByteArrayOutputStream()));
+            fail();
+        } catch (IOException e) {
+            assertEquals("input failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void outputErrorEndsEnrichment() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append(ranges.get(i % ranges.size()).split(",", 3)[0]).append('\n');
+        }
+        WritableByteChannel out = new WritableByteChannel() {
+            private int writes;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (writes++ == 3) {
+                    throw new IOException("output failed");
+                }
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try {
+            // the reader, blocked on the full queue, is stopped with the writer
+            new BulkEnricher(searcher).setChunkSize(64).setMaxInFlight(1)
+                    .enrich(Channels.newChannel(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8))), out);
+            fail();
+        } catch (IOException e) {
+            assertEquals("output failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void runReturnsExitCode() throws Exception {
+        String[] range = ranges.get(5).split(",", 3);
+        File input = folder.newFile("input.txt");
+        Files.write(input.toPath(), (range[0] + "\n").getBytes(StandardCharsets.UTF_8));
+        File output = new File(folder.getRoot(), "output.txt");
+        String db = new File(folder.getRoot(), "ipv4.czdb").getPath();
+
+        assertEquals(0, BulkEnricher.run(new String[]{"-d", db, "-k", DbFixtures.KEY,
+                "-i", input.getPath(), "-o", output.getPath()}));
+        assertEquals(range[0] + "\t" + range[2] + "\n", new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+
+        // the searcher is closed before the failure is returned
+        assertEquals(1, BulkEnricher.run(new String[]{"-d", db, "-k", DbFixtures.KEY,
+                "-i", new File(folder.getRoot(), "missing.txt").getPath(), "-o", output.getPath()}));
+        assertEquals(1, BulkEnricher.run(new String[]{"-k", DbFixtures.KEY}));
+    }
+
+    private static long enrich(BulkEnricher enricher, String input, ByteArrayOutputStream output) throws Exception {
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        return enricher.enrich(in, Channels.newChannel(output));
+    }
+}
@@ -0,0 +1,87 @@
+package net.cz88.czdb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that DbStorage reads the same bytes through its chunks, whether they wrap an array,
+ * map a file or copy it, including reads across a chunk boundary and past 2 GB.
+ */
+public class TestDbStorage {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void chunksOverlapByMaxRead() {
+        assertEquals(1, DbStorage.chunkCount(0));
+        assertEquals(1, DbStorage.chunkCount(DbStorage.CHUNK_SIZE));
+        assertEquals(3, DbStorage.chunkCount(2 * DbStorage.CHUNK_SIZE + 1));
+        assertEquals(DbStorage.CHUNK_SIZE + DbStorage.MAX_READ, DbStorage.chunkLength(3L << 30, 1));
+        assertEquals(1, DbStorage.chunkLength(2 * DbStorage.CHUNK_SIZE + 1, 2));
+        assertEquals(5, DbStorage.offsetOf(DbStorage.CHUNK_SIZE * 3 + 5));
+    }
+
+    @Test
+    public void wrapReadsTheArray() throws Exception {
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        File file = folder.newFile("small.db");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[3]);
+            raf.write(bytes);
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            for (DbStorage storage : new DbStorage[]{DbStorage.wrap(bytes), DbStorage.map(channel, 3, 64), DbStorage.load(channel.position(3), 64)}) {
+                assertEquals(64, storage.size());
+                assertEquals(10, storage.get(10));
+                assertEquals(0x04050607, storage.getInt(4));
+                assertEquals(0x0807060504030201L, Long.reverseBytes(storage.getLong(1)));
+                assertEquals(0x0b0a0908L, storage.getIntLong(8));
+                byte[] dst = new byte[5];
+                storage.get(60, dst, 1, 3);
+                assertArrayEquals(new byte[]{0, 60, 61, 62, 0}, dst);
+                storage.close();
+            }
+        }
+    }
+
+    @Test
+    public void mapReadsPastTwoGigabytes() throws Exception {
+        // a sparse file, only the written bytes take space
+        File file = folder.newFile("large.db");
+        long boundary = 2 * DbStorage.CHUNK_SIZE;
+        long end = boundary + DbStorage.CHUNK_SIZE / 2;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(end);
+            raf.seek(boundary - 2);
+            raf.write(new byte[]{1, 2, 3, 4, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFE});
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            DbStorage storage = DbStorage.map(raf.getChannel(), 0, end);
+            try {
+                assertEquals(end, storage.size());
+                assertEquals(0x01020304, storage.getInt(boundary - 2));
+                assertEquals(0xFEFFFFFFL, storage.getIntLong(boundary + 2));
+                assertEquals(3, storage.get(boundary));
+                byte[] dst = new byte[4];
+                storage.get(boundary - 2, dst, 0, 4);
+                assertArrayEquals(new byte[]{1, 2, 3, 4}, dst);
+                assertEquals(0, storage.get(end - 1));
+            } finally {
+                storage.close();
+            }
+        }
+    }
+}
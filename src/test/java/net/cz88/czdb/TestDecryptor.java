@@ -0,0 +1,87 @@
+package net.cz88.czdb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that Decryptor XORs every byte with the key byte of its position in the whole data,
+ * a word at a time, piece by piece, in parallel, in direct buffers and while streaming.
+ */
+public class TestDecryptor {
+    private static final byte[] KEY = {3, 1, 4, 1, 5, 9, 2, 6, 5, 3, 5, 8, 9};
+    private static final Decryptor DECRYPTOR = new Decryptor(Base64.getEncoder().encodeToString(KEY));
+
+    private static byte[] expected(byte[] data, long position) {
+        byte[] result = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = (byte) (data[i] ^ KEY[(int) ((position + i) % KEY.length)]);
+        }
+        return result;
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void decryptMatchesBytewiseXor() {
+        for (int length = 0; length < 40; length++) {
+            byte[] data = random(length);
+            assertArrayEquals(expected(data, 0), DECRYPTOR.decrypt(data));
+            assertArrayEquals(data, DECRYPTOR.decrypt(DECRYPTOR.decrypt(data)));
+        }
+    }
+
+    @Test
+    public void piecesDecryptLikeTheWholeData() {
+        byte[] data = random(1000);
+        byte[] pieces = data.clone();
+        for (int p = 0, n = 1; p < pieces.length; p += n, n = n * 2 + 1) {
+            DECRYPTOR.decrypt(pieces, p, Math.min(n, pieces.length - p), p);
+        }
+        assertArrayEquals(expected(data, 0), pieces);
+    }
+
+    @Test
+    public void largeDataIsDecryptedInParallel() {
+        byte[] data = random(5 * Decryptor.PARALLEL_PIECE + 3);
+        byte[] decrypted = data.clone();
+        DECRYPTOR.decrypt(decrypted, 0, decrypted.length, 7);
+        assertArrayEquals(expected(data, 7), decrypted);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        DECRYPTOR.decrypt(direct, 7);
+        assertEquals(0, direct.position());
+        byte[] fromDirect = new byte[data.length];
+        direct.get(fromDirect);
+        assertArrayEquals(decrypted, fromDirect);
+    }
+
+    @Test
+    public void streamDecryptsAsItReads() throws Exception {
+        byte[] data = random(100);
+        byte[] read = new byte[data.length];
+        try (InputStream in = DECRYPTOR.decrypt(new ByteArrayInputStream(data, 5, 95), 5)) {
+            read[5] = (byte) in.read();
+            assertEquals(10, in.skip(10));
+            assertEquals(20, in.read(read, 16, 20));
+            assertEquals(64, in.read(read, 36, 64));
+            assertEquals(-1, in.read());
+        }
+        byte[] expected = expected(data, 0);
+        assertEquals(expected[5], read[5]);
+        for (int i = 16; i < 100; i++) {
+            assertEquals(expected[i], read[i]);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package net.cz88.czdb;
+
+import net.cz88.czdb.utils.ByteUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that DualStackDbSearcher searches IPv4 addresses and the IPv6 addresses embedding one
+ * in the IPv4 database, the other IPv6 addresses in the IPv6 database, and puts the regions of a mixed batch
+ * back in the order of its addresses.
+ */
+public class TestDualStackDbSearcher {
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> ipv4Ranges;
+    private static List<String> ipv6Ranges;
+    private static DualStackDbSearcher searcher;
+
+    @BeforeClass
+    public static void buildDatabases() throws Exception {
+        File ranges = folder.newFile("ipv4.txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV4, 200, 12);
+        ipv4Ranges = Files.readAllLines(ranges.toPath());
+        File ipv4Db = folder.newFile("ipv4.czdb");
+        DbFixtures.build(ranges, ipv4Db, DbType.IPV4, 10);
+
+        ranges = folder.newFile("ipv6.txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV6, 200, 12);
+        ipv6Ranges = Files.readAllLines(ranges.toPath());
+        File ipv6Db = folder.newFile("ipv6.czdb");
+        DbFixtures.build(ranges, ipv6Db, DbType.IPV6, 10);
+
+        searcher = new DualStackDbSearcher(new DbSearcher(ipv4Db.getPath(), QueryType.MEMORY, DbFixtures.KEY),
+                new DbSearcher(ipv6Db.getPath(), QueryType.BTREE, DbFixtures.KEY));
+    }
+
+    @AfterClass
+    public static void closeSearcher() {
+        searcher.close();
+    }
+
+    @Test
+    public void routesByFamily() throws Exception {
+        for (String line : ipv4Ranges) {
+            String[] range = line.split(",", 3);
+            assertEquals(range[2], searcher.search(range[0]));
+            assertEquals(range[2], searcher.search(range[1]));
+            assertEquals(range[2], searcher.search(InetAddress.getByName(range[1]).getAddress()));
+            assertEquals(range[1], searcher.lookup(range[1]).getEndIp());
+        }
+        for (String line : ipv6Ranges) {
+            String[] range = line.split(",", 3);
+            assertEquals(range[2], searcher.search(range[0]));
+            assertEquals(range[2], searcher.search(range[1]));
+            assertEquals(range[2], searcher.search(InetAddress.getByName(range[1]).getAddress()));
+            assertEquals(range[1], searcher.lookup(range[1]).getEndIp());
+        }
+    }
+
+    @Test
+    public void embeddedIpv4SearchesIpv4Database() throws Exception {
+        // ::a.b.c.d is in the first range of the IPv6 database, so only the IPv4 database gives the IPv4 region
+        String[] first = ipv6Ranges.get(0).split(",", 3);
+        assertEquals(first[2], searcher.getIpv6Searcher().search("::1.2.3.4"));
+
+        LookupResult result = new LookupResult();
+        for (String line : ipv4Ranges) {
+            String[] range = line.split(",", 3);
+            for (String ip : new String[]{"::ffff:" + range[1], "::" + range[1], "::ffff:0:" + range[1]}) {
+                assertEquals(ip, range[2], searcher.search(ip));
+                assertEquals(ip, range[2], searcher.search(ipv6Bytes(range[1], ip)));
+
+                assertTrue(ip, searcher.lookup(ip, result));
+                assertEquals(range[2], result.getRegion());
+                assertEquals(range[0], result.getStartIp());
+                assertEquals(range[1], result.getEndIp());
+            }
+        }
+
+        // :: and ::1 are not IPv4-compatible addresses
+        assertEquals(first[2], searcher.search("::"));
+        assertEquals(first[2], searcher.search("::1"));
+    }
+
+    @Test
+    public void mixedBatchKeepsTheOrderOfTheAddresses() throws Exception {
+        List<String> ips = new ArrayList<>();
+        for (String line : ipv4Ranges) {
+            String[] range = line.split(",", 3);
+            ips.add(range[0]);
+            ips.add("::ffff:" + range[1]);
+        }
+        for (String line : ipv6Ranges) {
+            String[] range = line.split(",", 3);
+            ips.add(range[0]);
+            ips.add(range[1]);
+        }
+        Collections.shuffle(ips, new Random(12));
+
+        String[] expected = new String[ips.size()];
+        long[] keys = new long[2 * ips.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = searcher.search(ips.get(i));
+            assertNotNull(ips.get(i), expected[i]);
+            byte[] bytes = InetAddress.getByName(ips.get(i)).getAddress();
+            if (bytes.length == 4) {
+                // the long[] batch takes the IPv4-mapped form of an IPv4 address
+                bytes = ipv6Bytes(ips.get(i), "::ffff:" + ips.get(i));
+            }
+            keys[2 * i] = ByteUtil.getLongBE(bytes, 0);
+            keys[2 * i + 1] = ByteUtil.getLongBE(bytes, 8);
+        }
+
+        assertArrayEquals(expected, searcher.searchBatch(ips.toArray(new String[0])));
+        assertArrayEquals(expected, searcher.searchBatch(keys));
+
+        int[] ipv4Keys = new int[ipv4Ranges.size()];
+        String[] ipv4Expected = new String[ipv4Keys.length];
+        for (int i = 0; i < ipv4Keys.length; i++) {
+            String[] range = ipv4Ranges.get(ipv4Keys.length - 1 - i).split(",", 3);
+            ipv4Keys[i] = ByteUtil.getIntBE(InetAddress.getByName(range[1]).getAddress(), 0);
+            ipv4Expected[i] = range[2];
+        }
+        assertArrayEquals(ipv4Expected, searcher.searchBatch(ipv4Keys));
+    }
+
+    @Test
+    public void invalidAddressIsRejected() throws Exception {
+        try {
+            searcher.search("1.2.3");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // neither an IPv4 nor an IPv6 literal
+        }
+        try {
+            searcher.searchBatch(new String[]{"1.2.3.4", "::1", "not an ip"});
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // the whole batch fails
+        }
+        try {
+            new DualStackDbSearcher(searcher.getIpv6Searcher(), searcher.getIpv4Searcher());
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // the searchers are swapped
+        }
+    }
+
+    /**
+     * Returns the 16 bytes of an IPv6 address embedding an IPv4 address, which InetAddress would turn
+     * into the 4 bytes of the IPv4 address for the IPv4-mapped form.
+     */
+    private static byte[] ipv6Bytes(String ipv4, String ip) throws Exception {
+        byte[] bytes = new byte[16];
+        System.arraycopy(InetAddress.getByName(ipv4).getAddress(), 0, bytes, 12, 4);
+        if (ip.startsWith("::ffff:0:")) {
+            bytes[8] = (byte) 0xFF;
+            bytes[9] = (byte) 0xFF;
+        } else if (ip.startsWith("::ffff:")) {
+            bytes[10] = (byte) 0xFF;
+            bytes[11] = (byte) 0xFF;
+        }
+        return bytes;
+    }
+}
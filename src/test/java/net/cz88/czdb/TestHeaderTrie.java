@@ -0,0 +1,83 @@
+package net.cz88.czdb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that HeaderTrie finds the same header line as a binary search over the start IPs.
+ */
+public class TestHeaderTrie {
+
+    @Test
+    public void matchesBinarySearchOnIpv6Header() {
+        Random random = new Random(6);
+        // 2000::/3 start IPs, some of them sharing their high 64 bits
+        long[] high = new long[5000];
+        long[] low = new long[high.length];
+        for (int i = 0; i < high.length; i++) {
+            high[i] = 0x2000000000000000L | random.nextLong() >>> 3;
+        }
+        Arrays.sort(high);
+        for (int i = 1; i < high.length; i += 7) {
+            high[i] = high[i - 1];
+            low[i] = 1L << 40;
+        }
+        checkAgainstBinarySearch(high, low, random);
+    }
+
+    @Test
+    public void matchesBinarySearchOnIpv4Header() {
+        Random random = new Random(4);
+        long[] high = new long[300];
+        for (int i = 0; i < high.length; i++) {
+            // sorted with the sign bit flipped, which orders them as unsigned
+            high[i] = (random.nextInt() & 0xFFFFFFFFL) << 32 ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(high);
+        for (int i = 0; i < high.length; i++) {
+            high[i] ^= Long.MIN_VALUE;
+        }
+        checkAgainstBinarySearch(high, new long[high.length], random);
+    }
+
+    @Test
+    public void singleHighHalfCannotBeIndexed() {
+        assertNull(HeaderTrie.build(new long[]{5, 5}, new long[]{1, 2}, 2));
+        assertNull(HeaderTrie.build(new long[0], new long[0], 0));
+    }
+
+    private static void checkAgainstBinarySearch(long[] high, long[] low, Random random) {
+        HeaderTrie trie = HeaderTrie.build(high, low, high.length);
+        assertNotNull(trie);
+        for (int i = 0; i < high.length; i++) {
+            // the start IP, the key before it and a key after it
+            check(trie, high, low, high[i], low[i]);
+            check(trie, high, low, low[i] == 0 ? high[i] - 1 : high[i], low[i] - 1);
+            check(trie, high, low, high[i], low[i] + 1);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            check(trie, high, low, random.nextLong(), random.nextLong());
+        }
+        check(trie, high, low, 0, 0);
+        check(trie, high, low, -1, -1);
+    }
+
+    private static void check(HeaderTrie trie, long[] high, long[] low, long hi, long lo) {
+        // the last start IP not greater than the key
+        int l = 0, h = high.length - 1;
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            int cmp = high[m] == hi ? Long.compareUnsigned(low[m], lo) : Long.compareUnsigned(high[m], hi);
+            if (cmp <= 0) {
+                l = m + 1;
+            } else {
+                h = m - 1;
+            }
+        }
+        assertEquals(h, trie.find(hi, lo));
+    }
+}
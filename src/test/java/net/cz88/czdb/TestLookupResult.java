@@ -0,0 +1,179 @@
+package net.cz88.czdb;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests the column accessors and the range accessors of LookupResult,
+ * set by hand and filled by DbSearcher.lookup from a database.
+ */
+public class TestLookupResult {
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static File ipv4Db;
+    private static File ipv6Db;
+    private static List<String> ipv4Ranges;
+    private static List<String> ipv6Ranges;
+
+    @BeforeClass
+    public static void buildDatabases() throws Exception {
+        File ranges = folder.newFile("ipv4.txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV4, 200, 8);
+        ipv4Ranges = Files.readAllLines(ranges.toPath());
+        ipv4Db = folder.newFile("ipv4.czdb");
+        DbFixtures.build(ranges, ipv4Db, DbType.IPV4, 10);
+
+        ranges = folder.newFile("ipv6.txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV6, 200, 8);
+        ipv6Ranges = Files.readAllLines(ranges.toPath());
+        ipv6Db = folder.newFile("ipv6.czdb");
+        DbFixtures.build(ranges, ipv6Db, DbType.IPV6, 10);
+    }
+
+    @Test
+    public void lookupFillsRangeAndColumns() throws Exception {
+        for (QueryType queryType : QueryType.values()) {
+            checkLookups(ipv4Db, ipv4Ranges, queryType);
+            checkLookups(ipv6Db, ipv6Ranges, queryType);
+        }
+    }
+
+    private static void checkLookups(File db, List<String> ranges, QueryType queryType) throws Exception {
+        DbSearcher searcher = new DbSearcher(db.getPath(), queryType, DbFixtures.KEY);
+        try {
+            LookupResult result = new LookupResult();
+            int misses = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                String[] range = ranges.get(i).split(",", 3);
+                String[] columns = range[2].split("\t");
+                String[] location = columns[0].split("–");
+
+                assertTrue(searcher.lookup(range[1], result));
+                assertEquals(range[0], result.getStartIp());
+                assertEquals(range[1], result.getEndIp());
+                assertEquals(range[2], result.getRegion());
+                assertEquals(location[0], result.getCountry());
+                assertEquals(location.length > 2 ? location[2] : null, result.getCity());
+                assertEquals(columns[1], result.getIsp());
+                assertEquals(2, result.getColumnCount());
+
+                // the address before the range is in a gap unless the previous range ends right before it
+                String before = previousIp(range[0]);
+                String previousEnd = i == 0 ? null : ranges.get(i - 1).split(",", 3)[1];
+                if (before != null && !before.equals(previousEnd)) {
+                    assertFalse(searcher.lookup(before, result));
+                    assertFalse(result.isFound());
+                    assertNull(result.getRegion());
+                    assertNull(result.getCountry());
+                    assertNull(result.getStartIp());
+                    assertNull(result.getEndIp());
+                    misses++;
+                }
+            }
+            assertTrue(misses > 0);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    private static String previousIp(String ip) throws Exception {
+        byte[] bytes = InetAddress.getByName(ip).getAddress();
+        int i = bytes.length - 1;
+        while (i >= 0 && bytes[i] == 0) {
+            bytes[i--] = (byte) 0xFF;
+        }
+        if (i < 0) {
+            return null;
+        }
+        bytes[i]--;
+        return InetAddress.getByAddress(bytes).getHostAddress();
+    }
+
+    @Test
+    public void splitsLocationAndIsp() {
+        LookupResult result = found(DbType.IPV4, "中国–上海–上海–虹口区\t电信");
+
+        assertEquals("中国", result.getCountry());
+        assertEquals("上海", result.getProvince());
+        assertEquals("上海", result.getCity());
+        assertEquals("虹口区", result.getDistrict());
+        assertEquals("电信", result.getIsp());
+        assertEquals(2, result.getColumnCount());
+        assertEquals("中国–上海–上海–虹口区", result.getColumn(0));
+        assertEquals("电信", result.getColumn(1));
+        assertNull(result.getColumn(2));
+    }
+
+    @Test
+    public void missingPartsAreNull() {
+        LookupResult result = found(DbType.IPV4, "美国");
+
+        assertEquals("美国", result.getCountry());
+        assertNull(result.getProvince());
+        assertNull(result.getDistrict());
+        assertNull(result.getIsp());
+        assertEquals(1, result.getColumnCount());
+
+        // the parts of the location never run into the ISP column
+        result = found(DbType.IPV4, "中国–北京\t联通–移动");
+        assertEquals("北京", result.getProvince());
+        assertNull(result.getCity());
+    }
+
+    @Test
+    public void ipv4Range() {
+        LookupResult result = found(DbType.IPV4, "中国");
+        result.setRange(0x01020300L << 32, 0, 0xFF0203FFL << 32, 0);
+
+        assertEquals(0x01020300, result.getStartIpv4());
+        assertEquals(0xFF0203FF, result.getEndIpv4());
+        assertEquals(0, result.getStartIpHigh());
+        assertEquals(0x01020300L, result.getStartIpLow());
+        assertEquals(0xFF0203FFL, result.getEndIpLow());
+        assertEquals("1.2.3.0", result.getStartIp());
+        assertEquals("255.2.3.255", result.getEndIp());
+    }
+
+    @Test
+    public void ipv6Range() {
+        LookupResult result = found(DbType.IPV6, "中国");
+        result.setRange(0x20010db800000000L, 0, 0x20010db8ffffffffL, -1L);
+
+        assertEquals(0x20010db800000000L, result.getStartIpHigh());
+        assertEquals(-1L, result.getEndIpLow());
+        assertEquals(0, result.getStartIpv4());
+        assertEquals("2001:db8:0:0:0:0:0:0", result.getStartIp());
+        assertEquals("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff", result.getEndIp());
+    }
+
+    @Test
+    public void notFound() {
+        LookupResult result = found(DbType.IPV4, "中国");
+        result.reset(null, DbType.IPV4);
+
+        assertFalse(result.isFound());
+        assertNull(result.getRegion());
+        assertNull(result.getCountry());
+        assertNull(result.getStartIp());
+        assertEquals(0, result.getColumnCount());
+        assertEquals(0, result.getEndIpv4());
+    }
+
+    private static LookupResult found(DbType dbType, String region) {
+        LookupResult result = new LookupResult();
+        result.reset(null, dbType);
+        result.setRange(0, 0, 0, 0);
+        result.setRegion(region);
+        return result;
+    }
+}
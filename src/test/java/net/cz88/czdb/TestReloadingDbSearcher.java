@@ -0,0 +1,184 @@
+package net.cz88.czdb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that ReloadingDbSearcher swaps in a replaced database file, closes the old DbSearcher
+ * only once the searches holding it are done, and keeps serving the old database when the new file cannot be loaded.
+ */
+public class TestReloadingDbSearcher {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reloadSwapsInNewDatabase() throws Exception {
+        File db = folder.newFile("ipv4.czdb");
+        List<String> oldRanges = replace(db, 100, 1);
+        ReloadingDbSearcher searcher = new ReloadingDbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY,
+                new DbSearcherConfig(), 0);
+        try {
+            checkRanges(oldRanges, searcher);
+
+            // a search which took the old DbSearcher before the swap
+            ReloadingDbSearcher.Instance held = searcher.acquire();
+            List<String> newRanges = replace(db, 150, 2);
+            searcher.reload();
+            assertNull(searcher.getLastReloadError());
+            checkRanges(newRanges, searcher);
+
+            // it still reads the old file until it is released
+            assertFalse(held.closed.get());
+            for (String line : oldRanges) {
+                String[] range = line.split(",", 3);
+                assertEquals(range[2], held.searcher.search(range[1]));
+            }
+            held.release();
+            assertTrue(held.closed.get());
+        } finally {
+            searcher.close();
+        }
+
+        try {
+            searcher.search("1.2.3.4");
+            fail();
+        } catch (IllegalStateException expected) {
+            // the searcher is closed
+        }
+    }
+
+    @Test
+    public void corruptReplacementKeepsOldDatabase() throws Exception {
+        File db = folder.newFile("ipv4.czdb");
+        List<String> oldRanges = replace(db, 100, 3);
+        ReloadingDbSearcher searcher = new ReloadingDbSearcher(db.getPath(), QueryType.MEMORY, DbFixtures.KEY,
+                new DbSearcherConfig(), 0);
+        try {
+            corrupt(db);
+            try {
+                searcher.reload();
+                fail();
+            } catch (Exception e) {
+                assertSame(e, searcher.getLastReloadError());
+            }
+            checkRanges(oldRanges, searcher);
+
+            // the next successful reload clears the error
+            List<String> newRanges = replace(db, 120, 4);
+            searcher.reload();
+            assertNull(searcher.getLastReloadError());
+            checkRanges(newRanges, searcher);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void watcherReloadsChangedFile() throws Exception {
+        File db = folder.newFile("ipv4.czdb");
+        List<String> oldRanges = replace(db, 100, 5);
+        ReloadingDbSearcher searcher = new ReloadingDbSearcher(db.getPath(), QueryType.MMAP, DbFixtures.KEY,
+                new DbSearcherConfig(), 20);
+        try {
+            checkRanges(oldRanges, searcher);
+            List<String> newRanges = replace(db, 150, 6);
+
+            // the change is loaded once it has been stable for one interval
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!hasRanges(newRanges, searcher)) {
+                assertTrue("The database was not reloaded: " + searcher.getLastReloadError(),
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+            checkRanges(newRanges, searcher);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void watcherSkipsFileWhichFailedToLoad() throws Exception {
+        File db = folder.newFile("ipv4.czdb");
+        List<String> oldRanges = replace(db, 100, 7);
+        ReloadingDbSearcher searcher = new ReloadingDbSearcher(db.getPath(), QueryType.MEMORY, DbFixtures.KEY,
+                new DbSearcherConfig(), 20);
+        try {
+            assertEquals(1, searcher.loadAttempts.get());
+            corrupt(db);
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (searcher.getLastReloadError() == null) {
+                assertTrue("The corrupt file was not loaded", System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+
+            // many intervals later, the unchanged corrupt file has been loaded once
+            Thread.sleep(400);
+            assertEquals(2, searcher.loadAttempts.get());
+            assertNotNull(searcher.getLastReloadError());
+            checkRanges(oldRanges, searcher);
+
+            // a new file is loaded again
+            List<String> newRanges = replace(db, 120, 8);
+            while (!hasRanges(newRanges, searcher)) {
+                assertTrue("The database was not reloaded: " + searcher.getLastReloadError(),
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+            assertNull(searcher.getLastReloadError());
+            assertEquals(3, searcher.loadAttempts.get());
+        } finally {
+            searcher.close();
+        }
+    }
+
+    /**
+     * Builds a database of random ranges next to the database file and moves it over the file,
+     * as a database should be replaced.
+     */
+    private List<String> replace(File db, int count, long seed) throws Exception {
+        File ranges = new File(folder.getRoot(), "ranges-" + seed + ".txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV4, count, seed);
+        File built = new File(folder.getRoot(), "built-" + seed + ".czdb");
+        DbFixtures.build(ranges, built, DbType.IPV4, 10);
+        Files.move(built.toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return Files.readAllLines(ranges.toPath());
+    }
+
+    /**
+     * Moves a truncated copy of the database over the database file.
+     */
+    private void corrupt(File db) throws Exception {
+        File corrupt = new File(folder.getRoot(), "corrupt.czdb");
+        byte[] bytes = Files.readAllBytes(db.toPath());
+        Files.write(corrupt.toPath(), Arrays.copyOf(bytes, bytes.length / 3));
+        Files.move(corrupt.toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void checkRanges(List<String> ranges, ReloadingDbSearcher searcher) throws Exception {
+        for (String line : ranges) {
+            String[] range = line.split(",", 3);
+            assertEquals(range[2], searcher.search(range[0]));
+            assertEquals(range[2], searcher.search(range[1]));
+        }
+    }
+
+    private static boolean hasRanges(List<String> ranges, ReloadingDbSearcher searcher) throws Exception {
+        for (String line : ranges) {
+            String[] range = line.split(",", 3);
+            if (!range[2].equals(searcher.search(range[1]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
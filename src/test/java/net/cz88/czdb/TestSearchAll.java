@@ -1,43 +1,39 @@
 package net.cz88.czdb;
 
+import org.junit.ClassRule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import net.cz88.czdb.exception.IpFormatException;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
 
 /**
  * This class is used to test the search functionality of the DbSearcher class.
  * It contains two test methods, one for IPv4 and one for IPv6.
- * Each test method creates a DbSearcher instance, reads a file of IP addresses and regions,
- * and checks if the search results match the expected regions.
+ * Each test method builds a database from a generated file of IP ranges and regions, creates a DbSearcher instance,
+ * reads the file back, and checks if the search results match the expected regions.
  * If a search result does not match the expected region, it writes the error to a log file.
  */
 public class TestSearchAll {
 
     public static final String COLUMN_DIVIDER = ",";
 
+    private static final int RANGE_COUNT = 10000;
+
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
     /**
      * This method tests the search functionality of the DbSearcher class for IPv6.
      * It reads a file of IPv6 addresses and regions, and checks if the search results match the expected regions.
      * If a search result does not match the expected region, it writes the error to a log file.
      */
     @Test
-    public void testIpv6Db() {
-        try {
-            // Create a DbSearcher instance for IPv6
-            DbSearcher _searcher = new DbSearcher("/tmp/ipv6.czdb", QueryType.MEMORY, "Mef4JXjVsTvGAeFj9Z06FQ==");
-
-            // Read the file of IPv6 addresses and regions
-            BufferedReader bfr = new BufferedReader(new FileReader("/tmp/cz_ipv6_reduce_region_10000.txt"));
-
-            // Create a log file for errors
-            BufferedWriter bwr = new BufferedWriter(new FileWriter("../../data/error_ipv6_log.txt", true));
-
-            // Execute the test
-            execute(_searcher, bwr, bfr);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public void testIpv6Db() throws Exception {
+        testDb(DbType.IPV6);
     }
 
     /**
@@ -46,21 +42,33 @@ public class TestSearchAll {
      * If a search result does not match the expected region, it writes the error to a log file.
      */
     @Test
-    public void testIpv4Db() {
-        try {
-            // Create a DbSearcher instance for IPv4
-            DbSearcher _searcher = new DbSearcher("/tmp/ipv4.czdb", QueryType.MEMORY, "Mef4JXjVsTvGAeFj9Z06FQ==");
+    public void testIpv4Db() throws Exception {
+        testDb(DbType.IPV4);
+    }
+
+    private void testDb(DbType dbType) throws Exception {
+        String name = dbType.name().toLowerCase();
+        File ranges = folder.newFile(name + ".txt");
+        DbFixtures.writeRanges(ranges, dbType, RANGE_COUNT, RANGE_COUNT);
+        File db = folder.newFile(name + ".czdb");
+        DbFixtures.build(ranges, db, dbType, DbBuilder.DEFAULT_HEADER_GRANULARITY);
 
-            // Read the file of IPv4 addresses and regions
-            BufferedReader bfr = new BufferedReader(new FileReader("/tmp/cz_ipv4_reduce_region_10000.txt"));
+        for (QueryType queryType : QueryType.values()) {
+            // Create a DbSearcher instance
+            DbSearcher searcher = new DbSearcher(db.getPath(), queryType, DbFixtures.KEY);
+
+            // Read the file of IP addresses and regions
+            BufferedReader bfr = new BufferedReader(new InputStreamReader(new FileInputStream(ranges), StandardCharsets.UTF_8));
 
             // Create a log file for errors
-            BufferedWriter bwr = new BufferedWriter(new FileWriter("../../data/error_ipv4_log.txt", true));
+            BufferedWriter bwr = new BufferedWriter(new FileWriter(new File(folder.getRoot(), "error_" + name + "_log.txt"), true));
 
             // Execute the test
-            execute(_searcher, bwr, bfr);
-        } catch (Exception e) {
-            e.printStackTrace();
+            try {
+                assertEquals(queryType + " errors", 0, execute(searcher, bwr, bfr));
+            } finally {
+                searcher.close();
+            }
         }
     }
 
@@ -72,9 +80,10 @@ public class TestSearchAll {
      * @param searcher The DbSearcher instance to use for the search.
      * @param bwr The BufferedWriter to use for writing errors to the log file.
      * @param bfr The BufferedReader to use for reading the file of IP addresses and regions.
+     * @return The number of IP addresses whose search result does not match the expected region.
      * @throws IOException If an I/O error occurs.
      */
-    private static void execute(DbSearcher searcher, BufferedWriter bwr, BufferedReader bfr) throws IOException {
+    private static int execute(DbSearcher searcher, BufferedWriter bwr, BufferedReader bfr) throws IOException {
         // Initialize the error count and line count
         int errCount = 0;
         int lineCount = 0;
@@ -94,7 +103,6 @@ public class TestSearchAll {
             String source_region = line.substring(second_idx + 1);
 
             // Search for the first IP and check if the result matches the expected region
-            System.out.println("+---[Info]: Step1, search for first IP: " + first_ip);
             String fdata = null;
             try {
                 fdata = searcher.search(first_ip);
@@ -104,7 +112,7 @@ public class TestSearchAll {
             if (!source_region.equalsIgnoreCase(fdata)) {
                 // Write the error to the log file
                 System.out.println("[Error]: Search first IP failed, DB region = " + fdata);
-                bwr.write("[Source]: Region: " + fdata);
+                bwr.write("[Source]: Region: " + source_region);
                 bwr.newLine();
                 bwr.write("[Source]: First Ip: " + first_ip);
                 bwr.newLine();
@@ -115,7 +123,6 @@ public class TestSearchAll {
             }
 
             // Search for the second IP and check if the result matches the expected region
-            System.out.println("+---[Info]: Step2, search for second IP: " + second_ip);
             String sdata = null;
             try {
                 sdata = searcher.search(second_ip);
@@ -125,9 +132,9 @@ public class TestSearchAll {
             if (!source_region.equalsIgnoreCase(sdata)) {
                 // Write the error to the log file
                 System.out.println("[Error]: Search second IP failed, DB region = " + sdata);
-                bwr.write("[Source]: Region: " + sdata);
+                bwr.write("[Source]: Region: " + source_region);
                 bwr.newLine();
-                bwr.write("[Source]: First Ip: " + second_ip);
+                bwr.write("[Source]: Second Ip: " + second_ip);
                 bwr.newLine();
                 bwr.write("[DB]: Region: " + sdata);
                 bwr.newLine();
@@ -147,6 +154,7 @@ public class TestSearchAll {
         System.out.println("+---Done, search complished");
         System.out.println("+---Statistics, Error count = " + errCount
                 + ", Total line = " + lineCount
-                + ", Fail ratio = " + ((float) (errCount / lineCount)) * 100 + "%");
+                + ", Fail ratio = " + ((float) errCount / lineCount) * 100 + "%");
+        return errCount;
     }
 }
\ No newline at end of file
@@ -1,57 +1,456 @@
 package net.cz88.czdb;
 
+import net.cz88.czdb.utils.IpParser;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
 import org.junit.Test;
-import net.cz88.czdb.exception.IpFormatException;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
 
 public class TestSearcher {
-    private static final String IPV6_DB_PATH = "/Users/liucong/Downloads/RTBAsia/";
-    private static final String IPV4_DB_PATH = "/Users/liucong/Downloads/RTBAsia/rtbasiav4.czdb";
-    private static final String IPV6_IP = "2001:4:113:0:0:0:0:0";
-    private static final String IPV4_IP = "14.9.15.0";
-    private static final String KEY = "LDZ63Uu6DjwdaNdeDnC3iA==";
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static File ipv6Db;
+    private static File ipv4Db;
+    private static File ipv4Ranges;
+    private static File ipv6Ranges;
+    private static String ipv6Ip;
+    private static String ipv6Region;
+    private static String ipv4Ip;
+    private static String ipv4Region;
+
+    @BeforeClass
+    public static void buildDatabases() throws Exception {
+        File ranges = folder.newFile("ipv6.txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV6, 1000, 6);
+        ipv6Ranges = ranges;
+        ipv6Db = folder.newFile("ipv6.czdb");
+        DbFixtures.build(ranges, ipv6Db, DbType.IPV6, 20);
+        String[] range = Files.readAllLines(ranges.toPath()).get(500).split(",", 3);
+        ipv6Ip = range[0];
+        ipv6Region = range[2];
+
+        ranges = folder.newFile("ipv4.txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV4, 1000, 4);
+        ipv4Ranges = ranges;
+        ipv4Db = folder.newFile("ipv4.czdb");
+        DbFixtures.build(ranges, ipv4Db, DbType.IPV4, 20);
+        range = Files.readAllLines(ranges.toPath()).get(500).split(",", 3);
+        ipv4Ip = range[1];
+        ipv4Region = range[2];
+    }
 
     @Test
     public void ipv6MemoryQueryTest() throws Exception {
-        performQuery(IPV6_DB_PATH, IPV6_IP);
+        performQuery(ipv6Db, ipv6Ip, ipv6Region, QueryType.MEMORY);
     }
 
     @Test
     public void ipv4MemoryQueryTest() throws Exception {
-        performQuery(IPV4_DB_PATH, IPV4_IP);
+        performQuery(ipv4Db, ipv4Ip, ipv4Region, QueryType.MEMORY);
+    }
+
+    @Test
+    public void btreeQueryTest() throws Exception {
+        performQuery(ipv6Db, ipv6Ip, ipv6Region, QueryType.BTREE);
+        performQuery(ipv4Db, ipv4Ip, ipv4Region, QueryType.BTREE);
+    }
+
+    @Test
+    public void mmapQueryTest() throws Exception {
+        performQuery(ipv6Db, ipv6Ip, ipv6Region, QueryType.MMAP);
+        performQuery(ipv4Db, ipv4Ip, ipv4Region, QueryType.MMAP);
     }
 
     @Test
     public void inputStreamSearcherTest() throws Exception {
-        performQueryWithStream(IPV4_DB_PATH, IPV4_IP);
+        DbSearcher searcher = new DbSearcher(Files.newInputStream(ipv4Db.toPath()), QueryType.MEMORY, DbFixtures.KEY);
+        try {
+            assertEquals(ipv4Region, searcher.search(ipv4Ip));
+        } finally {
+            searcher.close();
+        }
     }
 
-    private void performQuery(String dbPath, String ip) throws Exception {
-        performQuery(dbPath, ip, false);
+    @Test
+    public void btreeReopensFileClosedByInterrupt() throws Exception {
+        DbSearcher searcher = new DbSearcher(ipv4Db.getPath(), QueryType.BTREE, DbFixtures.KEY);
+        try {
+            Thread.currentThread().interrupt();
+            try {
+                searcher.search(ipv4Ip);
+                fail();
+            } catch (ClosedByInterruptException expected) {
+                // the interrupt closes the shared channel
+            } finally {
+                Thread.interrupted();
+            }
+            assertEquals(ipv4Region, searcher.search(ipv4Ip));
+        } finally {
+            searcher.close();
+        }
     }
 
-    private void performQueryWithStream(String dbPath, String ip) throws Exception {
-        performQuery(dbPath, ip, true);
+    @Test
+    public void dataPastTwoGigabytesIsFound() throws Exception {
+        // the data blocks and the index start past 2 GB, so the data pointers have their top bit set
+        File db = folder.newFile("ipv4-hole.czdb");
+        DbFixtures.insertHole(ipv4Db, db, 1L << 31);
+        List<String> lines = Files.readAllLines(ipv4Ranges.toPath());
+        String[] ips = new String[lines.size()];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = lines.get(i).split(",", 3)[0];
+        }
+
+        for (QueryType queryType : new QueryType[]{QueryType.MMAP, QueryType.BTREE}) {
+            DbSearcher searcher = new DbSearcher(db.getPath(), queryType, DbFixtures.KEY);
+            try {
+                String[] regions = searcher.searchBatch(ips);
+                LookupResult result = new LookupResult();
+                for (int i = 0; i < ips.length; i++) {
+                    String[] range = lines.get(i).split(",", 3);
+                    assertEquals(range[2], searcher.search(range[1]));
+                    assertEquals(range[2], regions[i]);
+                    assertEquals(range[2], searcher.searchAsync(range[0]).get());
+                    assertTrue(searcher.lookup(range[0], result));
+                    assertEquals(range[2], result.getRegion());
+                }
+            } finally {
+                searcher.close();
+            }
+        }
     }
 
-    private void performQuery(String dbPath, String ip, boolean useStream) throws Exception {
+    @Test
+    public void compressedStreamsAndOffHeapCopiesMatchFile() throws Exception {
+        byte[] db = Files.readAllBytes(ipv6Db.toPath());
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (OutputStream os = new GZIPOutputStream(gzip)) {
+            os.write(db);
+        }
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        try (OutputStream os = new DeflaterOutputStream(zlib)) {
+            os.write(db);
+        }
+
+        DbSearcherConfig offHeap = new DbSearcherConfig().setOffHeap(true);
+        DbSearcher[] searchers = {
+                new DbSearcher(new ByteArrayInputStream(gzip.toByteArray()), QueryType.MEMORY, DbFixtures.KEY),
+                new DbSearcher(new ByteArrayInputStream(zlib.toByteArray()), QueryType.MEMORY, DbFixtures.KEY),
+                new DbSearcher(new ByteArrayInputStream(db), QueryType.MEMORY, DbFixtures.KEY, offHeap),
+                new DbSearcher(ipv6Db.getPath(), QueryType.MEMORY, DbFixtures.KEY, offHeap),
+        };
         try {
-            DbSearcher searcher;
-            if (useStream) {
-                searcher = new DbSearcher(Files.newInputStream(new File(dbPath).toPath()), QueryType.MEMORY, KEY);
-            } else {
-                searcher = new DbSearcher(dbPath, QueryType.BTREE, KEY);
+            for (String line : Files.readAllLines(ipv6Ranges.toPath())) {
+                String[] range = line.split(",", 3);
+                for (DbSearcher searcher : searchers) {
+                    assertEquals(range[2], searcher.search(range[0]));
+                    assertEquals(range[2], searcher.search(range[1]));
+                }
+            }
+        } finally {
+            for (DbSearcher searcher : searchers) {
+                searcher.close();
             }
+        }
+
+        try {
+            new DbSearcher(new ByteArrayInputStream(db, 0, db.length - 1), QueryType.MEMORY, DbFixtures.KEY);
+            fail();
+        } catch (EOFException expected) {
+            // the stream is shorter than the size in the super part
+        }
+    }
+
+    @Test
+    public void searchBatchKeepsTheOrderOfTheAddresses() throws Exception {
+        // the bounds of every range and the address past it, which may be in a gap, some twice, shuffled
+        Random random = new Random(9);
+        List<Integer> ipv4 = new ArrayList<>();
+        for (String line : Files.readAllLines(ipv4Ranges.toPath())) {
+            String[] range = line.split(",", 3);
+            ipv4.add((int) IpParser.parseIpv4(range[0]));
+            ipv4.add((int) IpParser.parseIpv4(range[1]));
+            ipv4.add((int) IpParser.parseIpv4(range[1]) + 1);
+            if (random.nextInt(4) == 0) {
+                ipv4.add((int) IpParser.parseIpv4(range[0]));
+            }
+        }
+        Collections.shuffle(ipv4, random);
+        int[] ints = new int[ipv4.size()];
+        String[] ipv4Strings = new String[ints.length];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = ipv4.get(i);
+            ipv4Strings[i] = InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(ints[i]).array()).getHostAddress();
+        }
+
+        List<long[]> ipv6 = new ArrayList<>();
+        for (String line : Files.readAllLines(ipv6Ranges.toPath())) {
+            String[] range = line.split(",", 3);
+            for (String ip : new String[]{range[0], range[1]}) {
+                long[] key = new long[2];
+                assertTrue(IpParser.parseIpv6(ip, key));
+                ipv6.add(key);
+            }
+            long[] end = ipv6.get(ipv6.size() - 1);
+            ipv6.add(end[1] == -1 ? new long[]{end[0] + 1, 0} : new long[]{end[0], end[1] + 1});
+        }
+        Collections.shuffle(ipv6, random);
+        long[] longs = new long[ipv6.size() * 2];
+        String[] ipv6Strings = new String[ipv6.size()];
+        for (int i = 0; i < ipv6Strings.length; i++) {
+            longs[2 * i] = ipv6.get(i)[0];
+            longs[2 * i + 1] = ipv6.get(i)[1];
+            ipv6Strings[i] = InetAddress.getByAddress(ByteBuffer.allocate(16).putLong(longs[2 * i]).putLong(longs[2 * i + 1]).array()).getHostAddress();
+        }
+
+        for (QueryType queryType : QueryType.values()) {
+            DbSearcher ipv4Searcher = new DbSearcher(ipv4Db.getPath(), queryType, DbFixtures.KEY);
+            DbSearcher ipv6Searcher = new DbSearcher(ipv6Db.getPath(), queryType, DbFixtures.KEY);
+            try {
+                String[] expected = new String[ints.length];
+                for (int i = 0; i < ints.length; i++) {
+                    expected[i] = ipv4Searcher.search(ints[i]);
+                }
+                assertTrue(Arrays.asList(expected).contains(null));
+                assertArrayEquals(expected, ipv4Searcher.searchBatch(ints));
+                assertArrayEquals(expected, ipv4Searcher.searchBatch(ipv4Strings));
+
+                expected = new String[ipv6Strings.length];
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = ipv6Searcher.search(longs[2 * i], longs[2 * i + 1]);
+                }
+                assertArrayEquals(expected, ipv6Searcher.searchBatch(longs));
+                assertArrayEquals(expected, ipv6Searcher.searchBatch(ipv6Strings));
+            } finally {
+                ipv4Searcher.close();
+                ipv6Searcher.close();
+            }
+        }
+    }
+
+    @Test
+    public void searchBatchReadsEverySegmentOnce() throws Exception {
+        DbSearcher searcher = new DbSearcher(ipv4Db.getPath(), QueryType.BTREE, DbFixtures.KEY,
+                new DbSearcherConfig().setMetrics(true));
+        try {
+            DbSearcherMetrics metrics = searcher.getMetrics();
+            searcher.search(ipv4Ip);
+            long single = metrics.getIoBytes();
+
+            // the same address many times reads its segment and its data block once
+            String[] same = new String[10];
+            Arrays.fill(same, ipv4Ip);
+            metrics.reset();
+            String[] regions = searcher.searchBatch(same);
+            assertEquals(single, metrics.getIoBytes());
+            for (String region : regions) {
+                assertEquals(ipv4Region, region);
+            }
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void searchAsyncMatchesSearch() throws Exception {
+        DbSearcherConfig config = new DbSearcherConfig().setRegionCacheSize(64).setMetrics(true);
+        for (QueryType queryType : QueryType.values()) {
+            DbSearcher searcher = new DbSearcher(ipv6Db.getPath(), queryType, DbFixtures.KEY, config);
+            try {
+                // all the searches are started before any is waited for
+                List<String[]> ranges = new ArrayList<>();
+                List<CompletableFuture<String>> futures = new ArrayList<>();
+                for (String line : Files.readAllLines(ipv6Ranges.toPath())) {
+                    String[] range = line.split(",", 3);
+                    ranges.add(range);
+                    futures.add(searcher.searchAsync(range[0]));
+                    futures.add(searcher.searchAsync(range[1]));
+                }
+                for (int i = 0; i < ranges.size(); i++) {
+                    assertEquals(ranges.get(i)[2], futures.get(2 * i).get());
+                    assertEquals(ranges.get(i)[2], futures.get(2 * i + 1).get());
+                    assertEquals(ranges.get(i)[2], searcher.searchAsync(ranges.get(i)[0]).get());
+                }
+
+                try {
+                    searcher.searchAsync("not an ip").get();
+                    fail();
+                } catch (ExecutionException expected) {
+                    assertTrue(expected.getCause() instanceof IllegalArgumentException);
+                }
+            } finally {
+                searcher.close();
+            }
+        }
+    }
+
+    @Test
+    public void recentRangesAndRegionCacheMatchIndex() throws Exception {
+        DbSearcherConfig config = new DbSearcherConfig().setRecentRangeCount(4).setRegionCacheSize(64);
+        for (QueryType queryType : QueryType.values()) {
+            DbSearcher cached = new DbSearcher(ipv4Db.getPath(), queryType, DbFixtures.KEY, config);
+            DbSearcher searcher = new DbSearcher(ipv4Db.getPath(), queryType, DbFixtures.KEY);
+            try {
+                // the bounds of every range, and the address past it, which may be in a gap, searched twice
+                for (String line : Files.readAllLines(ipv4Ranges.toPath())) {
+                    String[] range = line.split(",", 3);
+                    int end = (int) IpParser.parseIpv4(range[1]);
+                    for (int round = 0; round < 2; round++) {
+                        assertEquals(range[2], cached.search(range[0]));
+                        assertEquals(range[2], cached.search(range[1]));
+                        assertEquals(searcher.search(end + 1), cached.search(end + 1));
+                    }
+                }
+            } finally {
+                cached.close();
+                searcher.close();
+            }
+        }
+    }
+
+    @Test
+    public void regionDictionaryMatchesDecodedRegions() throws Exception {
+        DbSearcherConfig config = new DbSearcherConfig().setRegionDictionary(true);
+        List<String> lines = Files.readAllLines(ipv6Ranges.toPath());
+        String[] ips = new String[lines.size()];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = lines.get(i).split(",", 3)[1];
+        }
+
+        for (QueryType queryType : QueryType.values()) {
+            DbSearcher dictionary = new DbSearcher(ipv6Db.getPath(), queryType, DbFixtures.KEY, config);
+            DbSearcher searcher = new DbSearcher(ipv6Db.getPath(), queryType, DbFixtures.KEY);
+            try {
+                LookupResult result = new LookupResult();
+                for (String line : lines) {
+                    String[] range = line.split(",", 3);
+                    String region = searcher.search(range[0]);
+                    assertEquals(range[2], region);
+                    // the regions of the dictionary are interned, not decoded for each search
+                    assertSame(dictionary.search(range[0]), dictionary.search(range[1]));
+                    assertEquals(region, dictionary.search(range[1]));
+                    assertEquals(region, dictionary.searchAsync(range[0]).get());
+                    assertTrue(dictionary.lookup(range[0], result));
+                    assertEquals(region, result.getRegion());
+
+                    // the address past the range, which may be in a gap
+                    long[] key = new long[2];
+                    assertTrue(IpParser.parseIpv6(range[1], key));
+                    long hi = key[1] == -1 ? key[0] + 1 : key[0];
+                    assertEquals(searcher.search(hi, key[1] + 1), dictionary.search(hi, key[1] + 1));
+                }
+                assertArrayEquals(searcher.searchBatch(ips), dictionary.searchBatch(ips));
+            } finally {
+                dictionary.close();
+                searcher.close();
+            }
+        }
+    }
+
+    @Test
+    public void eytzingerIndexMatchesSortedIndex() throws Exception {
+        DbSearcherConfig config = new DbSearcherConfig().setEytzingerIndex(true);
+        DbSearcher eytzinger = new DbSearcher(ipv4Db.getPath(), QueryType.MEMORY, DbFixtures.KEY, config);
+        DbSearcher searcher = new DbSearcher(ipv4Db.getPath(), QueryType.MEMORY, DbFixtures.KEY);
+        try {
+            assertEquals(searcher.search(0), eytzinger.search(0));
+            assertEquals(searcher.search(-1), eytzinger.search(-1));
+            for (String line : Files.readAllLines(ipv4Ranges.toPath())) {
+                String[] range = line.split(",", 3);
+                int start = (int) IpParser.parseIpv4(range[0]);
+                int end = (int) IpParser.parseIpv4(range[1]);
+                for (int ip : new int[]{start - 1, start, end, end + 1}) {
+                    assertEquals(searcher.search(ip), eytzinger.search(ip));
+                }
+            }
+        } finally {
+            eytzinger.close();
+            searcher.close();
+        }
+
+        eytzinger = new DbSearcher(ipv6Db.getPath(), QueryType.MEMORY, DbFixtures.KEY, config);
+        searcher = new DbSearcher(ipv6Db.getPath(), QueryType.MEMORY, DbFixtures.KEY);
+        try {
+            for (String line : Files.readAllLines(ipv6Ranges.toPath())) {
+                String[] range = line.split(",", 3);
+                assertEquals(range[2], eytzinger.search(range[0]));
+                assertEquals(range[2], eytzinger.search(range[1]));
+                long[] key = new long[2];
+                IpParser.parseIpv6(range[1], key);
+                // the address past the range, which may be in a gap
+                long lo = key[1] + 1;
+                long hi = lo == 0 ? key[0] + 1 : key[0];
+                assertEquals(searcher.search(hi, lo), eytzinger.search(hi, lo));
+            }
+        } finally {
+            eytzinger.close();
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void headerTrieMatchesHeader() throws Exception {
+        DbSearcherConfig config = new DbSearcherConfig().setHeaderTrie(true);
+        for (QueryType queryType : new QueryType[]{QueryType.MMAP, QueryType.BTREE}) {
+            DbSearcher trie = new DbSearcher(ipv6Db.getPath(), queryType, DbFixtures.KEY, config);
+            try {
+                for (String line : Files.readAllLines(ipv6Ranges.toPath())) {
+                    String[] range = line.split(",", 3);
+                    assertEquals(range[2], trie.search(range[0]));
+                    assertEquals(range[2], trie.search(range[1]));
+                }
+            } finally {
+                trie.close();
+            }
+        }
+    }
+
+    @Test
+    public void builderRejectsUnsortedRanges() throws Exception {
+        try (DbBuilder builder = new DbBuilder(DbType.IPV4, DbFixtures.KEY)) {
+            builder.add("1.0.0.0", "1.0.0.255", "中国");
+            try {
+                builder.add("1.0.0.128", "1.0.1.255", "中国");
+                fail("An overlapping range was added.");
+            } catch (IllegalArgumentException expected) {
+                // the previous ranges are kept
+            }
+            builder.add("1.0.2.0", "1.0.2.255", "中国");
+        }
+    }
+
+    private void performQuery(File db, String ip, String expected, QueryType queryType) throws Exception {
+        DbSearcher searcher = new DbSearcher(db.getPath(), queryType, DbFixtures.KEY);
+        try {
             double sTime = System.nanoTime();
             String region = searcher.search(ip);
             double cTime = (System.nanoTime() - sTime) / 1000000;
             System.out.printf("%s \nin %.5f millseconds\n", region, cTime);
+            assertEquals(expected, region);
+        } finally {
             searcher.close();
-        } catch (IOException | IpFormatException e) {
-            e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,118 @@
+package net.cz88.czdb;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class TestSearcherMetrics {
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static File db;
+    private static String ip;
+
+    @BeforeClass
+    public static void buildDatabase() throws Exception {
+        File ranges = folder.newFile("ipv4.txt");
+        DbFixtures.writeRanges(ranges, DbType.IPV4, 1000, 4);
+        db = folder.newFile("ipv4.czdb");
+        DbFixtures.build(ranges, db, DbType.IPV4, 20);
+        ip = Files.readAllLines(ranges.toPath()).get(500).split(",", 3)[0];
+    }
+
+    @Test
+    public void metricsAreDisabledByDefault() throws Exception {
+        DbSearcher searcher = new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY);
+        try {
+            assertNull(searcher.getMetrics());
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Test
+    public void metricsCountSearches() throws Exception {
+        DbSearcherConfig config = new DbSearcherConfig().setMetrics(true).setGeoColumnCacheSize(64);
+        DbSearcher searcher = new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY, config);
+        DbSearcherMetrics metrics = searcher.getMetrics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.getObjectName();
+        try {
+            assertTrue(server.isRegistered(name));
+            assertEquals(0, metrics.getSearches());
+            assertEquals(0, metrics.getIoBytes());
+
+            assertNotNull(searcher.search(ip));
+            assertNotNull(searcher.search(ip));
+            assertNull(searcher.search("255.255.255.255"));
+            try {
+                searcher.search("not an ip");
+                fail();
+            } catch (IllegalArgumentException expected) {
+                // counted as a parse error
+            }
+
+            assertEquals(3, metrics.getSearches());
+            assertEquals(2, metrics.getHits());
+            assertEquals(1, metrics.getMisses());
+            assertEquals(1, metrics.getParseErrors());
+            assertTrue(metrics.getIoBytes() > 0);
+            assertEquals(1, metrics.getGeoColumnCacheHits());
+            assertEquals(1, metrics.getGeoColumnCacheMisses());
+            assertTrue(metrics.getLatencyP50Nanos() <= metrics.getLatencyP99Nanos());
+            assertEquals(3L, server.getAttribute(name, "Searches"));
+
+            // BTREE mode neither copies the database nor decodes an index
+            LoadTimings timings = searcher.getLoadTimings();
+            assertTrue(timings.getHeaderNanos() > 0);
+            assertEquals(0, timings.getDataNanos());
+            assertEquals(0, timings.getIndexNanos());
+            assertEquals(timings.toString(), server.getAttribute(name, "LoadPhases"));
+
+            searcher.searchBatch(new String[]{ip, "255.255.255.255"});
+            assertEquals(5, metrics.getSearches());
+            assertEquals(3, metrics.getHits());
+
+            metrics.reset();
+            assertEquals(0, metrics.getSearches());
+            assertEquals(0, metrics.getGeoColumnCacheHits());
+        } finally {
+            searcher.close();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void regionCacheAnswersRepeatedSearches() throws Exception {
+        DbSearcherConfig config = new DbSearcherConfig().setMetrics(true).setRegionCacheSize(128);
+        DbSearcher searcher = new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY, config);
+        DbSearcher uncached = new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY);
+        try {
+            DbSearcherMetrics metrics = searcher.getMetrics();
+            String region = uncached.search(ip);
+            assertEquals(region, searcher.search(ip));
+            assertNull(searcher.search("255.255.255.255"));
+            long ioBytes = metrics.getIoBytes();
+
+            // the second search of each address, single or in a batch, reads nothing from the file
+            assertEquals(region, searcher.search(ip));
+            assertNull(searcher.search("255.255.255.255"));
+            assertArrayEquals(new String[]{region, null}, searcher.searchBatch(new String[]{ip, "255.255.255.255"}));
+            assertEquals(ioBytes, metrics.getIoBytes());
+            assertEquals(4, metrics.getRegionCacheHits());
+            assertEquals(2, metrics.getRegionCacheMisses());
+        } finally {
+            searcher.close();
+            uncached.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.cz88.czdb;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that the handles of SearcherPool find the same regions as their searcher,
+ * that no more than maxHandles handles are created, and that a handle closed by an interrupt affects no other handle.
+ */
+public class TestSearcherPool {
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static File db;
+    private static List<String> ranges;
+
+    @BeforeClass
+    public static void buildDatabase() throws Exception {
+        File file = folder.newFile("ipv4.txt");
+        DbFixtures.writeRanges(file, DbType.IPV4, 500, 4);
+        ranges = Files.readAllLines(file.toPath());
+        db = folder.newFile("ipv4.czdb");
+        DbFixtures.build(file, db, DbType.IPV4, 20);
+    }
+
+    @Test
+    public void handlesMatchSearcher() throws Exception {
+        DbSearcher searcher = new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY);
+        try (SearcherPool pool = new SearcherPool(searcher, 3)) {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                Future<?>[] futures = new Future<?>[8];
+                for (int t = 0; t < futures.length; t++) {
+                    futures[t] = executor.submit(() -> {
+                        for (String line : ranges) {
+                            String[] range = line.split(",", 3);
+                            assertEquals(range[2], pool.search(range[0]));
+                            assertEquals(range[2], pool.search(range[1]));
+                        }
+                        return null;
+                    });
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertTrue(pool.getIdleHandles() <= 3);
+        }
+    }
+
+    @Test
+    public void leaseWaitsForReturnedHandle() throws Exception {
+        SearcherPool pool = new SearcherPool(new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY), 1, true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SearcherPool.Handle handle = pool.lease();
+            Future<SearcherPool.Handle> other = executor.submit(pool::lease);
+            try {
+                other.get(100, TimeUnit.MILLISECONDS);
+                fail();
+            } catch (TimeoutException expected) {
+                // the only handle is leased
+            }
+            handle.close();
+            handle.close();
+            SearcherPool.Handle returned = other.get();
+            assertSame(handle, returned);
+            returned.close();
+
+            // the current thread leases the handle it used last
+            try (SearcherPool.Handle again = pool.lease()) {
+                assertSame(handle, again);
+            }
+        } finally {
+            executor.shutdown();
+            pool.close();
+        }
+
+        try {
+            pool.lease();
+            fail();
+        } catch (IllegalStateException expected) {
+            // the pool is closed
+        }
+    }
+
+    @Test
+    public void failedLeaseGivesPermitBack() throws Exception {
+        DbSearcher searcher = new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY);
+        SearcherPool pool = new SearcherPool(searcher, 1);
+        searcher.close();
+        for (int i = 0; i < 2; i++) {
+            try {
+                // the second lease would wait forever if the first had kept the only permit
+                pool.lease();
+                fail();
+            } catch (IllegalStateException expected) {
+                // no handle can be created on a closed searcher
+            }
+        }
+        pool.close();
+    }
+
+    @Test
+    public void interruptClosesOnlyItsHandle() throws Exception {
+        String[] range = ranges.get(0).split(",", 3);
+        try (SearcherPool pool = new SearcherPool(new DbSearcher(db.getPath(), QueryType.BTREE, DbFixtures.KEY), 2)) {
+            SearcherPool.Handle first = pool.lease();
+            SearcherPool.Handle second = pool.lease();
+            assertEquals(range[2], second.getSearcher().search(range[0]));
+
+            Thread.currentThread().interrupt();
+            try {
+                first.getSearcher().search(range[0]);
+                fail();
+            } catch (ClosedByInterruptException expected) {
+                // the interrupt closes the channel of the first handle
+            } finally {
+                Thread.interrupted();
+            }
+
+            assertEquals(range[2], second.getSearcher().search(range[0]));
+            assertEquals(range[2], first.getSearcher().search(range[0]));
+            assertEquals(range[2], pool.getSearcher().search(range[0]));
+            first.close();
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package net.cz88.czdb.entity;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that GeoColumnCache stays bounded and never returns the columns of another offset.
+ */
+public class TestGeoColumnCache {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new GeoColumnCache(1).capacity());
+        assertEquals(8, new GeoColumnCache(5).capacity());
+        assertEquals(4096, new GeoColumnCache(4096).capacity());
+    }
+
+    @Test
+    public void getReturnsOnlyTheColumnsOfTheOffset() {
+        GeoColumnCache cache = new GeoColumnCache(16);
+        assertNull(cache.get(100));
+
+        cache.put(100, "中国\t上海\t");
+        assertEquals("中国\t上海\t", cache.get(100));
+
+        // whatever slot they share, other offsets never see these columns
+        for (int geoPtr = 0; geoPtr < 0xFFFF; geoPtr++) {
+            if (geoPtr != 100) {
+                assertNull(cache.get(geoPtr));
+            }
+        }
+    }
+
+    @Test
+    public void singleSlotEvicts() {
+        GeoColumnCache cache = new GeoColumnCache(1);
+        cache.put(1, "a\t");
+        cache.put(2, "b\t");
+        assertNull(cache.get(1));
+        assertEquals("b\t", cache.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new GeoColumnCache(0);
+    }
+}
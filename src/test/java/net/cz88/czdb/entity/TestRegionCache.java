@@ -0,0 +1,85 @@
+package net.cz88.czdb.entity;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests that RegionCache stays bounded, returns only the region of the key,
+ * and keeps the frequent keys when a scan of one-off keys goes through it.
+ */
+public class TestRegionCache {
+
+    @Test
+    public void getReturnsOnlyTheRegionOfTheKey() {
+        RegionCache cache = new RegionCache(16);
+        assertNull(cache.get(1L << 32, 0));
+
+        cache.put(1L << 32, 0, "中国\t上海");
+        assertEquals("中国\t上海", cache.get(1L << 32, 0));
+        assertNull(cache.get(1L << 32, 1));
+        assertNull(cache.get(2L << 32, 0));
+    }
+
+    @Test
+    public void staysBounded() {
+        RegionCache cache = new RegionCache(1000);
+        for (long i = 0; i < 100_000; i++) {
+            cache.put(i << 32, i, "r" + i);
+            assertTrue(cache.size() <= 1000);
+        }
+        assertEquals(1000, cache.size());
+    }
+
+    @Test
+    public void keepsFrequentKeysThroughScan() {
+        RegionCache cache = new RegionCache(1000);
+        // 100 hot keys searched many times
+        for (int round = 0; round < 20; round++) {
+            for (long i = 0; i < 100; i++) {
+                if (cache.get(i, 0) == null) {
+                    cache.put(i, 0, "hot" + i);
+                }
+            }
+        }
+
+        // a scan of one-off keys, 50 times the capacity, interleaved with the hot keys
+        Random random = new Random(42);
+        int hotHits = 0;
+        for (int i = 0; i < 50_000; i++) {
+            long key = 1_000_000 + i;
+            if (cache.get(key, 0) == null) {
+                cache.put(key, 0, "cold");
+            }
+            if (i % 10 == 0) {
+                long hot = random.nextInt(100);
+                String region = cache.get(hot, 0);
+                if (region != null) {
+                    assertEquals("hot" + hot, region);
+                    hotHits++;
+                } else {
+                    cache.put(hot, 0, "hot" + hot);
+                }
+            }
+        }
+        assertTrue("hot hits: " + hotHits, hotHits > 4900);
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        RegionCache cache = new RegionCache(16, true);
+        assertNull(cache.get(1, 2));
+        cache.put(1, 2, "a");
+        assertEquals("a", cache.get(1, 2));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, new RegionCache(16).getHitCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new RegionCache(0);
+    }
+}
@@ -0,0 +1,114 @@
+package net.cz88.czdb.utils;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * This class tests IpParser against the literals InetAddress accepts, and against text it must reject.
+ */
+public class TestIpParser {
+
+    @Test
+    public void parseIpv4() {
+        assertEquals(0x01020304L, IpParser.parseIpv4("1.2.3.4"));
+        assertEquals(0xFFFFFFFFL, IpParser.parseIpv4("255.255.255.255"));
+        assertEquals(0L, IpParser.parseIpv4("0.0.0.0"));
+        assertEquals(0x0A000001L, IpParser.parseIpv4("010.000.0.01"));
+    }
+
+    @Test
+    public void rejectInvalidIpv4() {
+        String[] invalid = {"", "1", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.", ".1.2.3", "1..2.3",
+                "1.2.3.4 ", "a.b.c.d", "1234.1.1.1", "0001.1.1.1", "localhost", "::1"};
+        for (String ip : invalid) {
+            assertEquals(ip, IpParser.INVALID, IpParser.parseIpv4(ip));
+        }
+        assertEquals(IpParser.INVALID, IpParser.parseIpv4(null));
+    }
+
+    @Test
+    public void parseIpv6() throws Exception {
+        String[] valid = {"::", "::1", "1::", "1:2:3:4:5:6:7:8", "2001:db8::1", "2001:DB8:0:0:8:800:200C:417A",
+                "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8", "1::8", "1:2::7:8", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff",
+                "::ffff:1.2.3.4", "::1.2.3.4", "1:2:3:4:5:6:1.2.3.4", "64:ff9b::192.0.2.33", "0:0:0:0:0:0:0:0"};
+        for (String ip : valid) {
+            assertIpv6(ip, ipv6Bytes(ip));
+        }
+        assertIpv6("fe80::7:8%eth0", ipv6Bytes("fe80::7:8"));
+    }
+
+    @Test
+    public void rejectInvalidIpv6() {
+        String[] invalid = {"", ":", ":::", "1:", ":1", "1::2::3", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7",
+                "::1:2:3:4:5:6:7:8", "12345::", "g::", "1.2.3.4", "::1.2.3", "::1.2.3.4:5", "1:2:3:4:5:6:7:1.2.3.4",
+                "fe80::1%", "1::2:::3", "example.com", " ::1"};
+        long[] out = new long[2];
+        for (String ip : invalid) {
+            assertFalse(ip, IpParser.parseIpv6(ip, out));
+        }
+        assertFalse(IpParser.parseIpv6(null, out));
+    }
+
+    @Test
+    public void embeddedIpv4() {
+        long[] out = new long[2];
+        String[] embedded = {"::ffff:1.2.3.4", "::ffff:0:1.2.3.4", "::1.2.3.4", "::ffff:102:304"};
+        for (String ip : embedded) {
+            assertTrue(IpParser.parseIpv6(ip, out));
+            assertEquals(ip, 0x01020304L, IpParser.embeddedIpv4(out[0], out[1]));
+        }
+
+        String[] native6 = {"::", "::1", "2001:db8::1.2.3.4", "::fffe:1.2.3.4", "1::ffff:1.2.3.4", "64:ff9b::1.2.3.4"};
+        for (String ip : native6) {
+            assertTrue(IpParser.parseIpv6(ip, out));
+            assertEquals(ip, IpParser.INVALID, IpParser.embeddedIpv4(out[0], out[1]));
+        }
+    }
+
+    @Test
+    public void parseRandomAddresses() throws Exception {
+        Random random = new Random(0);
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(bytes);
+            // zero runs make getHostAddress output more varied
+            for (int j = random.nextInt(16); j < 16 && random.nextBoolean(); j++) {
+                bytes[j] = 0;
+            }
+
+            String ipv6 = InetAddress.getByAddress(bytes).getHostAddress();
+            assertIpv6(ipv6, ipv6Bytes(ipv6));
+            // getHostAddress never compresses, replace the first run of zero groups with ::
+            String compressed = ipv6.replaceFirst("(^|:)0(:0)+(:|$)", "::");
+            assertIpv6(compressed, ipv6Bytes(compressed));
+
+            String ipv4 = (bytes[0] & 0xFF) + "." + (bytes[1] & 0xFF) + "." + (bytes[2] & 0xFF) + "." + (bytes[3] & 0xFF);
+            assertEquals(ipv4, ByteUtil.getIntBE(bytes, 0) & 0xFFFFFFFFL, IpParser.parseIpv4(ipv4));
+        }
+    }
+
+    private static void assertIpv6(String ip, byte[] expected) {
+        long[] out = new long[2];
+        assertTrue(ip, IpParser.parseIpv6(ip, out));
+        assertEquals(ip, ByteUtil.getLongBE(expected, 0), out[0]);
+        assertEquals(ip, ByteUtil.getLongBE(expected, 8), out[1]);
+    }
+
+    private static byte[] ipv6Bytes(String ip) throws Exception {
+        byte[] bytes = InetAddress.getByName(ip).getAddress();
+        if (bytes.length == 16) {
+            return bytes;
+        }
+
+        // InetAddress turns IPv4-mapped addresses into IPv4 addresses
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xFF;
+        mapped[11] = (byte) 0xFF;
+        System.arraycopy(bytes, 0, mapped, 12, 4);
+        return mapped;
+    }
+}